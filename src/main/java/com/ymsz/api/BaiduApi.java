@@ -4,11 +4,13 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 
 import java.io.IOException;
+import java.net.URLEncoder;
 
 
 /**
@@ -21,21 +23,42 @@ public class BaiduApi {
     private final static String AK = "aDIa4rKKUfyFsqW32D7GqZEweokzDMGP";
     private final static String URL = "http://api.map.baidu.com/geocoding/v3/?output=json&location=showLocation";
 
+    private final static int TIMEOUT_MS = 3000;
+
+    /**
+     * 所有请求共用一个连接池，不再每次创建客户端
+     */
+    private final static HttpClient CLIENT = HttpClients.custom()
+            .setDefaultRequestConfig(RequestConfig.custom()
+                    .setConnectTimeout(TIMEOUT_MS)
+                    .setConnectionRequestTimeout(TIMEOUT_MS)
+                    .setSocketTimeout(TIMEOUT_MS)
+                    .build())
+            .build();
+
+    /**
+     * @return 经度、纬度，请求失败或地址无法解析时返回 null
+     */
     public static String[] getLatitudeAndLongitude(String address) {
-        String url = URL + "&ak=" + AK + "&address=" + address;
-        HttpClient client = HttpClients.createDefault();
-        HttpPost post = new HttpPost(url);
         String[] addrs = new String[2];
         try {
-            HttpResponse response = client.execute(post);
+            String url = URL + "&ak=" + AK + "&address=" + URLEncoder.encode(address, "UTF-8");
+            HttpPost post = new HttpPost(url);
+            HttpResponse response = CLIENT.execute(post);
             HttpEntity entity = response.getEntity();
             String html = EntityUtils.toString(entity);
             int lngBegin = html.indexOf("\"lng\":") + 6;
             int lngEnd = html.indexOf(",\"lat\"");
+            if (lngBegin < 6 || lngEnd < lngBegin) {
+                return null;
+            }
             addrs[0] = html.substring(lngBegin, lngEnd);
 
             String latStr= html.substring(lngEnd + 7);
             int latEnd = latStr.indexOf("}");
+            if (latEnd < 0) {
+                return null;
+            }
             addrs[1] = latStr.substring(0, latEnd);
             return addrs;
         } catch (ClientProtocolException e) {
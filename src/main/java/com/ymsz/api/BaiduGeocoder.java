@@ -0,0 +1,16 @@
+package com.ymsz.api;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * 使用百度地图解析地址，默认的实现
+ */
+@Component
+@ConditionalOnProperty(name = "geocoder.type", havingValue = "baidu", matchIfMissing = true)
+public class BaiduGeocoder implements Geocoder {
+    @Override
+    public String[] geocode(String address) {
+        return BaiduApi.getLatitudeAndLongitude(address);
+    }
+}
@@ -0,0 +1,14 @@
+package com.ymsz.api;
+
+/**
+ * 地址解析，将地址转换为经纬度，可以替换为其他地图服务或本地实现
+ */
+public interface Geocoder {
+    /**
+     * 解析地址，可能访问外部服务，不要在请求线程中调用
+     *
+     * @param address 地址
+     * @return 经度、纬度，解析失败时返回 null
+     */
+    String[] geocode(String address);
+}
@@ -0,0 +1,30 @@
+package com.ymsz.api;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+
+/**
+ * 不访问外部服务的地址解析，根据地址的哈希值生成固定的经纬度，用于测试以及无法访问地图服务的环境，geocoder.type 设置为 local 时启用
+ */
+@Component
+@ConditionalOnProperty(name = "geocoder.type", havingValue = "local")
+public class LocalGeocoder implements Geocoder {
+    /**
+     * 生成的坐标位于以此为中心、边长约 1 度的范围内
+     */
+    private static final double BASE_LONGITUDE = 114.3;
+    private static final double BASE_LATITUDE = 30.5;
+
+    @Override
+    public String[] geocode(String address) {
+        if (address == null) {
+            return null;
+        }
+        int h = address.hashCode();
+        double lng = BASE_LONGITUDE + ((h & 0xffff) / 65536.0 - 0.5);
+        double lat = BASE_LATITUDE + (((h >>> 16) & 0xffff) / 65536.0 - 0.5);
+        return new String[]{String.format(Locale.ROOT, "%.6f", lng), String.format(Locale.ROOT, "%.6f", lat)};
+    }
+}
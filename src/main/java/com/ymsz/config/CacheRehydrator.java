@@ -0,0 +1,392 @@
+package com.ymsz.config;
+
+import com.ymsz.mapper.DishMapper;
+import com.ymsz.mapper.StoreMapper;
+import com.ymsz.mapper.UserMapper;
+import com.ymsz.strategy.impl.StockLeaseManager;
+import com.ymsz.utils.RedisBitmap;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>Redis 缓存重建，应用启动时以及 Redis 重启或被清空后，一次性加载菜品库存、菜品制作时间以及用户喜欢、收藏、待选的 bitmap，请求不再在缓存缺失时逐个回源</p>
+ * <p>数据以 MyBatis 游标流式读取，不会一次性加载整张表；各类缓存、各个店铺的库存在线程池中并行重建，每类缓存以管道批量写入</p>
+ * <p>启动时重建期间节点的就绪状态为 REFUSING_TRAFFIC，全部完成后才变为 ACCEPTING_TRAFFIC，负载均衡可以通过 /admin/get_cache_readiness 判断节点是否可以接收流量。同一时间只有一个节点重建，其他节点等待其完成</p>
+ * <p>库存只补充缓存中不存在的菜品，不会覆盖其他节点已经扣减过的库存；bitmap 只写入缓存中不存在的用户，不会覆盖用户刚刚修改过的 bitmap</p>
+ * <p>库存以数据库为准时减去已经发出但尚未落库的在途库存，与下单策略从数据库加载库存的方式一致</p>
+ * <p>缓存标记不设置过期时间，只有 Redis 重启或被清空后才会消失，此时在后台重建，节点照常接收流量，缺失的缓存由请求按需回源；单个 key 过期后同样由请求按需回源</p>
+ */
+@Slf4j
+@Component
+public class CacheRehydrator implements ApplicationRunner {
+    @Qualifier("myRedisTemplate")
+    @Autowired
+    private RedisTemplate redis;
+
+    @Autowired
+    private RedisCacheManager redisManager;
+
+    @Autowired
+    private DishMapper dishMapper;
+
+    @Autowired
+    private StoreMapper storeMapper;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    @Autowired
+    private StockLeaseManager leaseManager;
+
+    @Autowired
+    private ApplicationEventPublisher publisher;
+
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${cache.rehydrate.threads:4}")
+    private int threads;
+
+    /**
+     * 一次管道提交的命令数
+     */
+    @Value("${cache.rehydrate.pipeline-size:500}")
+    private int pipelineSize;
+
+    /**
+     * 重建锁的过期时间，持有锁的节点宕机后其他节点最多等待这么久
+     */
+    @Value("${cache.rehydrate.lock-seconds:300}")
+    private long lockSeconds;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    /**
+     * 后台重建只使用这一个线程，最多再排队一个任务，多余的请求直接丢弃
+     */
+    private final ThreadPoolExecutor background = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1), r -> new Thread(r, "cache-rehydrator"), new ThreadPoolExecutor.DiscardPolicy());
+    private volatile boolean ready;
+    private final AtomicInteger totalTasks = new AtomicInteger();
+    private final AtomicInteger finishedTasks = new AtomicInteger();
+    private final AtomicInteger failedTasks = new AtomicInteger();
+    private volatile long startTime;
+    private volatile long finishTime;
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        transactionTemplate.setReadOnly(true);
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        // 启动时同步执行，完成之前 Spring 不会将节点标记为就绪
+        rehydrateIfCold(true);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        background.shutdownNow();
+    }
+
+    /**
+     * 定时检查缓存标记是否存在，Redis 重启或被清空后在后台重建
+     */
+    @Scheduled(fixedDelayString = "${cache.rehydrate.check-ms:5000}")
+    public void check() {
+        if (running.get() || isCacheReady()) {
+            return;
+        }
+        log.warn("Redis 缓存标记不存在，开始重建缓存");
+        rehydrateInBackground();
+    }
+
+    /**
+     * 在后台线程中重建缓存，节点保持当前的就绪状态
+     *
+     * @return 已有重建正在进行或排队时返回 false
+     */
+    public boolean rehydrateInBackground() {
+        if (running.get() || !background.getQueue().isEmpty()) {
+            return false;
+        }
+        background.execute(() -> rehydrateIfCold(false));
+        return true;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * @return 重建进度
+     */
+    public Map<String, Object> getProgress() {
+        Map<String, Object> ans = new LinkedHashMap<>();
+        ans.put("ready", ready);
+        ans.put("running", running.get());
+        ans.put("total", totalTasks.get());
+        ans.put("finished", finishedTasks.get());
+        ans.put("failed", failedTasks.get());
+        ans.put("startTime", startTime);
+        ans.put("finishTime", finishTime);
+        return ans;
+    }
+
+    /**
+     * 缓存标记不存在时重建缓存，否则直接就绪
+     *
+     * @param refuseTraffic 为 true 时重建期间节点拒绝流量，只在启动时使用
+     */
+    private void rehydrateIfCold(boolean refuseTraffic) {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (isCacheReady()) {
+                setReady(true);
+                return;
+            }
+            if (refuseTraffic) {
+                setReady(false);
+            }
+            Boolean locked = redis.opsForValue().setIfAbsent(RedisCacheManager.CACHE_REHYDRATING_KEY, 1, lockSeconds, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(locked)) {
+                try {
+                    if (rehydrateAll()) {
+                        redis.opsForValue().set(RedisCacheManager.CACHE_READY_KEY, System.currentTimeMillis());
+                    }
+                } finally {
+                    redis.delete(RedisCacheManager.CACHE_REHYDRATING_KEY);
+                }
+            } else {
+                log.info("其他节点正在重建缓存，等待其完成");
+                waitForOtherNode();
+            }
+            if (refuseTraffic || !ready) {
+                setReady(isCacheReady());
+            }
+        } catch (Exception e) {
+            log.error("重建缓存失败", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * 以数据库为准并行刷新所有店铺的库存缓存，会覆盖缓存中已有的库存，在途库存会从中减去
+     */
+    public void flushAllStock() {
+        runTasks(stockTasks(true));
+    }
+
+    private boolean isCacheReady() {
+        return Boolean.TRUE.equals(redis.hasKey(RedisCacheManager.CACHE_READY_KEY));
+    }
+
+    private void setReady(boolean ready) {
+        this.ready = ready;
+        AvailabilityChangeEvent.publish(publisher, this, ready ? ReadinessState.ACCEPTING_TRAFFIC : ReadinessState.REFUSING_TRAFFIC);
+    }
+
+    private void waitForOtherNode() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + lockSeconds * 1000;
+        while (System.currentTimeMillis() < deadline && !isCacheReady()
+                && Boolean.TRUE.equals(redis.hasKey(RedisCacheManager.CACHE_REHYDRATING_KEY))) {
+            Thread.sleep(500);
+        }
+    }
+
+    /**
+     * @return 是否全部成功
+     */
+    private boolean rehydrateAll() {
+        List<Runnable> tasks = new ArrayList<>(stockTasks(false));
+        tasks.add(this::rehydrateMakeTime);
+        tasks.add(() -> rehydrateUserMarked(userMapper::scanFavoriteDish, RedisCacheManager::getUserLikeDishCacheKey));
+        tasks.add(() -> rehydrateUserMarked(userMapper::scanCollectedDish, RedisCacheManager::getUserCollectedDishCacheKey));
+        tasks.add(() -> rehydrateUserMarked(userMapper::scanWillBuyDish, RedisCacheManager::getUserWillBuyDishCacheKey));
+        tasks.add(() -> rehydrateUserMarked(userMapper::scanCollectedStore, RedisCacheManager::getUserCollectedStoreCacheKey));
+        return runTasks(tasks);
+    }
+
+    private List<Runnable> stockTasks(boolean overwrite) {
+        List<Runnable> tasks = new ArrayList<>();
+        for (Integer storeId : storeMapper.queryAllStoreId()) {
+            tasks.add(() -> rehydrateStock(storeId, overwrite));
+        }
+        return tasks;
+    }
+
+    private boolean runTasks(List<Runnable> tasks) {
+        startTime = System.currentTimeMillis();
+        totalTasks.set(tasks.size());
+        finishedTasks.set(0);
+        failedTasks.set(0);
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            List<Future<?>> futures = new ArrayList<>(tasks.size());
+            for (Runnable task : tasks) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        failedTasks.incrementAndGet();
+                        log.error("重建缓存任务失败", e);
+                    } finally {
+                        finishedTasks.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            log.error("等待重建缓存任务时出错", e);
+            return false;
+        } finally {
+            pool.shutdownNow();
+            finishTime = System.currentTimeMillis();
+        }
+        log.info("缓存重建完成，共 " + tasks.size() + " 个任务，失败 " + failedTasks.get() + " 个，耗时 " + (finishTime - startTime) + " 毫秒");
+        return failedTasks.get() == 0;
+    }
+
+    /**
+     * 在只读事务中打开游标并逐行处理，游标需要在事务内保持连接
+     */
+    private <T> void scan(Supplier<Cursor<T>> cursor, Consumer<T> consumer) {
+        transactionTemplate.executeWithoutResult(status -> {
+            try (Cursor<T> c = cursor.get()) {
+                for (T row : c) {
+                    consumer.accept(row);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * 以数据库中的库存减去在途库存重建店铺的库存缓存，两个脚本在重新写入时都会使版本号自增，之前租出的库存全部作废
+     */
+    private void rehydrateStock(int storeId, boolean overwrite) {
+        Map<Integer, Integer> inflight = redisManager.getInflightStock(storeId);
+        Map<Integer, Integer> stock = new HashMap<>();
+        scan(() -> dishMapper.scanDishStock(storeId), row -> {
+            int id = ((Number) row.get("id")).intValue();
+            stock.put(id, Math.max(0, ((Number) row.get("stock")).intValue() - inflight.getOrDefault(id, 0)));
+        });
+        if (overwrite) {
+            redisManager.flushRedisDishStockCache(stock, storeId);
+        } else {
+            redisManager.loadDishStockIfAbsent(stock, storeId);
+        }
+        leaseManager.invalidate(storeId);
+    }
+
+    private void rehydrateMakeTime() {
+        Map<Integer, Double> makeTimes = new HashMap<>();
+        scan(dishMapper::scanDishMakeTime, row -> {
+            Object makeTime = row.get("make_time");
+            makeTimes.put(((Number) row.get("id")).intValue(), makeTime == null ? 0 : ((Number) makeTime).doubleValue());
+        });
+        List<Integer> ids = new ArrayList<>(makeTimes.keySet());
+        redis.executePipelined(new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations operations) {
+                for (int i = 0; i < ids.size(); i += pipelineSize) {
+                    Map<Integer, Double> chunk = new HashMap<>();
+                    for (Integer id : ids.subList(i, Math.min(ids.size(), i + pipelineSize))) {
+                        chunk.put(id, makeTimes.get(id));
+                    }
+                    operations.opsForHash().putAll(RedisCacheManager.DISH_MAKE_TIME_CACHE_KEY, chunk);
+                }
+                operations.expire(RedisCacheManager.DISH_MAKE_TIME_CACHE_KEY, RedisCacheManager.DEFAULT_EXPIRATION_TIME_SECONDS, TimeUnit.SECONDS);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * 游标按用户排序，读完一个用户的所有记录后生成其 bitmap，攒够一批后以管道写入
+     */
+    private void rehydrateUserMarked(Supplier<Cursor<Map<String, Object>>> cursor, Function<String, String> keyOf) {
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        String[] user = new String[1];
+        Set<Integer> ids = new HashSet<>();
+        scan(cursor, row -> {
+            String userId = String.valueOf(row.get("user_id"));
+            if (!userId.equals(user[0])) {
+                if (user[0] != null) {
+                    batch.put(keyOf.apply(user[0]), RedisBitmap.encode(ids));
+                    ids.clear();
+                    if (batch.size() >= pipelineSize) {
+                        writeBitmaps(batch);
+                    }
+                }
+                user[0] = userId;
+            }
+            ids.add(((Number) row.get("id")).intValue());
+        });
+        if (user[0] != null) {
+            batch.put(keyOf.apply(user[0]), RedisBitmap.encode(ids));
+        }
+        writeBitmaps(batch);
+    }
+
+    private void writeBitmaps(Map<String, byte[]> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Expiration expiration = Expiration.seconds(RedisCacheManager.DEFAULT_EXPIRATION_TIME_SECONDS);
+        redis.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, byte[]> it : batch.entrySet()) {
+                connection.set(it.getKey().getBytes(StandardCharsets.UTF_8), it.getValue(),
+                        expiration, RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
+        batch.clear();
+    }
+}
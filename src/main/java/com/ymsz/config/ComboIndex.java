@@ -0,0 +1,177 @@
+package com.ymsz.config;
+
+import com.ymsz.mapper.ComboMapper;
+import com.ymsz.pojo.ComboDish;
+import com.ymsz.service.impl.DishServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>套餐到菜品的内存索引，下单时展开套餐不再访问数据库</p>
+ * <p>索引是不可变的快照，套餐ID有序排列，第 i 个套餐的菜品位于 dishIds[offsets[i], offsets[i + 1]) 中；重新加载时构造新的快照并整体替换，读线程无需加锁</p>
+ * <p>收到 {@link DishServiceImpl#CATALOG_CHANGED_CHANNEL} 的消息时重新加载，定时重新加载作为兜底；遇到索引中不存在的套餐时查询数据库，如果数据库中存在则立即重新加载</p>
+ */
+@Slf4j
+@Component
+public class ComboIndex {
+    /**
+     * ID 大于等于此值的是套餐
+     */
+    public static final int COMBO_ID_START = 100000;
+
+    private static final class Snapshot {
+        final int[] comboIds;
+        final int[] offsets;
+        final int[] dishIds;
+        final int[] dishNums;
+
+        Snapshot(int[] comboIds, int[] offsets, int[] dishIds, int[] dishNums) {
+            this.comboIds = comboIds;
+            this.offsets = offsets;
+            this.dishIds = dishIds;
+            this.dishNums = dishNums;
+        }
+    }
+
+    @Autowired
+    private ComboMapper comboMapper;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    private volatile Snapshot snapshot = new Snapshot(new int[0], new int[1], new int[0], new int[0]);
+
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+    /**
+     * 重新加载期间又有新的重新加载请求，当前加载完成后需要再加载一次
+     */
+    private final AtomicBoolean pending = new AtomicBoolean(false);
+
+    /**
+     * 在后台处理变更通知，不占用消息监听线程
+     */
+    private final ExecutorService reloader = Executors.newSingleThreadExecutor(r -> new Thread(r, "combo-index-reloader"));
+
+    @PostConstruct
+    public void init() {
+        try {
+            reload();
+        } catch (Exception e) {
+            log.error("加载套餐索引失败，暂时从数据库查询套餐", e);
+        }
+        listenerContainer.addMessageListener((message, pattern) -> reloader.execute(() -> {
+            try {
+                reload();
+            } catch (Exception e) {
+                log.error("套餐变更后重新加载索引失败，等待下一次定时加载", e);
+            }
+        }), new ChannelTopic(DishServiceImpl.CATALOG_CHANGED_CHANNEL));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reloader.shutdownNow();
+    }
+
+    /**
+     * 从数据库重新加载索引；正在加载时只记录请求，由正在加载的线程在完成后再加载一次，保证加载开始时间晚于请求
+     */
+    @Scheduled(fixedDelayString = "${combo-index.refresh-ms:60000}")
+    public void reload() {
+        pending.set(true);
+        while (pending.get() && reloading.compareAndSet(false, true)) {
+            try {
+                pending.set(false);
+                load();
+            } finally {
+                reloading.set(false);
+            }
+        }
+    }
+
+    /**
+     * 查询并构造新的快照，查询结果必须按套餐ID排序
+     */
+    private void load() {
+        List<ComboDish> rows = comboMapper.queryAllComboDish();
+        int combos = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            if (i == 0 || rows.get(i).getComboId() != rows.get(i - 1).getComboId()) {
+                combos++;
+            }
+        }
+        int[] comboIds = new int[combos];
+        int[] offsets = new int[combos + 1];
+        int[] dishIds = new int[rows.size()];
+        int[] dishNums = new int[rows.size()];
+        int c = -1;
+        for (int i = 0; i < rows.size(); i++) {
+            ComboDish row = rows.get(i);
+            if (i == 0 || row.getComboId() != rows.get(i - 1).getComboId()) {
+                comboIds[++c] = row.getComboId();
+                offsets[c] = i;
+            }
+            dishIds[i] = row.getDishId();
+            dishNums[i] = row.getDishNum();
+        }
+        offsets[combos] = rows.size();
+        snapshot = new Snapshot(comboIds, offsets, dishIds, dishNums);
+    }
+
+    /**
+     * 将订单中的菜品与套餐合并展开为菜品ID与数目
+     *
+     * @param dishOrders 订单中的菜品，包含 dishId 与 dishNum
+     * @return key -> dishId，val -> 数目
+     */
+    public Map<Integer, Integer> getDishNumMap(List<Map<String, Object>> dishOrders) {
+        Map<Integer, Integer> m = new HashMap<>(8);
+        Snapshot s = snapshot;
+        for (Map<String, Object> map : dishOrders) {
+            int dishId = (int) map.get("dishId");
+            int dishNum = (int) map.get("dishNum");
+            if (dishId < COMBO_ID_START) {
+                m.merge(dishId, dishNum, Integer::sum);
+                continue;
+            }
+            int i = Arrays.binarySearch(s.comboIds, dishId);
+            if (i >= 0) {
+                for (int j = s.offsets[i]; j < s.offsets[i + 1]; j++) {
+                    // 套餐内置的菜品个数 * 套餐个数
+                    m.merge(s.dishIds[j], s.dishNums[j] * dishNum, Integer::sum);
+                }
+            } else {
+                expandFromDatabase(dishId, dishNum, m);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * 索引中不存在的套餐，可能是新上架的，从数据库查询；如果确实存在则重新加载索引
+     */
+    private void expandFromDatabase(int comboId, int num, Map<Integer, Integer> m) {
+        List<ComboDish> list = comboMapper.queryComboDishById(comboId);
+        for (ComboDish cd : list) {
+            m.merge(cd.getDishId(), cd.getDishNum() * num, Integer::sum);
+        }
+        if (!list.isEmpty()) {
+            reload();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.ymsz.config;
+
+import com.ymsz.mapper.DishMapper;
+import com.ymsz.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * <p>菜品销量与用户积分的延迟写入缓冲</p>
+ * <p>下单时只在内存中累加，定时合并为批量 UPDATE 写回数据库，热门菜品的销量不再在每笔订单中争抢同一行的行锁</p>
+ * <p>每个计数器记录累计值与已写回的值，写回时只提交二者之差，写回期间的并发累加不会丢失；写回失败的增量保留到下一次；一个周期内没有新增量的计数器会被移除，避免长期不活跃的菜品与用户一直占用内存。应用正常关闭时会把剩余的增量全部写回，进程异常退出最多丢失一个周期的增量</p>
+ */
+@Slf4j
+@Component
+public class CounterWriteBehindBuffer {
+    private static final class Counter {
+        final LongAdder total = new LongAdder();
+        /**
+         * 已经写回数据库的值，只由写回线程访问
+         */
+        long flushed;
+    }
+
+    private final Map<Integer, Counter> dishSales = new ConcurrentHashMap<>();
+    private final Map<String, Counter> userPoints = new ConcurrentHashMap<>();
+
+    @Autowired
+    private DishMapper dishMapper;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    /**
+     * 一条 UPDATE 语句最多包含的记录数
+     */
+    @Value("${counter.flush-batch-size:500}")
+    private int batchSize;
+
+    public void addDishSale(int dishId, int val) {
+        add(dishSales, dishId, val);
+    }
+
+    public void addUserPoints(String userId, int val) {
+        add(userPoints, userId, val);
+    }
+
+    /**
+     * 累加在 compute 内完成，与写回线程的移除互斥，不会加到一个已被移除的计数器上
+     */
+    private static <K> void add(Map<K, Counter> counters, K key, int val) {
+        counters.compute(key, (k, counter) -> {
+            if (counter == null) {
+                counter = new Counter();
+            }
+            counter.total.add(val);
+            return counter;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${counter.flush-ms:1000}")
+    public synchronized void flush() {
+        flush(dishSales, dishMapper::updateDishSaleBatch);
+        flush(userPoints, userMapper::updateUserPointsBatch);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flush();
+        log.info("销量与积分缓冲已写回");
+    }
+
+    private <K> void flush(Map<K, Counter> counters, Function<Map<K, Long>, Integer> update) {
+        Map<K, Long> deltas = new TreeMap<>();
+        List<Counter> pending = new ArrayList<>();
+        List<Long> totals = new ArrayList<>();
+        for (Map.Entry<K, Counter> it : counters.entrySet()) {
+            Counter counter = it.getValue();
+            long total = counter.total.sum();
+            if (total == counter.flushed) {
+                // 已全部写回且本周期没有新增量，移除；移除前再次确认，期间若有新的累加则保留
+                counters.computeIfPresent(it.getKey(), (k, c) -> c.total.sum() == c.flushed ? null : c);
+                continue;
+            }
+            deltas.put(it.getKey(), total - counter.flushed);
+            pending.add(counter);
+            totals.add(total);
+            if (deltas.size() >= batchSize) {
+                write(deltas, pending, totals, update);
+            }
+        }
+        if (!deltas.isEmpty()) {
+            write(deltas, pending, totals, update);
+        }
+    }
+
+    private <K> void write(Map<K, Long> deltas, List<Counter> pending, List<Long> totals, Function<Map<K, Long>, Integer> update) {
+        try {
+            update.apply(deltas);
+            for (int i = 0; i < pending.size(); i++) {
+                pending.get(i).flushed = totals.get(i);
+            }
+        } catch (Exception e) {
+            log.error("写回计数器失败，将在下次重试", e);
+        }
+        deltas.clear();
+        pending.clear();
+        totals.clear();
+    }
+}
@@ -0,0 +1,162 @@
+package com.ymsz.config;
+
+import com.ymsz.mapper.DishMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>店铺后厨的排队模型，用于估算新订单需要等待的时间</p>
+ * <p>每个店铺只维护一个后厨预计忙完的时间戳 busyUntil：订单进入后厨时，busyUntil 从 max(busyUntil, 当前时间) 起向后推移订单的制作时长（菜品制作时间之和除以后厨并行度 kitchen.parallelism）；订单提前出餐或被取消时减去它尚未完成的部分。等待时间即 busyUntil 与当前时间之差，查询只需一次 Redis 访问，与队列长度无关</p>
+ * <p>每个订单的制作时长记录在同一个 hash 中，预计完成时间记录在 zset 中，已经过了预计完成时间的订单会在下一次入队时清理</p>
+ */
+@Slf4j
+@Component
+public class KitchenQueueModel {
+    private static final String BUSY_UNTIL_FIELD = "busyUntil";
+
+    /**
+     * 队列中最后一个订单完成后 key 保留的时间，毫秒
+     */
+    private static final long IDLE_EXPIRATION_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * KEYS[1] 队列 hash，KEYS[2] 完成时间 zset；ARGV[1] 当前时间，ARGV[2] 订单ID，ARGV[3] 制作时长，ARGV[4] 空闲后 key 保留的时间
+     */
+    private static final RedisScript<Long> ENQUEUE_SCRIPT = new DefaultRedisScript<>(
+            "local now = tonumber(ARGV[1])\n" +
+            "local done = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', now)\n" +
+            "for _, id in ipairs(done) do\n" +
+            "    redis.call('HDEL', KEYS[1], id)\n" +
+            "end\n" +
+            "if #done > 0 then\n" +
+            "    redis.call('ZREMRANGEBYSCORE', KEYS[2], '-inf', now)\n" +
+            "end\n" +
+            "local busy = tonumber(redis.call('HGET', KEYS[1], '" + BUSY_UNTIL_FIELD + "') or '0')\n" +
+            "if busy < now then\n" +
+            "    busy = now\n" +
+            "end\n" +
+            "busy = busy + tonumber(ARGV[3])\n" +
+            "redis.call('HSET', KEYS[1], '" + BUSY_UNTIL_FIELD + "', busy)\n" +
+            "redis.call('HINCRBY', KEYS[1], ARGV[2], ARGV[3])\n" +
+            "redis.call('ZADD', KEYS[2], busy, ARGV[2])\n" +
+            "redis.call('PEXPIREAT', KEYS[1], busy + tonumber(ARGV[4]))\n" +
+            "redis.call('PEXPIREAT', KEYS[2], busy + tonumber(ARGV[4]))\n" +
+            "return busy - now", Long.class);
+
+    /**
+     * KEYS 同上；ARGV[1] 当前时间，ARGV[2] 订单ID
+     */
+    private static final RedisScript<Long> COMPLETE_SCRIPT = new DefaultRedisScript<>(
+            "local now = tonumber(ARGV[1])\n" +
+            "local work = tonumber(redis.call('HGET', KEYS[1], ARGV[2]) or '0')\n" +
+            "local finish = tonumber(redis.call('ZSCORE', KEYS[2], ARGV[2]) or '0')\n" +
+            "redis.call('HDEL', KEYS[1], ARGV[2])\n" +
+            "redis.call('ZREM', KEYS[2], ARGV[2])\n" +
+            "local remain = math.min(work, finish - now)\n" +
+            "if remain <= 0 then\n" +
+            "    return 0\n" +
+            "end\n" +
+            "local busy = tonumber(redis.call('HGET', KEYS[1], '" + BUSY_UNTIL_FIELD + "') or '0')\n" +
+            "redis.call('HSET', KEYS[1], '" + BUSY_UNTIL_FIELD + "', math.max(now, busy - remain))\n" +
+            "return remain", Long.class);
+
+    private static final RedisScript<Long> WAITING_TIME_SCRIPT = new DefaultRedisScript<>(
+            "local busy = tonumber(redis.call('HGET', KEYS[1], '" + BUSY_UNTIL_FIELD + "') or '0')\n" +
+            "return math.max(0, busy - tonumber(ARGV[1]))", Long.class);
+
+    @Qualifier("myRedisTemplate")
+    @Autowired
+    private RedisTemplate redis;
+
+    @Autowired
+    private RedisCacheManager redisManager;
+
+    @Autowired
+    private DishMapper dishMapper;
+
+    /**
+     * 后厨可以同时制作的菜品数
+     */
+    @Value("${kitchen.parallelism:1}")
+    private double parallelism;
+
+    /**
+     * 订单进入后厨，同一订单加餐时可以重复调用，制作时长会累加
+     *
+     * @param storeId    店铺ID
+     * @param orderId    订单ID
+     * @param dishNumMap 展开套餐后的菜品ID -> 数目
+     */
+    public void enqueue(int storeId, String orderId, Map<Integer, Integer> dishNumMap) {
+        long work = (long) (getMakeTimeMs(dishNumMap) / parallelism);
+        if (work <= 0) {
+            return;
+        }
+        redisManager.executeScript(ENQUEUE_SCRIPT, keys(storeId),
+                System.currentTimeMillis(), orderId, work, IDLE_EXPIRATION_MS);
+    }
+
+    /**
+     * 订单出餐或被取消，从后厨队列中移除，订单不在队列中时什么也不做
+     */
+    public void complete(int storeId, String orderId) {
+        redisManager.executeScript(COMPLETE_SCRIPT, keys(storeId), System.currentTimeMillis(), orderId);
+    }
+
+    /**
+     * @return 新订单需要等待的时间，毫秒
+     */
+    public long getWaitingTimeMs(int storeId) {
+        Long ms = redisManager.executeScript(WAITING_TIME_SCRIPT,
+                keys(storeId).subList(0, 1), System.currentTimeMillis());
+        return ms == null ? 0 : ms;
+    }
+
+    private List<String> keys(int storeId) {
+        return Arrays.asList(RedisCacheManager.getKitchenQueueKey(storeId), RedisCacheManager.getKitchenQueueFinishKey(storeId));
+    }
+
+    /**
+     * 菜品制作时间之和，Redis 中缓存了菜品的制作时间（分钟），缓存失效时重新加载，同一时刻只有一个线程加载
+     */
+    private double getMakeTimeMs(Map<Integer, Integer> dishNumMap) {
+        List<Integer> ids = new ArrayList<>();
+        for (Integer id : dishNumMap.keySet()) {
+            if (id >= 0 && id < ComboIndex.COMBO_ID_START) {
+                ids.add(id);
+            }
+        }
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        List<Object> makeTimes = redis.opsForHash().multiGet(RedisCacheManager.DISH_MAKE_TIME_CACHE_KEY, ids);
+        if (makeTimes.contains(null)) {
+            redisManager.loadWithStats(RedisCacheManager.DISH_MAKE_TIME_CACHE_KEY, () -> {
+                redisManager.initRedisDishMakeTimeCache(dishMapper.queryDishes());
+                return true;
+            });
+            makeTimes = redis.opsForHash().multiGet(RedisCacheManager.DISH_MAKE_TIME_CACHE_KEY, ids);
+        }
+        double ms = 0;
+        for (int i = 0; i < ids.size(); i++) {
+            Object makeTime = makeTimes.get(i);
+            if (makeTime == null) {
+                log.warn("菜品 " + ids.get(i) + " 没有制作时间");
+                continue;
+            }
+            ms += ((Number) makeTime).doubleValue() * 60000 * dishNumMap.get(ids.get(i));
+        }
+        return ms;
+    }
+}
@@ -0,0 +1,425 @@
+package com.ymsz.config;
+
+import com.ymsz.mapper.UserMapper;
+import com.ymsz.mapper.UserMapper.MarkedTable;
+import com.ymsz.utils.RedisBitmap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>消费用户标记的变更日志，把喜欢、收藏、待选的修改在数秒内写入数据库</p>
+ * <p>UserServiceImpl 修改 bitmap 时在同一个脚本中向 {@link RedisCacheManager#MARKED_CHANGE_LOG_KEY} 追加一条记录。每次最多取 marked-change-log.batch-size 条，按（表, 用户, ID）合并，再与数据库中这些用户已有的记录比较，只写入真正变化的行；写入提交后才确认并删除这些记录，日志本身不裁剪，积压超过 marked-change-log.backlog-warn 条时告警</p>
+ * <p>多个节点属于同一个消费组，同一个（用户, ID）的前后两次修改可能由不同节点处理，提交顺序无法保证。因此写入的不是记录中的值而是 bitmap 中的当前值，提交后再读一次 bitmap，期间又被修改的记录不确认，稍后重放，数据库最终与 bitmap 一致</p>
+ * <p>写入失败或节点宕机时记录留在消费组的待确认列表中，任何节点都会接管超过 marked-change-log.claim-idle-ms 未确认的记录，与消费者名无关；一批失败时逐条重试，投递 marked-change-log.max-deliveries 次仍失败的记录移入 {@link RedisCacheManager#MARKED_CHANGE_LOG_DEAD_KEY}，不会阻塞后面的记录</p>
+ */
+@Slf4j
+@Component
+public class MarkedChangeLogConsumer {
+    private static final String GROUP = "marked-change-log-writer";
+
+    /**
+     * 没有待确认记录且空闲超过这么久的消费者从消费组中删除，它们通常是重新部署前的节点
+     */
+    private static final long STALE_CONSUMER_MS = 24 * 60 * 60 * 1000L;
+
+    private static final long BACKLOG_WARN_INTERVAL_MS = 60 * 1000L;
+
+    /**
+     * 一条解析后的变更记录
+     */
+    static final class Change {
+        final MarkedTable table;
+        final String userId;
+        final int id;
+        final boolean value;
+
+        Change(MarkedTable table, String userId, int id, boolean value) {
+            this.table = table;
+            this.userId = userId;
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    @Qualifier("myRedisTemplate")
+    @Autowired
+    private RedisTemplate redis;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${marked-change-log.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 消费者名，默认为主机名；未确认的记录由空闲时间接管，名字改变不会丢失记录
+     */
+    @Value("${marked-change-log.consumer:}")
+    private String consumerName;
+
+    /**
+     * 待确认的记录空闲超过这么久后由本节点接管重放
+     */
+    @Value("${marked-change-log.claim-idle-ms:60000}")
+    private long claimIdleMs;
+
+    /**
+     * 投递这么多次仍未确认的记录移入死信流
+     */
+    @Value("${marked-change-log.max-deliveries:5}")
+    private long maxDeliveries;
+
+    /**
+     * 日志中未删除的记录超过这么多条时告警
+     */
+    @Value("${marked-change-log.backlog-warn:100000}")
+    private long backlogWarn;
+
+    private final byte[] rawKey = RedisCacheManager.MARKED_CHANGE_LOG_KEY.getBytes(StandardCharsets.UTF_8);
+    private final byte[] rawDeadKey = RedisCacheManager.MARKED_CHANGE_LOG_DEAD_KEY.getBytes(StandardCharsets.UTF_8);
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile boolean groupCreated;
+    private long lastBacklogWarn;
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (consumerName == null || consumerName.isEmpty()) {
+            try {
+                consumerName = InetAddress.getLocalHost().getHostName();
+            } catch (Exception e) {
+                consumerName = "marked-change-log";
+            }
+        }
+        try {
+            createGroup();
+        } catch (Exception e) {
+            log.error("创建用户标记变更日志的消费组失败，将在下次消费时重试", e);
+        }
+    }
+
+    private void createGroup() {
+        try {
+            redis.execute((RedisCallback<String>) connection ->
+                    connection.xGroupCreate(rawKey, GROUP, ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            // 消费组已存在
+            if (e.getMessage() == null || !e.getMessage().contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+        groupCreated = true;
+    }
+
+    @Scheduled(fixedDelayString = "${marked-change-log.poll-ms:1000}")
+    public void poll() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (!groupCreated) {
+                createGroup();
+            }
+            reclaim();
+            while (true) {
+                List<ByteRecord> records = read();
+                if (records.isEmpty()) {
+                    break;
+                }
+                process(records);
+                if (records.size() < batchSize) {
+                    break;
+                }
+            }
+            checkBacklog();
+        } catch (Exception e) {
+            // Redis 被清空后消费组也不存在了
+            groupCreated = false;
+            log.error("消费用户标记变更日志失败，将在下次重试", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private List<ByteRecord> read() {
+        List<ByteRecord> records = (List<ByteRecord>) redis.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.xReadGroup(Consumer.from(GROUP, consumerName), StreamReadOptions.empty().count(batchSize),
+                        StreamOffset.create(rawKey, ReadOffset.lastConsumed())));
+        return records == null ? new ArrayList<>() : records;
+    }
+
+    /**
+     * 接管所有消费者（包括已经下线的）空闲过久的待确认记录，投递次数过多的移入死信流，其余重放
+     */
+    private void reclaim() {
+        PendingMessages pending = (PendingMessages) redis.execute((RedisCallback<PendingMessages>) connection ->
+                connection.xPending(rawKey, GROUP, Range.unbounded(), (long) batchSize));
+        Map<RecordId, Long> deliveries = new LinkedHashMap<>();
+        if (pending != null) {
+            for (PendingMessage message : pending) {
+                if (message.getElapsedTimeSinceLastDelivery().toMillis() >= claimIdleMs) {
+                    deliveries.put(message.getId(), message.getTotalDeliveryCount());
+                }
+            }
+        }
+        if (!deliveries.isEmpty()) {
+            // 带上 minIdle，已被其他节点先一步接管的记录不会重复接管
+            RedisStreamCommands.XClaimOptions options = RedisStreamCommands.XClaimOptions
+                    .minIdle(Duration.ofMillis(claimIdleMs)).ids(deliveries.keySet().toArray(new RecordId[0]));
+            List<ByteRecord> claimed = (List<ByteRecord>) redis.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.xClaim(rawKey, GROUP, consumerName, options));
+            List<ByteRecord> retry = new ArrayList<>();
+            List<ByteRecord> dead = new ArrayList<>();
+            for (ByteRecord record : claimed == null ? Collections.<ByteRecord>emptyList() : claimed) {
+                Long n = deliveries.get(record.getId());
+                (n != null && n >= maxDeliveries ? dead : retry).add(record);
+            }
+            if (!dead.isEmpty()) {
+                deadLetter(dead);
+            }
+            if (!retry.isEmpty()) {
+                log.info("接管用户标记变更 " + retry.size() + " 条");
+                process(retry);
+            }
+        }
+        removeStaleConsumers();
+    }
+
+    private void removeStaleConsumers() {
+        StreamInfo.XInfoConsumers consumers = (StreamInfo.XInfoConsumers) redis.execute(
+                (RedisCallback<StreamInfo.XInfoConsumers>) connection -> connection.xInfoConsumers(rawKey, GROUP));
+        for (int i = 0; consumers != null && i < consumers.size(); i++) {
+            StreamInfo.XInfoConsumer consumer = consumers.get(i);
+            if (!consumerName.equals(consumer.consumerName()) && consumer.pendingCount() == 0
+                    && consumer.idleTimeMs() > STALE_CONSUMER_MS) {
+                redis.execute((RedisCallback<Boolean>) connection ->
+                        connection.xGroupDelConsumer(rawKey, Consumer.from(GROUP, consumer.consumerName())));
+                log.info("删除长期空闲的用户标记变更日志消费者 " + consumer.consumerName());
+            }
+        }
+    }
+
+    /**
+     * 原样追加到死信流并记录原来的ID，再从日志中确认并删除
+     */
+    private void deadLetter(List<ByteRecord> records) {
+        RecordId[] ids = new RecordId[records.size()];
+        redis.execute((RedisCallback<Long>) connection -> {
+            for (int i = 0; i < records.size(); i++) {
+                ByteRecord record = records.get(i);
+                ids[i] = record.getId();
+                Map<byte[], byte[]> fields = new LinkedHashMap<>(record.getValue());
+                fields.put("id".getBytes(StandardCharsets.UTF_8), record.getId().getValue().getBytes(StandardCharsets.UTF_8));
+                connection.xAdd(StreamRecords.rawBytes(fields).withStreamKey(rawDeadKey));
+            }
+            connection.xAck(rawKey, GROUP, ids);
+            return connection.xDel(rawKey, ids);
+        });
+        log.error("用户标记变更 " + records.size() + " 条多次写入失败，已移入死信流 " + RedisCacheManager.MARKED_CHANGE_LOG_DEAD_KEY);
+    }
+
+    /**
+     * 整批写入失败时逐条重试，单条失败的记录留在待确认列表中，由 {@link #reclaim()} 重放
+     */
+    private void process(List<ByteRecord> records) {
+        try {
+            apply(records);
+        } catch (Exception e) {
+            if (records.size() == 1) {
+                log.error("写入用户标记变更 " + records.get(0).getId() + " 失败，稍后重试", e);
+                return;
+            }
+            log.warn("批量写入用户标记变更失败，逐条重试", e);
+            for (ByteRecord record : records) {
+                process(Collections.singletonList(record));
+            }
+        }
+    }
+
+    private void checkBacklog() {
+        Long len = (Long) redis.execute((RedisCallback<Long>) connection -> connection.xLen(rawKey));
+        long now = System.currentTimeMillis();
+        if (len != null && len > backlogWarn && now - lastBacklogWarn >= BACKLOG_WARN_INTERVAL_MS) {
+            lastBacklogWarn = now;
+            log.warn("用户标记变更日志积压 " + len + " 条，超过 " + backlogWarn + " 条，请检查数据库写入");
+        }
+    }
+
+    /**
+     * @return 无法解析时返回 null
+     */
+    static Change parse(ByteRecord record) {
+        Map<String, String> fields = new HashMap<>(8);
+        for (Map.Entry<byte[], byte[]> it : record.getValue().entrySet()) {
+            fields.put(new String(it.getKey(), StandardCharsets.UTF_8), new String(it.getValue(), StandardCharsets.UTF_8));
+        }
+        try {
+            return new Change(MarkedTable.valueOf(fields.get("t")), fields.get("u"), Integer.parseInt(fields.get("i")), "1".equals(fields.get("v")));
+        } catch (Exception e) {
+            log.warn("忽略无法解析的用户标记变更 " + record.getId() + "：" + fields);
+            return null;
+        }
+    }
+
+    /**
+     * 按（表, 用户, ID）合并，后面的记录覆盖前面的
+     *
+     * @return 表 -> 用户ID -> 菜品或店铺ID -> 是否标记
+     */
+    static Map<MarkedTable, Map<String, Map<Integer, Boolean>>> coalesce(List<Change> changes) {
+        Map<MarkedTable, Map<String, Map<Integer, Boolean>>> ans = new EnumMap<>(MarkedTable.class);
+        for (Change change : changes) {
+            ans.computeIfAbsent(change.table, k -> new HashMap<>())
+                    .computeIfAbsent(change.userId, k -> new HashMap<>())
+                    .put(change.id, change.value);
+        }
+        return ans;
+    }
+
+    /**
+     * @return bitmap 的 key -> 原始字节，bitmap 不存在时值为 null
+     */
+    private Map<String, byte[]> readBitmaps(Map<MarkedTable, Map<String, Map<Integer, Boolean>>> changes) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<MarkedTable, Map<String, Map<Integer, Boolean>>> it : changes.entrySet()) {
+            for (String userId : it.getValue().keySet()) {
+                keys.add(RedisCacheManager.getUserMarkedCacheKey(it.getKey(), userId));
+            }
+        }
+        Map<String, byte[]> ans = new HashMap<>(keys.size() * 2);
+        if (keys.isEmpty()) {
+            return ans;
+        }
+        byte[][] rawKeys = new byte[keys.size()][];
+        for (int i = 0; i < rawKeys.length; i++) {
+            rawKeys[i] = keys.get(i).getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = (List<byte[]>) redis.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        for (int i = 0; i < keys.size(); i++) {
+            ans.put(keys.get(i), values == null ? null : values.get(i));
+        }
+        return ans;
+    }
+
+    private void apply(List<ByteRecord> records) {
+        List<Change> parsed = new ArrayList<>(records.size());
+        for (ByteRecord record : records) {
+            parsed.add(parse(record));
+        }
+        List<Change> valid = new ArrayList<>(parsed.size());
+        for (Change change : parsed) {
+            if (change != null) {
+                valid.add(change);
+            }
+        }
+        Map<MarkedTable, Map<String, Map<Integer, Boolean>>> changes = coalesce(valid);
+
+        // 以 bitmap 中的当前值为准，bitmap 已过期时才使用记录中的值
+        Map<String, byte[]> before = readBitmaps(changes);
+        for (Map.Entry<MarkedTable, Map<String, Map<Integer, Boolean>>> it : changes.entrySet()) {
+            for (Map.Entry<String, Map<Integer, Boolean>> user : it.getValue().entrySet()) {
+                byte[] bitmap = before.get(RedisCacheManager.getUserMarkedCacheKey(it.getKey(), user.getKey()));
+                if (bitmap != null) {
+                    user.getValue().replaceAll((id, v) -> RedisBitmap.get(bitmap, id));
+                }
+            }
+        }
+
+        int[] n = new int[2];
+        transactionTemplate.executeWithoutResult(status -> {
+            for (Map.Entry<MarkedTable, Map<String, Map<Integer, Boolean>>> it : changes.entrySet()) {
+                MarkedTable table = it.getKey();
+                Map<String, Map<Integer, Boolean>> byUser = it.getValue();
+                Set<String> stored = new HashSet<>();
+                for (Map<String, Object> row : userMapper.queryMarkedByUsers(table, new ArrayList<>(byUser.keySet()))) {
+                    stored.add(row.get("user_id") + ":" + ((Number) row.get("id")).intValue());
+                }
+                List<Map.Entry<String, Integer>> adds = new ArrayList<>();
+                List<Map.Entry<String, Integer>> removes = new ArrayList<>();
+                for (Map.Entry<String, Map<Integer, Boolean>> user : byUser.entrySet()) {
+                    for (Map.Entry<Integer, Boolean> mark : user.getValue().entrySet()) {
+                        boolean exists = stored.contains(user.getKey() + ":" + mark.getKey());
+                        if (mark.getValue() && !exists) {
+                            adds.add(new AbstractMap.SimpleEntry<>(user.getKey(), mark.getKey()));
+                        } else if (!mark.getValue() && exists) {
+                            removes.add(new AbstractMap.SimpleEntry<>(user.getKey(), mark.getKey()));
+                        }
+                    }
+                }
+                if (!adds.isEmpty()) {
+                    n[0] += userMapper.addMarkedBatch(table, adds);
+                }
+                if (!removes.isEmpty()) {
+                    n[1] += userMapper.removeMarkedBatch(table, removes);
+                }
+            }
+        });
+
+        // 提交期间 bitmap 又被修改的记录先不确认，其他节点可能先于本节点提交了更新的值，稍后重放时再以 bitmap 为准写入
+        Map<String, byte[]> after = readBitmaps(changes);
+        List<RecordId> ack = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            Change change = parsed.get(i);
+            if (change != null) {
+                byte[] bitmap = after.get(RedisCacheManager.getUserMarkedCacheKey(change.table, change.userId));
+                boolean written = changes.get(change.table).get(change.userId).get(change.id);
+                if (bitmap != null && RedisBitmap.get(bitmap, change.id) != written) {
+                    continue;
+                }
+            }
+            ack.add(records.get(i).getId());
+        }
+        if (!ack.isEmpty()) {
+            RecordId[] ids = ack.toArray(new RecordId[0]);
+            // 已经提交，确认后删除，日志中只保留尚未写入的记录
+            redis.execute((RedisCallback<Long>) connection -> {
+                connection.xAck(rawKey, GROUP, ids);
+                return connection.xDel(rawKey, ids);
+            });
+        }
+        log.info("用户标记变更 " + records.size() + " 条，新增 " + n[0] + " 行，删除 " + n[1] + " 行"
+                + (ack.size() < records.size() ? "，" + (records.size() - ack.size()) + " 条在写入期间再次被修改，稍后重放" : ""));
+    }
+}
@@ -0,0 +1,367 @@
+package com.ymsz.config;
+
+import com.ymsz.mapper.UserMapper;
+import com.ymsz.mapper.UserMapper.MarkedTable;
+import com.ymsz.utils.RedisBitmap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * <p>将 redis 中用户喜欢、收藏、待选的 bitmap 同步到数据库，一切以 redis 为准，移除 redis 中没有的，增加 redis 中有的，同步后删除 bitmap</p>
+ * <p>用户按 ID 排序后分批交给线程池：每批用户的所有 bitmap 一次 MGET 取回，数据库中的记录一次查询取回，在内存中求差集后以多行 INSERT、DELETE 写入，每批一个事务</p>
+ * <p>已经完成的连续批次中最后一个用户ID作为断点保存在 redis 中，宕机后下一次执行（包括节点重启时）从断点之后继续；多个节点同时触发时只有持有锁的节点执行</p>
+ * <p>同步与 MarkedChangeLogConsumer 并发写入数据库，事务提交后重新读取 bitmap，同步期间被修改过的用户以新的 bitmap 再同步一次，不会用旧的快照覆盖已经写入的修改</p>
+ * <p>同步在自己的后台线程中执行，不占用 @Scheduled 的调度线程</p>
+ */
+@Slf4j
+@Component
+public class MarkedSyncJob {
+    /**
+     * 只删除同步期间没有被修改过的 bitmap，KEYS 与 ARGV 一一对应，ARGV 为读取时的值
+     */
+    private static final RedisScript<Long> DELETE_IF_UNCHANGED_SCRIPT = new DefaultRedisScript<>(
+            "local n = 0\n" +
+            "for i = 1, #KEYS do\n" +
+            "    if redis.call('GET', KEYS[i]) == ARGV[i] then\n" +
+            "        redis.call('DEL', KEYS[i])\n" +
+            "        n = n + 1\n" +
+            "    end\n" +
+            "end\n" +
+            "return n", Long.class);
+
+    /**
+     * 锁的值与自己加锁时的值一致时才删除，锁过期后被其他节点持有时不会误删
+     */
+    private static final RedisScript<Long> UNLOCK_SCRIPT = new DefaultRedisScript<>(
+            "if redis.call('GET', KEYS[1]) == ARGV[1] then\n" +
+            "    return redis.call('DEL', KEYS[1])\n" +
+            "end\n" +
+            "return 0", Long.class);
+
+    /**
+     * 一批用户最多同步的次数，用户一直在修改时留给下一次同步
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final class Kind {
+        final MarkedTable table;
+        final Function<String, String> keyOf;
+
+        Kind(MarkedTable table, Function<String, String> keyOf) {
+            this.table = table;
+            this.keyOf = keyOf;
+        }
+    }
+
+    /**
+     * bitmap 与表的对应关系，与 UserServiceImpl 初始化缓存时一致
+     */
+    private static final Kind[] KINDS = {
+            new Kind(MarkedTable.FAVORITE_DISH, RedisCacheManager::getUserLikeDishCacheKey),
+            new Kind(MarkedTable.COLLECTED_DISH, RedisCacheManager::getUserCollectedDishCacheKey),
+            new Kind(MarkedTable.WILL_BUY_DISH, RedisCacheManager::getUserWillBuyDishCacheKey),
+            new Kind(MarkedTable.COLLECTED_STORE, RedisCacheManager::getUserCollectedStoreCacheKey)
+    };
+
+    @Qualifier("myRedisTemplate")
+    @Autowired
+    private RedisTemplate redis;
+
+    @Autowired
+    private RedisCacheManager redisManager;
+
+    @Autowired
+    private UserMapper userMapper;
+
+    private TransactionTemplate transactionTemplate;
+
+    @Value("${marked-sync.threads:4}")
+    private int threads;
+
+    /**
+     * 每批的用户数
+     */
+    @Value("${marked-sync.users-per-chunk:200}")
+    private int usersPerChunk;
+
+    /**
+     * 一条 INSERT 或 DELETE 最多包含的行数
+     */
+    @Value("${marked-sync.rows-per-statement:500}")
+    private int rowsPerStatement;
+
+    /**
+     * 同步锁的过期时间，持有锁的节点宕机后其他节点最多等待这么久
+     */
+    @Value("${marked-sync.lock-seconds:3600}")
+    private long lockSeconds;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> new Thread(r, "marked-sync"));
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        worker.shutdownNow();
+    }
+
+    /**
+     * 上一次同步被中断时，启动后在后台从断点处继续
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeIfInterrupted() {
+        if (Boolean.TRUE.equals(redis.hasKey(RedisCacheManager.MARKED_SYNC_CHECKPOINT_KEY))) {
+            submit();
+        }
+    }
+
+    /**
+     * 在后台线程中同步，已经在同步时什么也不做
+     */
+    public void submit() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            worker.execute(this::runLocked);
+        } catch (RuntimeException e) {
+            running.set(false);
+            throw e;
+        }
+    }
+
+    private void runLocked() {
+        try {
+            String token = UUID.randomUUID().toString();
+            Boolean locked = redis.opsForValue().setIfAbsent(RedisCacheManager.MARKED_SYNC_LOCK_KEY,
+                    token, lockSeconds, TimeUnit.SECONDS);
+            if (!Boolean.TRUE.equals(locked)) {
+                log.info("其他节点正在同步用户标记");
+                return;
+            }
+            try {
+                syncAll();
+            } finally {
+                // 参数必须与 SET 时一样经过值序列化器编码
+                redisManager.executeScript(UNLOCK_SCRIPT, Collections.singletonList(RedisCacheManager.MARKED_SYNC_LOCK_KEY),
+                        (Object) redis.getValueSerializer().serialize(token));
+            }
+        } catch (Exception e) {
+            log.error("同步用户标记失败", e);
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void syncAll() {
+        String after = (String) redis.opsForValue().get(RedisCacheManager.MARKED_SYNC_CHECKPOINT_KEY);
+        if (after != null) {
+            log.info("从断点 " + after + " 之后继续同步用户标记");
+        }
+        List<String> userIds = userMapper.queryUserIdsAfter(after);
+        List<List<String>> chunks = new ArrayList<>();
+        for (int i = 0; i < userIds.size(); i += usersPerChunk) {
+            chunks.add(userIds.subList(i, Math.min(userIds.size(), i + usersPerChunk)));
+        }
+        long start = System.currentTimeMillis();
+        AtomicLong added = new AtomicLong();
+        AtomicLong removed = new AtomicLong();
+        boolean[] done = new boolean[chunks.size()];
+        int[] donePrefix = {0};
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, chunks.size())));
+        boolean ok = true;
+        try {
+            List<Future<?>> futures = new ArrayList<>(chunks.size());
+            for (int i = 0; i < chunks.size(); i++) {
+                int chunk = i;
+                futures.add(pool.submit(() -> {
+                    long[] n = syncChunk(chunks.get(chunk));
+                    added.addAndGet(n[0]);
+                    removed.addAndGet(n[1]);
+                    checkpoint(chunks, done, donePrefix, chunk);
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    ok = false;
+                    log.error("同步用户标记失败", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        if (ok) {
+            redis.delete(RedisCacheManager.MARKED_SYNC_CHECKPOINT_KEY);
+        }
+        log.info("同步用户标记" + (ok ? "完成" : "未完成，下一次从断点继续") + "，用户 " + userIds.size() + " 个，新增 " + added.get()
+                + " 条，删除 " + removed.get() + " 条，耗时 " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * 批次可能乱序完成，断点只推进到连续完成的最后一批
+     */
+    private synchronized void checkpoint(List<List<String>> chunks, boolean[] done, int[] donePrefix, int chunk) {
+        done[chunk] = true;
+        int prefix = donePrefix[0];
+        while (prefix < done.length && done[prefix]) {
+            prefix++;
+        }
+        if (prefix > donePrefix[0]) {
+            donePrefix[0] = prefix;
+            List<String> last = chunks.get(prefix - 1);
+            redis.opsForValue().set(RedisCacheManager.MARKED_SYNC_CHECKPOINT_KEY, last.get(last.size() - 1));
+        }
+    }
+
+    /**
+     * @return {新增的行数, 删除的行数}
+     */
+    private long[] syncChunk(List<String> userIds) {
+        long[] n = new long[2];
+        List<String> users = userIds;
+        for (int attempt = 0; !users.isEmpty(); attempt++) {
+            if (attempt == MAX_ATTEMPTS) {
+                log.warn(users.size() + " 个用户在同步期间持续修改标记，留给下一次同步");
+                break;
+            }
+            users = syncUsers(users, n);
+        }
+        return n;
+    }
+
+    private List<byte[]> readBitmaps(byte[][] rawKeys) {
+        return (List<byte[]>) redis.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+    }
+
+    /**
+     * 以一次读取的快照同步一批用户
+     *
+     * @param n 累加新增与删除的行数
+     * @return 同步期间 bitmap 被修改过、需要重新同步的用户
+     */
+    private List<String> syncUsers(List<String> userIds, long[] n) {
+        byte[][] rawKeys = new byte[userIds.size() * KINDS.length][];
+        for (int u = 0; u < userIds.size(); u++) {
+            for (int k = 0; k < KINDS.length; k++) {
+                rawKeys[u * KINDS.length + k] = KINDS[k].keyOf.apply(userIds.get(u)).getBytes(StandardCharsets.UTF_8);
+            }
+        }
+        List<byte[]> bitmaps = readBitmaps(rawKeys);
+        if (bitmaps == null) {
+            return Collections.emptyList();
+        }
+
+        transactionTemplate.executeWithoutResult(status -> {
+            for (int k = 0; k < KINDS.length; k++) {
+                // 没有 bitmap 的用户以数据库为准，不需要同步
+                Map<String, byte[]> cached = new HashMap<>();
+                for (int u = 0; u < userIds.size(); u++) {
+                    byte[] bitmap = bitmaps.get(u * KINDS.length + k);
+                    if (bitmap != null) {
+                        cached.put(userIds.get(u), bitmap);
+                    }
+                }
+                if (cached.isEmpty()) {
+                    continue;
+                }
+                Map<String, TreeSet<Integer>> stored = new HashMap<>();
+                for (Map<String, Object> row : userMapper.queryMarkedByUsers(KINDS[k].table, new ArrayList<>(cached.keySet()))) {
+                    stored.computeIfAbsent(String.valueOf(row.get("user_id")), key -> new TreeSet<>())
+                            .add(((Number) row.get("id")).intValue());
+                }
+                List<Map.Entry<String, Integer>> adds = new ArrayList<>();
+                List<Map.Entry<String, Integer>> removes = new ArrayList<>();
+                for (Map.Entry<String, byte[]> it : cached.entrySet()) {
+                    diff(it.getKey(), RedisBitmap.decode(it.getValue()), stored.get(it.getKey()), adds, removes);
+                }
+                for (int i = 0; i < adds.size(); i += rowsPerStatement) {
+                    n[0] += userMapper.addMarkedBatch(KINDS[k].table, adds.subList(i, Math.min(adds.size(), i + rowsPerStatement)));
+                }
+                for (int i = 0; i < removes.size(); i += rowsPerStatement) {
+                    n[1] += userMapper.removeMarkedBatch(KINDS[k].table, removes.subList(i, Math.min(removes.size(), i + rowsPerStatement)));
+                }
+            }
+        });
+
+        // 提交后重新读取，被修改过的 bitmap 的变更可能已经由变更日志写入数据库，又被上面的旧快照覆盖，需要重新同步
+        List<byte[]> current = readBitmaps(rawKeys);
+        Set<String> changed = new LinkedHashSet<>();
+        List<String> keys = new ArrayList<>();
+        List<Object> expected = new ArrayList<>();
+        for (int i = 0; i < rawKeys.length; i++) {
+            if (bitmaps.get(i) == null) {
+                continue;
+            }
+            byte[] now = current == null ? null : current.get(i);
+            if (now != null && !Arrays.equals(now, bitmaps.get(i))) {
+                changed.add(userIds.get(i / KINDS.length));
+            } else {
+                keys.add(new String(rawKeys[i], StandardCharsets.UTF_8));
+                expected.add(bitmaps.get(i));
+            }
+        }
+        // 已经写入数据库，删除同步期间没有被修改过的 bitmap，下次访问时从数据库重新加载
+        if (!keys.isEmpty()) {
+            redisManager.executeScript(DELETE_IF_UNCHANGED_SCRIPT, keys, expected.toArray());
+        }
+        return new ArrayList<>(changed);
+    }
+
+    /**
+     * 两个有序集合求差集，cached 中有而 stored 中没有的新增，反之删除
+     */
+    static void diff(String userId, int[] cached, TreeSet<Integer> stored,
+                             List<Map.Entry<String, Integer>> adds, List<Map.Entry<String, Integer>> removes) {
+        int[] db = stored == null ? new int[0] : stored.stream().mapToInt(Integer::intValue).toArray();
+        int i = 0;
+        int j = 0;
+        while (i < cached.length || j < db.length) {
+            if (j == db.length || (i < cached.length && cached[i] < db[j])) {
+                adds.add(new AbstractMap.SimpleEntry<>(userId, cached[i++]));
+            } else if (i == cached.length || db[j] < cached[i]) {
+                removes.add(new AbstractMap.SimpleEntry<>(userId, db[j++]));
+            } else {
+                i++;
+                j++;
+            }
+        }
+    }
+}
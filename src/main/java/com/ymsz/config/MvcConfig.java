@@ -1,5 +1,6 @@
 package com.ymsz.config;
 
+import com.ymsz.interceptor.AdminInterceptor;
 import com.ymsz.interceptor.MyInterceptor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.annotation.Bean;
@@ -28,6 +29,11 @@ public class MvcConfig  implements WebMvcConfigurer {
         return new MyInterceptor();
     }
 
+    @Bean
+    public AdminInterceptor adminInterceptor(){
+        return new AdminInterceptor();
+    }
+
 
     /**
      * 自定义策略
@@ -70,6 +76,8 @@ public class MvcConfig  implements WebMvcConfigurer {
     public  void addInterceptors(InterceptorRegistry registry){
         log.info("InterceptorRegistry registry url拦截器注册加载");
         //addPathPatterns 需要拦截的路径，excludePathPatterns 放行的路径
-        registry.addInterceptor(myInterceptor()).addPathPatterns("/**").excludePathPatterns("/login");
+        registry.addInterceptor(myInterceptor()).addPathPatterns("/**").excludePathPatterns("/login", "/admin/**");
+        // 后台接口只接受管理员令牌，就绪探针供负载均衡访问，不需要令牌
+        registry.addInterceptor(adminInterceptor()).addPathPatterns("/admin/**").excludePathPatterns("/admin/get_cache_readiness");
     }
 }
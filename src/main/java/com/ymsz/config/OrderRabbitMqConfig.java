@@ -1,5 +1,6 @@
 package com.ymsz.config;
 
+import org.springframework.amqp.core.AcknowledgeMode;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
 import org.springframework.amqp.core.DirectExchange;
@@ -10,6 +11,7 @@ import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.rabbit.listener.RabbitListenerContainerFactory;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
@@ -50,11 +52,24 @@ public class OrderRabbitMqConfig {
     public static final String ORDER_ADD_DEAD_QUEUE = "orderAddDeadQueue";
     public static final String ORDER_ADD_DEAD_ROUTEING_KEY = "orderAddDeadKey";
 
+    /**
+     * 添加订单相关，其他消费者正在处理的重复消息暂存在延迟队列中，过期后回到添加订单队列
+     */
+    public static final String ORDER_ADD_RETRY_QUEUE = "orderAddRetryQueue";
+    public static final String ORDER_ADD_RETRY_ROUTEING_KEY = "orderAddRetryKey";
+    /**重复消息5秒后再处理*/
+    private static final long ORDER_ADD_RETRY_DELAY = 1000 * 5L;
+
     /**
      * 回滚库存相关，定义回滚队列和路由
      */
     public static final String ROLL_BACK_STOCK_QUEUE = "rollBackStockQueue";
     public static final String ROLL_BACK_STOCK_ROUTEING_KEY = "rollBackStockKey";
+    /**
+     * 回滚消息是 菜品ID -> 数目，以下两个负数 key 分别保存店铺ID与预扣库存的下单策略
+     */
+    public static final int ROLL_BACK_STORE_ID_KEY = -1;
+    public static final int ROLL_BACK_STRATEGY_KEY = -2;
 
 
     /**
@@ -95,6 +110,30 @@ public class OrderRabbitMqConfig {
         factory.setMessageConverter(new Jackson2JsonMessageConverter());
         return factory;
     }
+
+    /**
+     * <p>批量消费订单的容器，每次最多取 batchSize 条消息交给监听器，不足一批时最多等待 receiveTimeout</p>
+     * <p>由监听器手动确认，预取数目为两批，以便处理当前批次时下一批已经在路上</p>
+     */
+    @Bean
+    public RabbitListenerContainerFactory<?> batchRabbitListenerContainerFactory(ConnectionFactory connectionFactory,
+                                                                             @Value("${order.consumer.batch-size:50}") int batchSize,
+                                                                             @Value("${order.consumer.receive-timeout-ms:100}") long receiveTimeout,
+                                                                             @Value("${order.consumer.concurrency:2}") int concurrency,
+                                                                             @Value("${order.consumer.max-concurrency:4}") int maxConcurrency) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        factory.setConnectionFactory(connectionFactory);
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(receiveTimeout);
+        factory.setPrefetchCount(batchSize * 2);
+        factory.setConcurrentConsumers(concurrency);
+        factory.setMaxConcurrentConsumers(maxConcurrency);
+        factory.setDefaultRequeueRejected(false);
+        return factory;
+    }
     /**
 
      * 创建直连交换机
@@ -165,6 +204,31 @@ public class OrderRabbitMqConfig {
         return BindingBuilder.bind(queue).to(getDirectExchange).with(ORDER_ADD_ROUTEING_KEY);
     }
 
+    /**
+     * 创建添加订单的延迟重试队列，没有消费者，消息过期后经由正常交换机回到添加订单队列
+     * @return
+     */
+    @Bean(name = "getOrderAddRetryQueue")
+    public Queue getOrderAddRetryQueue() {
+        Map<String, Object> args = new HashMap<>(5);
+        args.put("x-dead-letter-exchange", ORDER_EXCHANGE);
+        args.put("x-dead-letter-routing-key", ORDER_ADD_ROUTEING_KEY);
+        args.put("x-message-ttl", ORDER_ADD_RETRY_DELAY);
+        return new Queue(ORDER_ADD_RETRY_QUEUE, true, false, false, args);
+    }
+
+    /**
+     * 将延迟重试队列与交换机路由绑定
+     * @param getDirectExchange
+     * @param queue
+     * @return
+     */
+    @Bean
+    public Binding bindOrderAddRetryQueue(
+            @Qualifier(value = "getDirectExchange") DirectExchange getDirectExchange, @Qualifier(value = "getOrderAddRetryQueue") Queue queue) {
+        return BindingBuilder.bind(queue).to(getDirectExchange).with(ORDER_ADD_RETRY_ROUTEING_KEY);
+    }
+
     /**
      * 死新队列配置
      * @return
@@ -0,0 +1,107 @@
+package com.ymsz.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * <p>订单处理结果通知</p>
+ * <p>消费者处理完订单后写入结果并通过 Redis 发布订阅广播到所有节点，每个节点唤醒本地正在等待该订单结果的请求，客户端不再需要轮询</p>
+ */
+@Slf4j
+@Component
+public class OrderResultNotifier implements MessageListener {
+    public static final String ORDER_RESULT_CHANNEL = "A-redis-channel:order-result";
+
+    /**
+     * 结果在 Redis 中保留的时间，秒
+     */
+    private static final long RESULT_EXPIRATION_SECONDS = 180;
+
+    @Qualifier("myRedisTemplate")
+    @Autowired
+    private RedisTemplate redis;
+
+    private final Map<String, List<IntConsumer>> waiters = new ConcurrentHashMap<>();
+
+    /**
+     * 等待订单结果，结果为 1 表示成功，-1 表示失败
+     */
+    public void subscribe(String orderId, IntConsumer callback) {
+        waiters.computeIfAbsent(orderId, k -> new CopyOnWriteArrayList<>()).add(callback);
+    }
+
+    public void unsubscribe(String orderId, IntConsumer callback) {
+        waiters.computeIfPresent(orderId, (k, list) -> {
+            list.remove(callback);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    /**
+     * 写入订单结果并广播
+     *
+     * @param orderId 订单ID，即消息ID
+     * @param success 是否成功
+     */
+    public void publishResult(String orderId, boolean success) {
+        String key = RedisCacheManager.getOrderMessageCacheKey(orderId);
+        redis.opsForValue().set(key, success ? 1 : -1);
+        redis.expire(key, RESULT_EXPIRATION_SECONDS, TimeUnit.SECONDS);
+        byte[] channel = ORDER_RESULT_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        byte[] body = (orderId + ":" + (success ? 1 : -1)).getBytes(StandardCharsets.UTF_8);
+        redis.execute((RedisCallback<Long>) connection -> connection.publish(channel, body));
+    }
+
+    /**
+     * 在当前事务结束后写入结果并广播，事务回滚时结果为失败；没有事务时立即发布
+     */
+    public void publishAfterCompletion(String orderId, boolean success) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publishResult(orderId, success);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                publishResult(orderId, success && status == STATUS_COMMITTED);
+            }
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int i = body.lastIndexOf(':');
+        if (i < 0) {
+            return;
+        }
+        List<IntConsumer> list = waiters.remove(body.substring(0, i));
+        if (list == null) {
+            return;
+        }
+        int result = Integer.parseInt(body.substring(i + 1));
+        for (IntConsumer callback : list) {
+            try {
+                callback.accept(result);
+            } catch (Exception e) {
+                log.warn("通知订单结果失败", e);
+            }
+        }
+    }
+}
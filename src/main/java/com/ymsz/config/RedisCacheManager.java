@@ -1,14 +1,40 @@
 package com.ymsz.config;
 
+import com.ymsz.mapper.UserMapper.MarkedTable;
 import com.ymsz.pojo.Dish;
+import com.ymsz.utils.RedisBitmap;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisOperations;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 /**
  * REDIS缓存管理器，该类维护着一系列 redis 参数以及初始化任务和定时任务
@@ -18,12 +44,36 @@ import java.util.concurrent.TimeUnit;
  * @date 2021/12/11
  * @email happysnaker@foxmail.com
  */
+@Slf4j
 @Component
 public class RedisCacheManager {
     @Qualifier("myRedisTemplate")
     @Autowired
     private RedisTemplate redis;
 
+    /**
+     * 提前刷新的激进程度，越大越早刷新，不大于 0 时不提前刷新
+     */
+    /**
+     * 在途库存在没有任何订单时保留的时间，消息在此期间内一定已被消费或进入死信队列
+     */
+    private static final long INFLIGHT_STOCK_EXPIRATION_SECONDS = 24 * 60 * 60;
+
+    @Value("${cache.early-refresh-beta:1.0}")
+    private double earlyRefreshBeta;
+
+    /**
+     * 本节点正在加载的 key，同一个 key 同一时刻只有一个线程访问数据库，其余线程等待其结果
+     */
+    private final Map<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder earlyRefreshCount = new LongAdder();
+    private final LongAdder loadCount = new LongAdder();
+    private final LongAdder loadErrorCount = new LongAdder();
+    private final LongAdder loadTimeMs = new LongAdder();
+
     /**
      * <p>前缀 A 表示这属于小程序端的 key，key 中格式包含了 key 的数据类型</p>
      * <p>首页菜品静态数据的缓存 key</p>
@@ -43,13 +93,39 @@ public class RedisCacheManager {
      */
     public static final String DISH_MAKE_TIME_CACHE_KEY = "A-redis-hash:dish-make-time-key";
     /**
-     * 菜品等待队列缓存
+     * 地址 -> "经度,纬度"，Hash-Key，不过期，每个地址只解析一次
      */
-    public static final String DISH_WAITING_QUEUE_KEY = "A-redis-list:dish-queue-key";
+    public static final String GEOCODE_CACHE_KEY = "A-redis-hash:geocode-key";
     /**
      * 标识某桌位上是否存在一个订单
      */
     public static final String ORDER_STATUS_KEY = "A-redis-bit:order-status-key";
+    /**
+     * 缓存已经全部重建的标记，Redis 重启或被清空后标记消失，节点据此重新加载缓存
+     */
+    public static final String CACHE_READY_KEY = "A-redis-kv:cache-ready-key";
+    /**
+     * 正在重建缓存的节点持有的锁，同一时间只有一个节点重建
+     */
+    public static final String CACHE_REHYDRATING_KEY = "A-redis-kv:cache-rehydrating-key";
+
+    /**
+     * 用户标记同步到数据库的断点，即已经同步完成的最后一个用户ID，同步全部完成后删除
+     */
+    public static final String MARKED_SYNC_CHECKPOINT_KEY = "A-redis-kv:marked-sync-checkpoint-key";
+    /**
+     * 正在同步用户标记的节点持有的锁
+     */
+    public static final String MARKED_SYNC_LOCK_KEY = "A-redis-kv:marked-sync-lock-key";
+    /**
+     * 用户标记的变更日志，每一项包含 t（MarkedTable 的名称）、u（用户ID）、i（菜品或店铺ID）、v（1 标记，0 取消）
+     */
+    public static final String MARKED_CHANGE_LOG_KEY = "A-redis-stream:marked-change-log-key";
+
+    /**
+     * 多次写入失败的用户标记变更，字段与变更日志相同，另有 id 为原来的记录ID
+     */
+    public static final String MARKED_CHANGE_LOG_DEAD_KEY = "A-redis-stream:marked-change-log-dead-key";
 
     /**
      * 前缀 B 表示这属于后台的 key
@@ -61,6 +137,13 @@ public class RedisCacheManager {
     public static final String STORE_WORKING_STATUS_KEY = "B-redis-bitmap:store-enable-key";
     public static final String STORE_SUP_TAKEOUT_STATUS_KEY = "B-redis-bitmap:store-tot-key";
 
+    /**
+     * 缓存值上一次加载的耗时，毫秒，与缓存值同时过期，用于决定是否提前刷新
+     */
+    public static String getLoadTimeCacheKey(String key) {
+        return key + "&load-time";
+    }
+
     public static String getOrderMessageCacheKey(String mid) {
         return "A-redis-kv:order-msg-key?msgId=" + mid;
     }
@@ -70,6 +153,41 @@ public class RedisCacheManager {
         return "A-redis-hash:dish-stock-key?storeId=" + storeId;
     }
 
+    /**
+     * 店铺在途的库存，菜品ID -> 已经发送到消息队列、但消费者尚未在数据库中扣减的数目，从数据库加载库存时需要减去
+     */
+    public static String getDishStockInflightKey(int storeId) {
+        return "A-redis-hash:dish-stock-inflight-key?storeId=" + storeId;
+    }
+
+    /**
+     * 店铺库存缓存的版本号，每次强制刷新库存缓存时自增，刷新前租出的库存随之作废
+     */
+    public static String getDishStockEpochKey(int storeId) {
+        return "A-redis-kv:dish-stock-epoch-key?storeId=" + storeId;
+    }
+
+    /**
+     * 店铺某个营业日的取餐码序号
+     */
+    public static String getFetchMealCodeKey(int storeId, String day) {
+        return "A-redis-kv:fetch-meal-code-key?storeId=" + storeId + "&day=" + day;
+    }
+
+    /**
+     * 店铺后厨队列，busyUntil 为后厨预计忙完的时间戳，其余字段为订单ID -> 订单的制作时长
+     */
+    public static String getKitchenQueueKey(int storeId) {
+        return "A-redis-hash:kitchen-queue-key?storeId=" + storeId;
+    }
+
+    /**
+     * 店铺后厨队列中订单预计完成的时间，用于清理已经完成的订单
+     */
+    public static String getKitchenQueueFinishKey(int storeId) {
+        return "A-redis-zset:kitchen-queue-finish-key?storeId=" + storeId;
+    }
+
     public static String getIpCacheKey(String ip) {
         return "A-redis-kv:ip-cache?ip=" + ip;
     }
@@ -94,6 +212,19 @@ public class RedisCacheManager {
         return "A-redis-bitmap:user-collected-store-cache?uid=" + userId;
     }
 
+    public static String getUserMarkedCacheKey(MarkedTable table, String userId) {
+        switch (table) {
+            case FAVORITE_DISH:
+                return getUserLikeDishCacheKey(userId);
+            case COLLECTED_DISH:
+                return getUserCollectedDishCacheKey(userId);
+            case WILL_BUY_DISH:
+                return getUserWillBuyDishCacheKey(userId);
+            default:
+                return getUserCollectedStoreCacheKey(userId);
+        }
+    }
+
     public static Date getTodayDate() {
         Date date = new Date(System.currentTimeMillis());
         date.setHours(0);
@@ -112,14 +243,279 @@ public class RedisCacheManager {
     /**
      * 默认的过期时间为 1 小时，适合缓存长时间不变的数据
      */
-    private static final long DEFAULT_EXPIRATION_TIME_SECONDS = 60 * 60;
+    static final long DEFAULT_EXPIRATION_TIME_SECONDS = 60 * 60;
+
+    /**
+     * {@link #deductDishStock(int, Map)} 的返回值，表示店铺库存缓存不存在或缺少某个菜品，需要重新加载缓存
+     */
+    public static final int DISH_STOCK_CACHE_MISS = -1;
+
+    /**
+     * <p>检查并扣减库存的脚本，ARGV 依次为 菜品ID、扣减数目、菜品ID、扣减数目......</p>
+     * <p>先检查全部菜品，全部足够才会逐一扣减，整个脚本在 Redis 中原子执行，要么全部扣减，要么什么都不做</p>
+     * <p>返回 0 表示成功；返回正数 i 表示第 i 个菜品库存不足；返回负数 -i 表示第 i 个菜品在缓存中不存在</p>
+     */
+    private static final RedisScript<Long> DEDUCT_DISH_STOCK_SCRIPT = new DefaultRedisScript<>(
+            "for i = 1, #ARGV, 2 do\n" +
+            "    local stock = redis.call('HGET', KEYS[1], ARGV[i])\n" +
+            "    if not stock then\n" +
+            "        return -((i + 1) / 2)\n" +
+            "    end\n" +
+            "    if tonumber(stock) < tonumber(ARGV[i + 1]) then\n" +
+            "        return (i + 1) / 2\n" +
+            "    end\n" +
+            "end\n" +
+            "for i = 1, #ARGV, 2 do\n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[i], -tonumber(ARGV[i + 1]))\n" +
+            "end\n" +
+            "return 0", Long.class);
+
+    /**
+     * 仅当菜品库存在缓存中不存在时才写入，KEYS 为 库存、版本号，ARGV 依次为 菜品ID、库存......，已存在的库存（可能已被扣减过）不会被覆盖
+     * 整个库存缓存不存在时属于重新加载，同时递增版本号，加载之前租出的库存作废，不会与数据库中的库存重复计算
+     */
+    private static final RedisScript<Long> LOAD_DISH_STOCK_IF_ABSENT_SCRIPT = new DefaultRedisScript<>(
+            "local fresh = redis.call('EXISTS', KEYS[1]) == 0\n" +
+            "local n = 0\n" +
+            "for i = 1, #ARGV, 2 do\n" +
+            "    n = n + redis.call('HSETNX', KEYS[1], ARGV[i], ARGV[i + 1])\n" +
+            "end\n" +
+            "if fresh and n > 0 then\n" +
+            "    redis.call('INCR', KEYS[2])\n" +
+            "end\n" +
+            "return n", Long.class);
+
+    /**
+     * 以数据库为准整体替换店铺的库存缓存，KEYS 为 库存、版本号，ARGV 依次为 菜品ID、库存；删除、写入与递增版本号在一个脚本中完成，其他节点不会看到只写了一半的库存，也不会在中间补充旧值，之前租出的库存全部作废
+     */
+    private static final RedisScript<Long> REPLACE_DISH_STOCK_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('DEL', KEYS[1])\n" +
+            "for i = 1, #ARGV, 2 do\n" +
+            "    redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1])\n" +
+            "end\n" +
+            "return redis.call('INCR', KEYS[2])", Long.class);
+
+    /**
+     * {@link #leaseDishStock(int, int, int, long)} 的返回值，表示租约的版本号已过期，需要重新读取版本号
+     */
+    public static final int DISH_STOCK_EPOCH_CHANGED = -2;
+
+    /**
+     * <p>从库存缓存中租出一段库存，KEYS 为 库存、版本号，ARGV 为 菜品ID、期望的数目、版本号</p>
+     * <p>返回实际租出的数目，不超过剩余库存；返回 -1 表示缓存中不存在该菜品；返回 -2 表示版本号不一致</p>
+     */
+    private static final RedisScript<Long> LEASE_DISH_STOCK_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('GET', KEYS[2]) or '0') ~= ARGV[3] then\n" +
+            "    return -2\n" +
+            "end\n" +
+            "local stock = redis.call('HGET', KEYS[1], ARGV[1])\n" +
+            "if not stock then\n" +
+            "    return -1\n" +
+            "end\n" +
+            "local n = math.min(tonumber(stock), tonumber(ARGV[2]))\n" +
+            "if n > 0 then\n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[1], -n)\n" +
+            "    return n\n" +
+            "end\n" +
+            "return 0", Long.class);
+
+    /**
+     * 归还租出但未使用的库存，只有版本号一致时才归还，否则库存已经从数据库重新加载，归还会导致重复计算
+     */
+    private static final RedisScript<Long> RETURN_DISH_STOCK_SCRIPT = new DefaultRedisScript<>(
+            "if (redis.call('GET', KEYS[2]) or '0') ~= ARGV[3] or not redis.call('HGET', KEYS[1], ARGV[1]) then\n" +
+            "    return 0\n" +
+            "end\n" +
+            "redis.call('HINCRBY', KEYS[1], ARGV[1], tonumber(ARGV[2]))\n" +
+            "return 1", Long.class);
+
+    /**
+     * 归还订单扣减的库存，KEYS 为 库存，ARGV 依次为 菜品ID、数目；缓存中不存在的菜品忽略，下次从数据库加载时自然是正确的值
+     */
+    private static final RedisScript<Long> RESTORE_DISH_STOCK_SCRIPT = new DefaultRedisScript<>(
+            "local n = 0\n" +
+            "for i = 1, #ARGV, 2 do\n" +
+            "    if redis.call('HEXISTS', KEYS[1], ARGV[i]) == 1 then\n" +
+            "        redis.call('HINCRBY', KEYS[1], ARGV[i], tonumber(ARGV[i + 1]))\n" +
+            "        n = n + 1\n" +
+            "    end\n" +
+            "end\n" +
+            "return n", Long.class);
+
+    /**
+     * 增减在途库存，KEYS 为 在途库存，ARGV[1] 为过期时间（毫秒），其后依次为 菜品ID、增量；归零的菜品删除，节点宕机遗留的在途库存随 key 过期清除
+     */
+    private static final RedisScript<Long> ADD_INFLIGHT_STOCK_SCRIPT = new DefaultRedisScript<>(
+            "for i = 2, #ARGV, 2 do\n" +
+            "    if redis.call('HINCRBY', KEYS[1], ARGV[i], ARGV[i + 1]) <= 0 then\n" +
+            "        redis.call('HDEL', KEYS[1], ARGV[i])\n" +
+            "    end\n" +
+            "end\n" +
+            "redis.call('PEXPIRE', KEYS[1], ARGV[1])\n" +
+            "return 1", Long.class);
+
+    private static final RedisScript<Long> GET_EPOCH_SCRIPT = new DefaultRedisScript<>(
+            "return tonumber(redis.call('GET', KEYS[1]) or '0')", Long.class);
+
+    /**
+     * 一次往返取回缓存值、剩余的过期时间（毫秒）以及上一次加载的耗时，KEYS 为 缓存、加载耗时
+     */
+    private static final RedisScript<List> GET_WITH_TTL_SCRIPT = new DefaultRedisScript<>(
+            "return {redis.call('GET', KEYS[1]), redis.call('PTTL', KEYS[1]), redis.call('GET', KEYS[2])}", List.class);
 
     public boolean isKeyExpired(String key) {
         return redis.opsForValue().getOperations().getExpire(key) <= 0;
     }
 
+    /**
+     * key 不存在时 TTL 为 -2，没有过期时间时为 -1，一次 TTL 即可同时判断 key 存在且未过期
+     */
     public boolean hasKey(String key) {
-        return key != null && redis.hasKey(key) && !isKeyExpired(key);
+        return key != null && !isKeyExpired(key);
+    }
+
+    /**
+     * <p>读取缓存，缓存不存在时调用 loader 加载并写入缓存，命中只需一次 Redis 访问</p>
+     * <p>缓存快要过期时，按照上一次加载的耗时以一定概率提前刷新（XFetch），越接近过期、加载越慢，提前刷新的概率越大，避免缓存同时过期时大量请求一起访问数据库；提前刷新期间其他线程照常返回旧值</p>
+     * <p>本节点内同一个 key 同一时刻只有一个线程加载，其余线程等待其结果</p>
+     *
+     * @param key        键
+     * @param ttlSeconds 过期时间，秒
+     * @param loader     从数据库加载，返回 null 时不缓存
+     * @return 缓存值
+     */
+    public <T> T getOrLoad(String key, long ttlSeconds, Supplier<T> loader) {
+        List<Object> ret = (List<Object>) redis.execute(GET_WITH_TTL_SCRIPT, RedisSerializer.byteArray(), RedisSerializer.byteArray(),
+                Arrays.asList(key, getLoadTimeCacheKey(key)));
+        byte[] raw = ret == null ? null : (byte[]) ret.get(0);
+        if (raw == null) {
+            missCount.increment();
+            return singleFlight(key, () -> load(key, ttlSeconds, loader));
+        }
+        hitCount.increment();
+        T val = (T) redis.getValueSerializer().deserialize(raw);
+        long pttl = ((Number) ret.get(1)).longValue();
+        byte[] rawLoadTime = (byte[]) ret.get(2);
+        if (pttl > 0 && rawLoadTime != null && shouldRefreshEarly(Long.parseLong(new String(rawLoadTime, StandardCharsets.UTF_8)), pttl)) {
+            // 已经有线程在刷新时直接返回旧值
+            CompletableFuture<Object> future = new CompletableFuture<>();
+            if (loading.putIfAbsent(key, future) == null) {
+                earlyRefreshCount.increment();
+                try {
+                    val = load(key, ttlSeconds, loader);
+                    future.complete(val);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                    log.warn("提前刷新缓存 " + key + " 失败，继续使用旧值", e);
+                } finally {
+                    loading.remove(key, future);
+                }
+            }
+        }
+        return val;
+    }
+
+    /**
+     * 使用默认的过期时间
+     */
+    public <T> T getOrLoad(String key, Supplier<T> loader) {
+        return getOrLoad(key, DEFAULT_EXPIRATION_TIME_SECONDS, loader);
+    }
+
+    /**
+     * XFetch：-loadTime * beta * ln(rand) 服从指数分布，超过剩余过期时间时提前刷新
+     */
+    private boolean shouldRefreshEarly(long loadTime, long pttl) {
+        if (earlyRefreshBeta <= 0) {
+            return false;
+        }
+        double rand = 1.0 - ThreadLocalRandom.current().nextDouble();
+        return -loadTime * earlyRefreshBeta * Math.log(rand) >= pttl;
+    }
+
+    private <T> T load(String key, long ttlSeconds, Supplier<T> loader) {
+        long start = System.currentTimeMillis();
+        T val = timedLoad(loader, start);
+        if (val != null) {
+            long loadTime = System.currentTimeMillis() - start;
+            byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+            byte[] rawLoadTimeKey = getLoadTimeCacheKey(key).getBytes(StandardCharsets.UTF_8);
+            byte[] rawVal = redis.getValueSerializer().serialize(val);
+            byte[] rawLoadTime = String.valueOf(loadTime).getBytes(StandardCharsets.UTF_8);
+            redis.executePipelined((RedisCallback<Object>) connection -> {
+                connection.set(rawKey, rawVal, Expiration.seconds(ttlSeconds), RedisStringCommands.SetOption.UPSERT);
+                connection.set(rawLoadTimeKey, rawLoadTime, Expiration.seconds(ttlSeconds), RedisStringCommands.SetOption.UPSERT);
+                return null;
+            });
+        }
+        return val;
+    }
+
+    private <T> T timedLoad(Supplier<T> loader, long start) {
+        loadCount.increment();
+        try {
+            return loader.get();
+        } catch (RuntimeException e) {
+            loadErrorCount.increment();
+            throw e;
+        } finally {
+            loadTimeMs.add(System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 本节点内同一个 key 同一时刻只执行一次 loader，其余线程等待并共享其结果或异常
+     *
+     * @param key    键
+     * @param loader 加载缓存的操作
+     * @return loader 的结果
+     */
+    public <T> T singleFlight(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> running = loading.putIfAbsent(key, future);
+        if (running != null) {
+            try {
+                return (T) running.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("等待缓存 " + key + " 加载时被中断", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+            }
+        }
+        try {
+            T val = loader.get();
+            future.complete(val);
+            return val;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    /**
+     * 从数据库加载缓存，并计入加载次数与耗时，用于不经过 {@link #getOrLoad} 的缓存（如哈希表）
+     */
+    public <T> T loadWithStats(String key, Supplier<T> loader) {
+        missCount.increment();
+        return singleFlight(key, () -> timedLoad(loader, System.currentTimeMillis()));
+    }
+
+    /**
+     * 缓存命中、未命中、提前刷新、加载次数以及加载总耗时
+     */
+    public Map<String, Long> getCacheStats() {
+        Map<String, Long> stats = new HashMap<>();
+        stats.put("hit", hitCount.sum());
+        stats.put("miss", missCount.sum());
+        stats.put("earlyRefresh", earlyRefreshCount.sum());
+        stats.put("load", loadCount.sum());
+        stats.put("loadError", loadErrorCount.sum());
+        stats.put("loadTimeMs", loadTimeMs.sum());
+        return stats;
     }
 
 
@@ -163,22 +559,201 @@ public class RedisCacheManager {
     }
 
     /**
-     * 初始化 Redis bitmap 缓存，过期时间将依赖于默认的过期时间
+     * 执行 Lua 脚本，key 由模板的 StringRedisSerializer 编码；参数如果是 byte[] 则原样传递，否则按字符串形式传递，以便脚本中可以直接 tonumber
      *
-     * @param allIds 所有的 ID
-     * @param ids    将要设置为 true 的 id
-     * @param key    键
+     * @param script 脚本
+     * @param keys   KEYS
+     * @param args   ARGV
+     * @return 脚本返回值
      */
-    public void initRedisUserMarkedCache(List<Integer> allIds, List<Integer> ids, String key) {
-        redis.delete(key);
-        for (Integer allId : allIds) {
-            if (ids.contains(allId)) {
-                setBit(key, allId, true);
-            } else {
-                setBit(key, allId, false);
-            }
+    public <T> T executeScript(RedisScript<T> script, List<String> keys, Object... args) {
+        Object[] rawArgs = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            rawArgs[i] = args[i] instanceof byte[] ? args[i] : String.valueOf(args[i]).getBytes(StandardCharsets.UTF_8);
+        }
+        return (T) redis.execute(script, RedisSerializer.byteArray(), null, keys, rawArgs);
+    }
+
+    /**
+     * KEYS[1] 用户的 bitmap，KEYS[2] 变更日志；ARGV[1] 菜品或店铺ID，ARGV[2] 位的值，ARGV[3] 表名，ARGV[4] 用户ID，ARGV[5] 为 1 时 bitmap 不存在也写入，ARGV[6] 过期时间
+     * <p>每次修改都会延长 bitmap 的过期时间，bitmap 过期时其变更早已写入数据库，重新从数据库加载不会丢失修改</p>
+     * <p>变更日志不裁剪，已写入数据库的记录由 MarkedChangeLogConsumer 删除，积压时由其告警</p>
+     */
+    private static final RedisScript<Long> SET_USER_MARKED_SCRIPT = new DefaultRedisScript<>(
+            "if ARGV[5] ~= '1' and redis.call('EXISTS', KEYS[1]) == 0 then\n" +
+            "    return 0\n" +
+            "end\n" +
+            "redis.call('SETBIT', KEYS[1], ARGV[1], ARGV[2])\n" +
+            "redis.call('EXPIRE', KEYS[1], ARGV[6])\n" +
+            "redis.call('XADD', KEYS[2], '*', 't', ARGV[3], 'u', ARGV[4], 'i', ARGV[1], 'v', ARGV[2])\n" +
+            "return 1", Long.class);
+
+    /**
+     * 修改用户 bitmap 中的一位并在同一个脚本中追加变更日志，二者不会不一致
+     *
+     * @param force 为 false 时 bitmap 不存在则什么也不做，避免生成只有这一位的残缺 bitmap
+     * @return bitmap 不存在且未写入时返回 false
+     */
+    public boolean setUserMarked(MarkedTable table, String userId, int id, boolean val, boolean force) {
+        Long ret = executeScript(SET_USER_MARKED_SCRIPT,
+                Arrays.asList(getUserMarkedCacheKey(table, userId), MARKED_CHANGE_LOG_KEY),
+                id, val ? 1 : 0, table.name(), userId, force ? 1 : 0, DEFAULT_EXPIRATION_TIME_SECONDS);
+        return ret != null && ret == 1;
+    }
+
+    /**
+     * 将哈希表的 field 序列化成与 opsForHash 一致的字节，脚本中操作哈希表时必须使用此方法编码 field
+     */
+    public byte[] rawHashKey(Object hashKey) {
+        return redis.getHashKeySerializer().serialize(hashKey);
+    }
+
+    /**
+     * 一次往返原子地检查并扣减店铺中多个菜品的库存缓存
+     *
+     * @param storeId    店铺ID
+     * @param dishNumMap key 是菜品ID，val 是要扣减的数目
+     * @return 0 表示扣减成功；正数表示库存不足的菜品ID；{@link #DISH_STOCK_CACHE_MISS} 表示缓存不存在，需要重新加载
+     */
+    public int deductDishStock(int storeId, Map<Integer, Integer> dishNumMap) {
+        if (dishNumMap.isEmpty()) {
+            return 0;
+        }
+        int[] dishIds = new int[dishNumMap.size()];
+        Object[] args = new Object[dishNumMap.size() * 2];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
+            dishIds[i] = it.getKey();
+            args[i * 2] = rawHashKey(it.getKey());
+            args[i * 2 + 1] = it.getValue();
+            i++;
+        }
+        Long ret = executeScript(DEDUCT_DISH_STOCK_SCRIPT,
+                Collections.singletonList(getDishStockCacheKey(storeId)), args);
+        if (ret == null || ret < 0) {
+            return DISH_STOCK_CACHE_MISS;
+        }
+        return ret == 0 ? 0 : dishIds[(int) (ret - 1)];
+    }
+
+    /**
+     * 将数据库中的库存补充到缓存中，只补充缓存中不存在的菜品，不会覆盖已有的库存，因此可以在并发下单时安全调用
+     *
+     * @param dishes  菜品，需要包含库存
+     * @param storeId 店铺ID
+     * @return 实际补充的菜品数
+     */
+    public long loadDishStockIfAbsent(List<Dish> dishes, int storeId) {
+        return loadDishStockIfAbsent(toStockMap(dishes), storeId);
+    }
+
+    /**
+     * @param stock   菜品ID -> 库存
+     * @param storeId 店铺ID
+     * @return 实际补充的菜品数
+     */
+    public long loadDishStockIfAbsent(Map<Integer, Integer> stock, int storeId) {
+        if (stock.isEmpty()) {
+            return 0;
+        }
+        Long n = executeScript(LOAD_DISH_STOCK_IF_ABSENT_SCRIPT,
+                Arrays.asList(getDishStockCacheKey(storeId), getDishStockEpochKey(storeId)), toStockArgs(stock));
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * 归还订单扣减的库存
+     *
+     * @param stock   菜品ID -> 归还的数目
+     * @param storeId 店铺ID
+     * @return 实际归还的菜品数
+     */
+    public long restoreDishStock(Map<Integer, Integer> stock, int storeId) {
+        if (stock.isEmpty()) {
+            return 0;
+        }
+        Long n = executeScript(RESTORE_DISH_STOCK_SCRIPT, Collections.singletonList(getDishStockCacheKey(storeId)), toStockArgs(stock));
+        return n == null ? 0 : n;
+    }
+
+    /**
+     * 增减店铺的在途库存
+     *
+     * @param stock   菜品ID -> 数目
+     * @param storeId 店铺ID
+     * @param sign    1 表示订单已发出，-1 表示订单已落库或已失败
+     */
+    public void addInflightStock(Map<Integer, Integer> stock, int storeId, int sign) {
+        if (stock == null || stock.isEmpty()) {
+            return;
         }
-        redis.expire(key, DEFAULT_EXPIRATION_TIME_SECONDS, TimeUnit.SECONDS);
+        Object[] args = new Object[stock.size() * 2 + 1];
+        args[0] = TimeUnit.SECONDS.toMillis(INFLIGHT_STOCK_EXPIRATION_SECONDS);
+        int i = 1;
+        for (Map.Entry<Integer, Integer> it : stock.entrySet()) {
+            args[i++] = rawHashKey(it.getKey());
+            args[i++] = sign * it.getValue();
+        }
+        executeScript(ADD_INFLIGHT_STOCK_SCRIPT, Collections.singletonList(getDishStockInflightKey(storeId)), args);
+    }
+
+    /**
+     * @return 店铺的在途库存，菜品ID -> 数目
+     */
+    public Map<Integer, Integer> getInflightStock(int storeId) {
+        Map<Integer, Integer> stock = new HashMap<>();
+        for (Map.Entry<Object, Object> it : (Set<Map.Entry<Object, Object>>) redis.opsForHash().entries(getDishStockInflightKey(storeId)).entrySet()) {
+            stock.put((Integer) it.getKey(), ((Number) it.getValue()).intValue());
+        }
+        return stock;
+    }
+
+    /**
+     * 库存脚本的参数，依次为 菜品ID、库存
+     */
+    private Object[] toStockArgs(Map<Integer, Integer> stock) {
+        Object[] args = new Object[stock.size() * 2];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> it : stock.entrySet()) {
+            args[i * 2] = rawHashKey(it.getKey());
+            // 整数经 JSON 序列化后就是其字符串形式，与 opsForHash 写入的格式一致
+            args[i * 2 + 1] = it.getValue();
+            i++;
+        }
+        return args;
+    }
+
+    private static Map<Integer, Integer> toStockMap(List<Dish> dishes) {
+        Map<Integer, Integer> stock = new HashMap<>(dishes.size() * 2);
+        for (Dish dish : dishes) {
+            stock.put(dish.getId(), dish.getStock());
+        }
+        return stock;
+    }
+
+    /**
+     * 一次取回整个 bitmap 并在本地解码
+     *
+     * @param key 键
+     * @return 为 1 的偏移量，从小到大排列；key 不存在时返回 null
+     */
+    public int[] getBitmap(String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = (byte[]) redis.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey));
+        return bytes == null ? null : RedisBitmap.decode(bytes);
+    }
+
+    /**
+     * 初始化 Redis bitmap 缓存，在本地构造整个 bitmap 后以一条 SET NX 写入并设置默认的过期时间；并发初始化时不会覆盖其他线程已经写入并修改过的 bitmap
+     *
+     * @param ids 将要设置为 true 的 id
+     * @param key 键
+     */
+    public void initRedisUserMarkedCache(Collection<Integer> ids, String key) {
+        byte[] rawKey = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bitmap = RedisBitmap.encode(new HashSet<>(ids));
+        redis.execute((RedisCallback<Boolean>) connection -> connection.set(rawKey, bitmap,
+                Expiration.seconds(DEFAULT_EXPIRATION_TIME_SECONDS), RedisStringCommands.SetOption.SET_IF_ABSENT));
     }
 
     /**
@@ -187,11 +762,23 @@ public class RedisCacheManager {
      * @param dishes 菜品
      */
     public void initRedisDishMakeTimeCache(List<Dish> dishes) {
-        redis.delete(DISH_MAKE_TIME_CACHE_KEY);
+        Map<Integer, Object> makeTimes = new HashMap<>(dishes.size() * 2);
         for (Dish dish : dishes) {
-            setForHash(DISH_MAKE_TIME_CACHE_KEY, dish.getId(), dish.getMakeTime());
+            makeTimes.put(dish.getId(), dish.getMakeTime());
         }
-        redis.expire(DISH_MAKE_TIME_CACHE_KEY, DEFAULT_EXPIRATION_TIME_SECONDS, TimeUnit.SECONDS);
+        // 在一个事务中删除并整体写入，其他线程不会看到只写了一半的缓存
+        redis.execute(new SessionCallback<Object>() {
+            @Override
+            public Object execute(RedisOperations operations) {
+                operations.multi();
+                operations.delete(DISH_MAKE_TIME_CACHE_KEY);
+                if (!makeTimes.isEmpty()) {
+                    operations.opsForHash().putAll(DISH_MAKE_TIME_CACHE_KEY, makeTimes);
+                }
+                operations.expire(DISH_MAKE_TIME_CACHE_KEY, DEFAULT_EXPIRATION_TIME_SECONDS, TimeUnit.SECONDS);
+                return operations.exec();
+            }
+        });
     }
 
 
@@ -200,10 +787,7 @@ public class RedisCacheManager {
      *
      * @param dishes
      */
-    public synchronized void flushRedisDishStockCache(List<Dish> dishes, int storeId) {
-        if (hasKey(getDishStockCacheKey(storeId))) {
-            redis.delete(getDishStockCacheKey(storeId));
-        }
+    public void flushRedisDishStockCache(List<Dish> dishes, int storeId) {
 //        Channel channel = rabbit.getConnectionFactory().createConnection().createChannel(false);
 //        try {
 //            channel.exchangeDeclare(OrderRabbitMqConfig.ORDER_EXCHANGE, "direct", true, false, null);
@@ -217,10 +801,52 @@ public class RedisCacheManager {
 //        } catch (InterruptedException e) {
 //            e.printStackTrace();
 //        }
-        for (Dish dish : dishes) {
-            setForHash(getDishStockCacheKey(storeId), dish.getId(), dish.getStock());
-        }
+        flushRedisDishStockCache(toStockMap(dishes), storeId);
+    }
+
+    /**
+     * @param stock   菜品ID -> 库存
+     * @param storeId 店铺ID
+     */
+    public void flushRedisDishStockCache(Map<Integer, Integer> stock, int storeId) {
+        executeScript(REPLACE_DISH_STOCK_SCRIPT,
+                Arrays.asList(getDishStockCacheKey(storeId), getDishStockEpochKey(storeId)), toStockArgs(stock));
+    }
 
+    /**
+     * 读取店铺库存缓存的版本号
+     */
+    public long getDishStockEpoch(int storeId) {
+        Long epoch = executeScript(GET_EPOCH_SCRIPT, Collections.singletonList(getDishStockEpochKey(storeId)));
+        return epoch == null ? 0 : epoch;
+    }
+
+    /**
+     * 从共享的库存缓存中租出一段库存
+     *
+     * @param storeId 店铺ID
+     * @param dishId  菜品ID
+     * @param num     期望租出的数目
+     * @param epoch   调用方持有的版本号
+     * @return 实际租出的数目；{@link #DISH_STOCK_CACHE_MISS} 表示缓存不存在；{@link #DISH_STOCK_EPOCH_CHANGED} 表示版本号已变化
+     */
+    public int leaseDishStock(int storeId, int dishId, int num, long epoch) {
+        Long ret = executeScript(LEASE_DISH_STOCK_SCRIPT,
+                Arrays.asList(getDishStockCacheKey(storeId), getDishStockEpochKey(storeId)),
+                rawHashKey(dishId), num, epoch);
+        return ret == null ? DISH_STOCK_CACHE_MISS : ret.intValue();
+    }
+
+    /**
+     * 归还租出的库存，版本号已变化时忽略
+     *
+     * @return 是否归还成功
+     */
+    public boolean returnDishStock(int storeId, int dishId, int num, long epoch) {
+        Long ret = executeScript(RETURN_DISH_STOCK_SCRIPT,
+                Arrays.asList(getDishStockCacheKey(storeId), getDishStockEpochKey(storeId)),
+                rawHashKey(dishId), num, epoch);
+        return ret != null && ret == 1;
     }
 
 
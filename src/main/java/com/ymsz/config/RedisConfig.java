@@ -8,9 +8,14 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
 
+import java.util.Arrays;
+
 
 /**
  * @author ymsz
@@ -48,4 +53,18 @@ public class RedisConfig {
         template.afterPropertiesSet();
         return template;
     }
+
+    /**
+     * 订阅订单处理结果的广播以及后台状态 bitmap 的变更通知
+     */
+    @Bean
+    public RedisMessageListenerContainer redisMessageListenerContainer(RedisConnectionFactory factory, OrderResultNotifier notifier, StatusBitmapSnapshot statusBitmaps) {
+        RedisMessageListenerContainer container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(factory);
+        container.addMessageListener(notifier, new ChannelTopic(OrderResultNotifier.ORDER_RESULT_CHANNEL));
+        container.addMessageListener(statusBitmaps, Arrays.asList(
+                new ChannelTopic(StatusBitmapSnapshot.STATUS_CHANGED_CHANNEL),
+                new PatternTopic(StatusBitmapSnapshot.STATUS_KEYSPACE_PATTERN)));
+        return container;
+    }
 }
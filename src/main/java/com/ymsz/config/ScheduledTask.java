@@ -11,7 +11,6 @@ import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
 import java.sql.Timestamp;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,6 +31,9 @@ public class ScheduledTask {
     @Autowired
     DiscountMapper discountMapper;
 
+    @Autowired
+    MarkedSyncJob markedSyncJob;
+
 
     @Qualifier("myRedisTemplate")
     @Autowired
@@ -40,70 +42,15 @@ public class ScheduledTask {
 
     /**
      * 写入用户喜欢、收藏、待选信息，一切以 redis 中为准，移除 redis 中没有的，增加 redis 中有的
+     * 日常的修改已经由 MarkedChangeLogConsumer 增量写入，全量同步默认关闭（cron 为 -），需要时通过 marked-sync.cron 开启
      */
-    @Scheduled(cron = "0 0 3,15 * * ?")
+    @Scheduled(cron = "${marked-sync.cron:-}")
     public void doTask1() {
         System.out.println("执行定时任务.....");
-        for (String userId : userMapper.queryAllUserIds()) {
-            List<Integer> store = userMapper.queryCollectedStore(userId);
-            List<Integer> collectedDish = userMapper.queryCollectedDish(userId);
-            List<Integer> favoriteDish = userMapper.queryFavoriteDish(userId);
-            List<Integer> willBuyDish = userMapper.queryWillBuyDish(userId);
-            boolean b1 = redis.hasKey(RedisCacheManager.getUserLikeDishCacheKey(userId));
-            boolean b2 = redis.hasKey(RedisCacheManager.getUserCollectedDishCacheKey(userId));
-            boolean b3 = redis.hasKey(RedisCacheManager.getUserWillBuyDishCacheKey(userId));
-            boolean b4 = redis.hasKey(RedisCacheManager.getUserCollectedStoreCacheKey(userId));
-            if (b1 || b2 || b3) {
-                // 遍历所有菜品 ID
-                for (Integer id : dishMapper.queryAllDishId()) {
-                    if (b1) {
-                        boolean val1 = redis.opsForValue().getBit(
-                                RedisCacheManager.getUserLikeDishCacheKey(userId), id);
-
-                        if (collectedDish.indexOf(id) == -1 && val1) {
-                            // redis 中有，数据库中没有，增加
-                            userMapper.addCollectedDish(userId, id);
-                        } else if (collectedDish.indexOf(id) != -1 && !val1) {
-                            // redis 中无，数据库中有，移除
-                            userMapper.removeCollectedDish(userId, id);
-                        }
-                    }
-                    if (b2) {
-                        boolean val2 = redis.opsForValue().getBit(RedisCacheManager.getUserCollectedDishCacheKey(userId), id);
-                        if (favoriteDish.indexOf(id) == -1 && val2) {
-                            userMapper.addFavoriteDish(userId, id);
-                        } else if (favoriteDish.indexOf(id) != -1 && !val2) {
-                            userMapper.removeFavoriteDish(userId, id);
-                        }
-                    }
-                    if (b3) {
-                        boolean val3 = redis.opsForValue().getBit(RedisCacheManager.getUserWillBuyDishCacheKey(userId), id);
-                        if (willBuyDish.indexOf(id) == -1 && val3) {
-                            userMapper.addWillBuyDish(userId, id);
-                        } else if (willBuyDish.indexOf(id) != -1 && !val3) {
-                            userMapper.removeWillBuyDish(userId, id);
-                        }
-                    }
-                }
-            }
-            if (b4) {
-                for (Integer id : storeMapper.queryAllStoreId()) {
-                    boolean val1 = redis.opsForValue().getBit(RedisCacheManager.getUserCollectedStoreCacheKey(userId), id);
-                    if (store.indexOf(id) == -1 && val1) {
-                        userMapper.addCollectedStore(userId, id);
-                    } else if (store.indexOf(id) != -1 && !val1) {
-                        userMapper.removeCollectedStore(userId, id);
-                    }
-                }
-            }
-            redis.delete(RedisCacheManager.getUserLikeDishCacheKey(userId));
-            redis.delete(RedisCacheManager.getUserCollectedDishCacheKey(userId));
-            redis.delete(RedisCacheManager.getUserWillBuyDishCacheKey(userId));
-            redis.delete(RedisCacheManager.getUserCollectedStoreCacheKey(userId));
-        }
+        markedSyncJob.submit();
     }
 
-    // 11.55 定时写入今日销量，清除等待队列，更新用户每日折扣数目
+    // 11.55 定时写入今日销量，更新用户每日折扣数目
     @Scheduled(cron = "0 55 23 * * ?")
     public void doTask2() {
         System.out.println("执行定时任务.....");
@@ -115,8 +62,6 @@ public class ScheduledTask {
             dishMapper.insertSaleLog(new Timestamp(RedisCacheManager.getTodayDate().getTime()), id, num);
         }
 
-        redis.delete(RedisCacheManager.DISH_WAITING_QUEUE_KEY);
-
         for (String userId : userMapper.queryAllUserIds()) {
             Map<Integer, Map> map = userMapper.queryUserUsedDiscountCountInAllDish(userId);
             for (Map.Entry<Integer, Map> it : map.entrySet()) {
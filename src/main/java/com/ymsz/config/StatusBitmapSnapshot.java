@@ -0,0 +1,151 @@
+package com.ymsz.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>后台状态 bitmap 的本地快照，包括菜品上架、推荐、新品，套餐上架，店铺营业与支持外卖</p>
+ * <p>这些 bitmap 只由后台管理员偶尔修改，每次请求都逐个 GETBIT 代价过高。快照一次 MGET 取回全部 bitmap，之后的过滤都是内存中的位运算</p>
+ * <p>后台修改 bitmap 后向 {@link #STATUS_CHANGED_CHANNEL} 发布消息，或者 Redis 开启了 notify-keyspace-events（至少包含 K$），快照随即失效并在下一次读取时重新加载；status-bitmap.ttl-ms 是通知丢失时的兜底</p>
+ */
+@Slf4j
+@Component
+public class StatusBitmapSnapshot implements MessageListener {
+    public static final String STATUS_CHANGED_CHANNEL = "B-redis-channel:status-bitmap-changed";
+
+    /**
+     * 状态 bitmap 的 keyspace 事件
+     */
+    public static final String STATUS_KEYSPACE_PATTERN = "__keyspace@*__:B-redis-bitmap:*";
+
+    private static final String[] KEYS = {
+            RedisCacheManager.DISH_PUBLISH_STATUS_KEY,
+            RedisCacheManager.DISH_RECOMMEND_STATUS_KEY,
+            RedisCacheManager.DISH_NEW_STATUS_KEY,
+            RedisCacheManager.COMBO_PUBLISH_STATUS_KEY,
+            RedisCacheManager.STORE_WORKING_STATUS_KEY,
+            RedisCacheManager.STORE_SUP_TAKEOUT_STATUS_KEY
+    };
+
+    /**
+     * 某一时刻所有状态 bitmap 的不可变快照
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final long loadTime;
+        /**
+         * key 不存在时没有对应的项
+         */
+        private final Map<String, byte[]> bitmaps;
+
+        Snapshot(long version, long loadTime, Map<String, byte[]> bitmaps) {
+            this.version = version;
+            this.loadTime = loadTime;
+            this.bitmaps = bitmaps;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean hasKey(String key) {
+            return bitmaps.containsKey(key);
+        }
+
+        /**
+         * @return 位是否为 1，超出 bitmap 长度时为 0
+         */
+        public boolean getBit(String key, long offset) {
+            byte[] bytes = bitmaps.get(key);
+            if (bytes == null || offset < 0 || (offset >> 3) >= bytes.length) {
+                return false;
+            }
+            return (bytes[(int) (offset >> 3)] & (0x80 >>> (offset & 7))) != 0;
+        }
+
+        /**
+         * 与后台同步时的判断规则：key 不存在时默认通过，否则以位的值为准
+         */
+        public boolean test(String key, long offset) {
+            return !hasKey(key) || getBit(key, offset);
+        }
+    }
+
+    @Qualifier("myRedisTemplate")
+    @Autowired
+    private RedisTemplate redis;
+
+    @Value("${status-bitmap.ttl-ms:30000}")
+    private long ttlMs;
+
+    private final AtomicLong version = new AtomicLong();
+    /**
+     * 每次失效加一，加载期间发生过失效的快照不会被缓存
+     */
+    private final AtomicLong generation = new AtomicLong();
+    private volatile Snapshot snapshot;
+
+    /**
+     * @return 当前的快照，已失效或已过期时重新加载
+     */
+    public Snapshot get() {
+        Snapshot s = snapshot;
+        if (s != null && System.currentTimeMillis() - s.loadTime < ttlMs) {
+            return s;
+        }
+        synchronized (this) {
+            s = snapshot;
+            if (s == null || System.currentTimeMillis() - s.loadTime >= ttlMs) {
+                long gen = generation.get();
+                s = load();
+                // MGET 期间收到了失效通知，读到的可能是修改之前的值，只用于本次请求，下一次读取重新加载
+                if (generation.get() == gen) {
+                    snapshot = s;
+                }
+            }
+            return s;
+        }
+    }
+
+    /**
+     * 使快照失效，下一次读取时重新加载
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        snapshot = null;
+    }
+
+    private Snapshot load() {
+        byte[][] rawKeys = new byte[KEYS.length][];
+        for (int i = 0; i < KEYS.length; i++) {
+            rawKeys[i] = KEYS[i].getBytes(StandardCharsets.UTF_8);
+        }
+        List<byte[]> values = (List<byte[]>) redis.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        Map<String, byte[]> bitmaps = new HashMap<>(KEYS.length * 2);
+        for (int i = 0; values != null && i < KEYS.length; i++) {
+            if (values.get(i) != null) {
+                bitmaps.put(KEYS[i], values.get(i));
+            }
+        }
+        return new Snapshot(version.incrementAndGet(), System.currentTimeMillis(), bitmaps);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        log.info("后台状态已变更，快照失效：" + new String(message.getChannel(), StandardCharsets.UTF_8));
+        invalidate();
+    }
+}
@@ -0,0 +1,242 @@
+package com.ymsz.config;
+
+import com.ymsz.mapper.StoreMapper;
+import com.ymsz.pojo.Store;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * <p>店铺坐标的内存空间索引，查询距离用户最近的店铺</p>
+ * <p>经纬度转换为单位球面上的三维坐标后构建 k-d 树，球面上两点的直线距离与大圆距离单调对应，因此可以用直线距离剪枝并得到精确的最近邻</p>
+ * <p>索引是不可变的快照，定时从数据库重新加载后整体替换；营业、外卖等状态在查询时过滤</p>
+ */
+@Slf4j
+@Component
+public class StoreGeoIndex {
+    /**
+     * 地球平均半径，米
+     */
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    public static final class Neighbor {
+        private final Store store;
+        private final double distance;
+
+        Neighbor(Store store, double distance) {
+            this.store = store;
+            this.distance = distance;
+        }
+
+        public Store getStore() {
+            return store;
+        }
+
+        /**
+         * @return 球面距离，米
+         */
+        public double getDistance() {
+            return distance;
+        }
+    }
+
+    /**
+     * 隐式 k-d 树：区间 [lo, hi) 的根位于 (lo + hi) / 2，左右子树分别为其左右两侧的区间，划分维度为深度对 3 取模
+     */
+    private static final class Tree {
+        final Store[] stores;
+        final double[][] points;
+
+        Tree(Store[] stores, double[][] points) {
+            this.stores = stores;
+            this.points = points;
+        }
+    }
+
+    @Autowired
+    private StoreMapper storeMapper;
+
+    @Autowired
+    private StoreLocationResolver storeLocations;
+
+    private volatile Tree tree = new Tree(new Store[0], new double[0][]);
+
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+    @PostConstruct
+    public void init() {
+        try {
+            reload();
+        } catch (Exception e) {
+            log.error("加载店铺空间索引失败，等待下一次重新加载", e);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${store-geo-index.refresh-ms:60000}")
+    public void reload() {
+        if (!reloading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Store> stores = storeMapper.getStoreInfo();
+            storeLocations.fill(stores);
+            int n = load(stores);
+            if (n < stores.size()) {
+                log.info("店铺空间索引已加载，" + (stores.size() - n) + " 个店铺暂无经纬度");
+            }
+        } finally {
+            reloading.set(false);
+        }
+    }
+
+    /**
+     * 以给定的店铺构建索引并替换当前的索引，没有合法经纬度的店铺不进入索引
+     *
+     * @return 进入索引的店铺数
+     */
+    int load(List<Store> stores) {
+        List<Integer> order = new ArrayList<>(stores.size());
+        List<double[]> points = new ArrayList<>(stores.size());
+        for (int i = 0; i < stores.size(); i++) {
+            double[] point = toPoint(stores.get(i).getLongitude(), stores.get(i).getLatitude());
+            if (point != null) {
+                order.add(i);
+                points.add(point);
+            }
+        }
+        Store[] s = new Store[order.size()];
+        double[][] p = new double[order.size()][];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = stores.get(order.get(i));
+            p[i] = points.get(i);
+        }
+        build(s, p, 0, s.length, 0);
+        tree = new Tree(s, p);
+        return s.length;
+    }
+
+    /**
+     * 查询距离给定位置最近的店铺，不满足 filter 的店铺不占用名额
+     *
+     * @param longitude 经度
+     * @param latitude  纬度
+     * @param k         最多返回的店铺数，超过店铺总数时按店铺总数计
+     * @param filter    过滤条件
+     * @return 按距离从近到远排列
+     */
+    public List<Neighbor> nearest(double longitude, double latitude, int k, Predicate<Store> filter) {
+        Tree t = tree;
+        if (k <= 0 || t.stores.length == 0) {
+            return Collections.emptyList();
+        }
+        k = Math.min(k, t.stores.length);
+        double[] target = toPoint(longitude, latitude);
+        // 大顶堆，堆顶是当前第 k 近的店铺，元素为 {平方距离, 下标}
+        PriorityQueue<double[]> heap = new PriorityQueue<>(k + 1, Comparator.comparingDouble((double[] a) -> a[0]).reversed());
+        search(t, target, 0, t.stores.length, 0, k, filter, heap);
+        List<Neighbor> ans = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            double[] it = heap.poll();
+            ans.add(new Neighbor(t.stores[(int) it[1]], chordToMeters(Math.sqrt(it[0]))));
+        }
+        Collections.reverse(ans);
+        return ans;
+    }
+
+    private static void search(Tree t, double[] target, int lo, int hi, int depth, int k,
+                               Predicate<Store> filter, PriorityQueue<double[]> heap) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double[] point = t.points[mid];
+        double d = squaredDistance(point, target);
+        if ((heap.size() < k || d < heap.peek()[0]) && filter.test(t.stores[mid])) {
+            heap.offer(new double[]{d, mid});
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }
+        int axis = depth % 3;
+        double diff = target[axis] - point[axis];
+        // 先搜索目标所在的一侧，另一侧只有可能更近时才搜索
+        if (diff < 0) {
+            search(t, target, lo, mid, depth + 1, k, filter, heap);
+            if (heap.size() < k || diff * diff < heap.peek()[0]) {
+                search(t, target, mid + 1, hi, depth + 1, k, filter, heap);
+            }
+        } else {
+            search(t, target, mid + 1, hi, depth + 1, k, filter, heap);
+            if (heap.size() < k || diff * diff < heap.peek()[0]) {
+                search(t, target, lo, mid, depth + 1, k, filter, heap);
+            }
+        }
+    }
+
+    private static void build(Store[] stores, double[][] points, int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int axis = depth % 3;
+        Integer[] idx = new Integer[hi - lo];
+        for (int i = 0; i < idx.length; i++) {
+            idx[i] = lo + i;
+        }
+        Arrays.sort(idx, Comparator.comparingDouble(i -> points[i][axis]));
+        Store[] s = new Store[idx.length];
+        double[][] p = new double[idx.length][];
+        for (int i = 0; i < idx.length; i++) {
+            s[i] = stores[idx[i]];
+            p[i] = points[idx[i]];
+        }
+        System.arraycopy(s, 0, stores, lo, s.length);
+        System.arraycopy(p, 0, points, lo, p.length);
+        int mid = (lo + hi) >>> 1;
+        build(stores, points, lo, mid, depth + 1);
+        build(stores, points, mid + 1, hi, depth + 1);
+    }
+
+    private static double[] toPoint(String longitude, String latitude) {
+        try {
+            double lng = Double.parseDouble(longitude);
+            double lat = Double.parseDouble(latitude);
+            if (Math.abs(lng) > 180 || Math.abs(lat) > 90) {
+                return null;
+            }
+            return toPoint(lng, lat);
+        } catch (NullPointerException | NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static double[] toPoint(double longitude, double latitude) {
+        double lng = Math.toRadians(longitude);
+        double lat = Math.toRadians(latitude);
+        return new double[]{Math.cos(lat) * Math.cos(lng), Math.cos(lat) * Math.sin(lng), Math.sin(lat)};
+    }
+
+    private static double squaredDistance(double[] a, double[] b) {
+        double dx = a[0] - b[0];
+        double dy = a[1] - b[1];
+        double dz = a[2] - b[2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * 单位球上的弦长转换为球面距离
+     */
+    private static double chordToMeters(double chord) {
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, chord / 2));
+    }
+}
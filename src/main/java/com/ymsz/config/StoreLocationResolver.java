@@ -0,0 +1,100 @@
+package com.ymsz.config;
+
+import com.ymsz.api.Geocoder;
+import com.ymsz.mapper.StoreMapper;
+import com.ymsz.pojo.Store;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * <p>为店铺填充经纬度，不在请求线程中访问地图服务</p>
+ * <p>每个地址只解析一次，结果保存在店铺表的经纬度字段以及 Redis 中的地址 -> 经纬度表中。店铺地址不在地址表中（新店铺或地址已修改）时，先返回数据库中已有的经纬度，同时在后台解析该地址，解析完成后写回店铺表并使店铺缓存失效</p>
+ */
+@Slf4j
+@Component
+public class StoreLocationResolver {
+    @Qualifier("myRedisTemplate")
+    @Autowired
+    private RedisTemplate redis;
+
+    @Autowired
+    private StoreMapper storeMapper;
+
+    @Autowired
+    private Geocoder geocoder;
+
+    /**
+     * 正在后台解析的地址，同一地址只提交一次
+     */
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 单线程依次解析，避免并发请求超出地图服务的配额
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    /**
+     * 一次 HMGET 取回所有店铺地址的经纬度并填充到店铺中，缺失的地址提交到后台解析
+     *
+     * @param stores 店铺，需要包含地址
+     */
+    public void fill(List<Store> stores) {
+        List<Object> addresses = new ArrayList<>(stores.size());
+        for (Store store : stores) {
+            addresses.add(String.valueOf(store.getAddress()));
+        }
+        List<Object> locations = stores.isEmpty() ? new ArrayList<>()
+                : redis.opsForHash().multiGet(RedisCacheManager.GEOCODE_CACHE_KEY, addresses);
+        for (int i = 0; i < stores.size(); i++) {
+            Store store = stores.get(i);
+            Object location = locations.get(i);
+            if (location != null) {
+                String[] lngLat = ((String) location).split(",");
+                store.setLongitude(lngLat[0]);
+                store.setLatitude(lngLat[1]);
+            } else if (store.getAddress() != null) {
+                // 数据库中的经纬度可能为空，也可能属于修改前的地址，解析完成后会被覆盖
+                resolveAsync(store.getAddress());
+            }
+        }
+    }
+
+    private void resolveAsync(String address) {
+        if (pending.putIfAbsent(address, Boolean.TRUE) != null) {
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                String[] lngLat = geocoder.geocode(address);
+                if (lngLat == null || lngLat[0] == null || lngLat[1] == null) {
+                    log.warn("解析地址失败：" + address);
+                    return;
+                }
+                storeMapper.updateStoreLocation(address, lngLat[0], lngLat[1]);
+                redis.opsForHash().put(RedisCacheManager.GEOCODE_CACHE_KEY, address, lngLat[0] + "," + lngLat[1]);
+                // 下一次读取店铺信息时使用新的经纬度
+                redis.delete(RedisCacheManager.STORE_CACHE_KEY);
+            } catch (RuntimeException e) {
+                log.error("解析地址失败：" + address, e);
+            } finally {
+                pending.remove(address);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
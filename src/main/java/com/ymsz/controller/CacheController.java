@@ -0,0 +1,62 @@
+package com.ymsz.controller;
+
+import com.ymsz.config.CacheRehydrator;
+import com.ymsz.config.RedisCacheManager;
+import com.ymsz.controller.base.BaseController;
+import io.swagger.annotations.Api;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 缓存重建进度，缓存未就绪时返回 503，可作为负载均衡的就绪探针
+ */
+@RestController
+@Api(tags = {"缓存管理接口"})
+public class CacheController extends BaseController {
+    private final int NOT_READY_STATUS = 503;
+
+    private CacheRehydrator rehydrator;
+
+    private RedisCacheManager redisManager;
+
+    @Autowired
+    public CacheController(CacheRehydrator rehydrator, RedisCacheManager redisManager) {
+        this.rehydrator = rehydrator;
+        this.redisManager = redisManager;
+    }
+
+    /**
+     * 供负载均衡探测，不需要任何令牌
+     */
+    @GetMapping("/admin/get_cache_readiness")
+    public String getCacheReadiness(HttpServletResponse response) {
+        if (!rehydrator.isReady()) {
+            response.setStatus(NOT_READY_STATUS);
+            return getResponseResult(NOT_READY_STATUS, "缓存正在重建", rehydrator.getProgress());
+        }
+        return getResponseResult(200, "ok", rehydrator.getProgress());
+    }
+
+    /**
+     * 在后台重建缓存，缓存已经就绪时什么也不做；已有重建正在进行时返回 409
+     */
+    @PostMapping("/admin/rehydrate_cache")
+    public String rehydrateCache() {
+        if (!rehydrator.rehydrateInBackground()) {
+            return getResponseResult(409, "缓存正在重建", rehydrator.getProgress());
+        }
+        return getResponseResult(200, "ok", rehydrator.getProgress());
+    }
+
+    /**
+     * 本节点缓存的命中、未命中、提前刷新次数以及从数据库加载的次数与总耗时
+     */
+    @GetMapping("/admin/get_cache_stats")
+    public String getCacheStats() {
+        return getResponseResult(200, "ok", redisManager.getCacheStats());
+    }
+}
@@ -1,6 +1,7 @@
 package com.ymsz.controller;
 
 import com.alibaba.fastjson.JSONObject;
+import com.ymsz.config.OrderResultNotifier;
 import com.ymsz.controller.base.BaseController;
 import com.ymsz.exception.UpdateException;
 import com.ymsz.pojo.Dish;
@@ -11,14 +12,17 @@ import com.ymsz.service.OrderService;
 import com.ymsz.utils.VerifyUtils;
 import io.swagger.annotations.Api;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.function.IntConsumer;
 
 /**
  * @author jinshan.wang
@@ -31,9 +35,18 @@ import java.util.Map;
 public class OrderController extends BaseController {
     private OrderService service;
 
+    private OrderResultNotifier notifier;
+
+    /**
+     * 查询下单结果时请求最长挂起的时间，毫秒
+     */
+    @Value("${order.check-timeout-ms:10000}")
+    private long checkTimeoutMs;
+
     @Autowired
-    public OrderController(OrderService service) {
+    public OrderController(OrderService service, OrderResultNotifier notifier) {
         this.service = service;
+        this.notifier = notifier;
     }
 
     @GetMapping(value = "/get_user_orders")
@@ -249,35 +262,41 @@ public class OrderController extends BaseController {
         }
     }
 
-    static int c = 5;
-
+    /**
+     * <p>查询下单结果，结果未出时挂起请求，直到消费者处理完订单或超时</p>
+     * <p>超时后返回正在排队，客户端重新发起请求即可</p>
+     */
     @GetMapping("/check")
-    public String isComplete(String orderId) {
+    public DeferredResult<String> isComplete(String orderId) {
+        DeferredResult<String> result = new DeferredResult<>(checkTimeoutMs, getResponseResult(0, "正在排队", null));
         if (orderId == null) {
-            return getResponseResult(400, "参数错误", null);
-        }
-        System.out.println("模拟排队.......");
-        if (c < 0) {
-            c = 3;
-        }
-        if (c-- != 0) {
-            return getResponseResult(0, "正在排队", null);
+            result.setResult(getResponseResult(400, "参数错误", null));
+            return result;
         }
+        IntConsumer callback = complete -> result.setResult(getCheckResult(complete));
+        notifier.subscribe(orderId, callback);
+        result.onCompletion(() -> notifier.unsubscribe(orderId, callback));
         try {
+            // 订阅之前结果可能已经写入
             int complete = service.isComplete(orderId);
-            System.out.println("complete = " + complete);
-            if (complete == 1) {
-                return getResponseResult(200, "下单成功", null);
-            } else if (complete == -1) {
-                return getResponseResult(409, "下单失败", null);
-            } else {
-                return getResponseResult(0, "正在排队", null);
+            if (complete != 0) {
+                result.setResult(getCheckResult(complete));
             }
         } catch (Exception e) {
             e.printStackTrace();
             String msg = e.getMessage();
             msg = msg == null ? e.getCause().toString() : msg;
-            return getResponseResult(400, msg, null);
+            result.setResult(getResponseResult(400, msg, null));
+        }
+        return result;
+    }
+
+    private String getCheckResult(int complete) {
+        if (complete == 1) {
+            return getResponseResult(200, "下单成功", null);
+        } else if (complete == -1) {
+            return getResponseResult(409, "下单失败", null);
         }
+        return getResponseResult(0, "正在排队", null);
     }
 }
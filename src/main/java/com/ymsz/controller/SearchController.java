@@ -1,11 +1,73 @@
 package com.ymsz.controller;
 
+import com.ymsz.controller.base.BaseController;
+import com.ymsz.service.SearchService;
+import com.ymsz.utils.VerifyUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
 /**
- * 利用 MYSQL 全文搜索搜索店铺、菜品，正在开发中...
+ * 搜索店铺、菜品，使用内存中的倒排索引，不再访问 MYSQL 全文索引
  * @author Happysnaker
  * @description
  * @date 2021/10/22
  * @email happysnaker@foxmail.com
  */
-public class SearchController {
+@RestController
+public class SearchController extends BaseController {
+    private final int DEFAULT_LIMIT = 20;
+    private final int MAX_LIMIT = 50;
+
+    private SearchService service;
+
+    /**
+     * 前缀树每个节点为每类提示预先计算 search.suggest-top-k 条，同时也是输入提示的默认与最大条数
+     */
+    private int suggestTopK;
+
+    @Autowired
+    public SearchController(SearchService service, @Value("${search.suggest-top-k:10}") int suggestTopK) {
+        this.service = service;
+        this.suggestTopK = suggestTopK;
+    }
+
+    @GetMapping(value = "/search")
+    public String search(HttpServletRequest request, HttpServletResponse response) {
+        String keyword = request.getParameter(KEYWORD_PARAM);
+        String limit = request.getParameter(LIMIT_PARAM);
+        if (VerifyUtils.isNullOrEmpty(keyword) || (limit != null && !VerifyUtils.isNumber(limit))) {
+            response.setStatus(PARAM_ERROR_STATUS);
+            return PARAM_ERROR_MSG;
+        }
+        int n = limit == null ? DEFAULT_LIMIT : Integer.parseInt(limit);
+        if (n < 1 || n > MAX_LIMIT) {
+            response.setStatus(PARAM_ERROR_STATUS);
+            return PARAM_ERROR_MSG;
+        }
+        return service.search(keyword, n);
+    }
+
+    /**
+     * 输入提示，每输入一个字调用一次，只查询内存中的前缀树
+     */
+    @GetMapping(value = "/search/suggest")
+    public String suggest(HttpServletRequest request, HttpServletResponse response) {
+        String keyword = request.getParameter(KEYWORD_PARAM);
+        String limit = request.getParameter(LIMIT_PARAM);
+        if (VerifyUtils.isNullOrEmpty(keyword) || (limit != null && !VerifyUtils.isNumber(limit))) {
+            response.setStatus(PARAM_ERROR_STATUS);
+            return PARAM_ERROR_MSG;
+        }
+        int n = limit == null ? suggestTopK : Integer.parseInt(limit);
+        if (n < 1 || n > suggestTopK) {
+            response.setStatus(PARAM_ERROR_STATUS);
+            return PARAM_ERROR_MSG;
+        }
+        return service.suggest(keyword, n);
+    }
 }
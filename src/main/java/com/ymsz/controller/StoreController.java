@@ -19,6 +19,17 @@ import javax.servlet.http.HttpServletResponse;
  */
 @RestController
 public class StoreController extends BaseController {
+    private final int DEFAULT_PAGE_SIZE = 10;
+    private final int MAX_PAGE_SIZE = 50;
+    /**
+     * 附近店铺最多翻到的页数，更远的店铺没有意义，也避免一次查询过多的店铺
+     */
+    private final int MAX_PAGE = 100;
+    /**
+     * 页码与每页数目的最大位数，超过时 Integer.parseInt 会溢出
+     */
+    private final int MAX_NUMBER_LENGTH = 9;
+
     private StoreService service;
 
     @Autowired
@@ -31,6 +42,32 @@ public class StoreController extends BaseController {
         return service.getStoreInfo();
     }
 
+    /**
+     * 距离用户最近的营业中的店铺，分页返回，page 从 1 开始，可选 takeout=1 只返回支持外卖的店铺
+     */
+    @GetMapping(value = "/get_nearby_stores")
+    public String getNearbyStores(HttpServletRequest request, HttpServletResponse response) {
+        String page = request.getParameter(PAGE_PARAM);
+        String pageSize = request.getParameter(PAGE_SIZE_PARAM);
+        if (!VerifyUtils.isDecimal(request.getParameter(LONGITUDE_PARAM))
+                || !VerifyUtils.isDecimal(request.getParameter(LATITUDE_PARAM))
+                || (page != null && (!VerifyUtils.isNumber(page) || page.length() > MAX_NUMBER_LENGTH))
+                || (pageSize != null && (!VerifyUtils.isNumber(pageSize) || pageSize.length() > MAX_NUMBER_LENGTH))) {
+            response.setStatus(PARAM_ERROR_STATUS);
+            return PARAM_ERROR_MSG;
+        }
+        double longitude = Double.parseDouble(request.getParameter(LONGITUDE_PARAM));
+        double latitude = Double.parseDouble(request.getParameter(LATITUDE_PARAM));
+        int p = page == null ? 1 : Integer.parseInt(page);
+        int size = pageSize == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(pageSize);
+        if (longitude < -180 || longitude > 180 || latitude < -90 || latitude > 90
+                || p < 1 || p > MAX_PAGE || size < 1 || size > MAX_PAGE_SIZE) {
+            response.setStatus(PARAM_ERROR_STATUS);
+            return PARAM_ERROR_MSG;
+        }
+        return service.getNearbyStores(longitude, latitude, "1".equals(request.getParameter(TAKEOUT_PARAM)), p, size);
+    }
+
     @GetMapping(value = "/get_store")
     public String getStoreById(HttpServletRequest request, HttpServletResponse response) {
         if (!VerifyUtils.isNumber(request.getParameter(STORE_ID_PARAM))) {
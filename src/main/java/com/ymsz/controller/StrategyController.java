@@ -0,0 +1,65 @@
+package com.ymsz.controller;
+
+import com.ymsz.controller.base.BaseController;
+import com.ymsz.strategy.PlaceOrderStrategyContent;
+import com.ymsz.utils.StripedLockManager;
+import com.ymsz.utils.VerifyUtils;
+import io.swagger.annotations.Api;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 查看与手动指定店铺的下单策略，0是高并发，1是乐观锁，2是悲观锁，3是串行化
+ */
+@RestController
+@Api(tags = {"下单策略管理接口"})
+public class StrategyController extends BaseController {
+    private final String TYPE_PARAM = "type";
+
+    private PlaceOrderStrategyContent content;
+
+    private StripedLockManager lockManager;
+
+    @Autowired
+    public StrategyController(PlaceOrderStrategyContent content, StripedLockManager lockManager) {
+        this.content = content;
+        this.lockManager = lockManager;
+    }
+
+    @GetMapping("/admin/get_place_order_strategy")
+    public String getPlaceOrderStrategy() {
+        return getResponseResult(200, "ok", content.getStrategies());
+    }
+
+    /**
+     * 悲观锁模式下分段锁的获取、等待与超时次数
+     */
+    @GetMapping("/admin/get_lock_stats")
+    public String getLockStats() {
+        return getResponseResult(200, "ok", lockManager.getStats());
+    }
+
+    /**
+     * 指定店铺的策略，type 为 -1 时取消手动指定
+     */
+    @PostMapping("/admin/set_place_order_strategy")
+    public String setPlaceOrderStrategy(HttpServletRequest request, HttpServletResponse response) {
+        String storeId = request.getParameter(STORE_ID_PARAM), type = request.getParameter(TYPE_PARAM);
+        if (!VerifyUtils.isNumber(storeId) || VerifyUtils.isNullOrEmpty(type)) {
+            response.setStatus(PARAM_ERROR_STATUS);
+            return PARAM_ERROR_MSG;
+        }
+        try {
+            content.overrideStrategy(Integer.parseInt(storeId), Integer.parseInt(type));
+        } catch (IllegalArgumentException e) {
+            response.setStatus(PARAM_ERROR_STATUS);
+            return getResponseResult(PARAM_ERROR_STATUS, e.getMessage(), null);
+        }
+        return getResponseResult(200, "ok", content.getStrategies());
+    }
+}
@@ -40,6 +40,13 @@ public class BaseController {
     protected final String ADDRESS_PARAM = "address";
     protected final String ADDRESS_ID_PARAM = "addressId";
     protected final String USER_REQUEST_MSG_TIMESTAMP = "timestamp";
+    protected final String LONGITUDE_PARAM = "longitude";
+    protected final String LATITUDE_PARAM = "latitude";
+    protected final String TAKEOUT_PARAM = "takeout";
+    protected final String PAGE_PARAM = "page";
+    protected final String PAGE_SIZE_PARAM = "pageSize";
+    protected final String KEYWORD_PARAM = "keyword";
+    protected final String LIMIT_PARAM = "limit";
 
 
 
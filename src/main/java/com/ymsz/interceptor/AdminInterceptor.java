@@ -0,0 +1,34 @@
+package com.ymsz.interceptor;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * <p>后台管理接口（/admin/**）的鉴权，小程序用户的 token 不能访问这些接口</p>
+ * <p>请求头 {@link #ADMIN_TOKEN_HEADER} 必须与配置项 admin.token 一致；未配置 admin.token 时拒绝所有后台请求</p>
+ */
+@Slf4j
+public class AdminInterceptor implements HandlerInterceptor {
+    public static final String ADMIN_TOKEN_HEADER = "X-Admin-Token";
+
+    @Value("${admin.token:}")
+    private String adminToken;
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        String token = request.getHeader(ADMIN_TOKEN_HEADER);
+        if (adminToken == null || adminToken.isEmpty() || token == null
+                || !MessageDigest.isEqual(adminToken.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            log.warn("拒绝未授权的后台请求：" + request.getRequestURI() + "，来源：" + request.getRemoteAddr());
+            response.setStatus(403);
+            return false;
+        }
+        return true;
+    }
+}
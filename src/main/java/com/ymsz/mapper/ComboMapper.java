@@ -25,6 +25,12 @@ public interface ComboMapper {
      */
     List<Combo> queryComboInfo();
 
+    /**
+     * 查询指定的套餐，同样包含 queryComboDish
+     * @param ids 套餐ID，不能为空
+     */
+    List<Combo> queryComboInfoByIds(@Param("ids") int[] ids);
+
     /**
      * map中存放着 combo_dish 表中的信息，key1是字段名，我们将其映射为dishId、dishNum、comboId, val1是对应的值
      * @return Map
@@ -39,6 +45,12 @@ public interface ComboMapper {
      */
     List<ComboDish> queryComboDishById(@Param("comboId") int comboId);
 
+    /**
+     * 查询所有套餐包含的菜品ID与数目，按套餐ID排序，用于构建套餐索引
+     * @return 只包含 comboId、dishId、dishNum
+     */
+    List<ComboDish> queryAllComboDish();
+
 
     /**
      * 通过comboID获取该菜品的标签信息
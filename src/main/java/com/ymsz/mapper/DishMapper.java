@@ -2,6 +2,7 @@ package com.ymsz.mapper;
 
 import com.ymsz.pojo.Dish;
 import org.apache.ibatis.annotations.*;
+import org.apache.ibatis.cursor.Cursor;
 import org.springframework.stereotype.Repository;
 
 import java.sql.Timestamp;
@@ -30,6 +31,22 @@ public interface DishMapper {
      */
     List<Dish> queryDishes();
 
+    /**
+     * 查询指定的菜品
+     * @param ids 菜品ID，不能为空
+     */
+    List<Dish> queryDishesByIds(@Param("ids") int[] ids);
+
+    /**
+     * 流式读取所有菜品的制作时间，每一项包含 id 与 make_time，用于重建缓存
+     */
+    Cursor<Map<String, Object>> scanDishMakeTime();
+
+    /**
+     * 流式读取店铺所有菜品的库存，每一项包含 id 与 stock，不加锁，用于重建缓存
+     */
+    Cursor<Map<String, Object>> scanDishStock(@Param("storeId") int storeId);
+
     /**
      * 查询指定菜品的信息，这个函数仅仅只会读取 dish 表中的信息
      * @param id 菜品ID
@@ -102,9 +119,16 @@ public interface DishMapper {
      * @param val 增加或者减少的值，当这个值为负时表示减少，所有的更改都是在原值上修改的
      * @return 影响的记录数，如果成功，则为1，否则为0
      */
-    @Update("UPDATE dms_dish SET sale = sale + #{val}")
+    @Update("UPDATE dms_dish SET sale = sale + #{val} WHERE id = #{dishId}")
     int updateDishSale(@Param("dishId") int dishId, @Param("val") int val);
 
+    /**
+     * 批量增加菜品销量
+     * @param sales 菜品ID -> 增加的销量
+     * @return row
+     */
+    int updateDishSaleBatch(@Param("sales") Map<Integer, Long> sales);
+
     /**
      * 向 dish_sale 表中插入一条日志记录
      * @param dishId 菜品ID
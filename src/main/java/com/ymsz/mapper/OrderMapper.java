@@ -165,4 +165,39 @@ public interface OrderMapper {
     @Insert("INSERT INTO `oms_fetch_meal_code` SELECT #{id}, #{code}")
     int insertFetchMealCode(@Param("id") String orderId, @Param("code") String code);
 
+    /**
+     * 批量插入订单，一条 INSERT 写入多行
+     * @param orders 新订单
+     * @return 影响的行数
+     */
+    int insertOrderInfoBatch(@Param("orders") List<Order> orders);
+
+    /**
+     * 批量插入订单与支付单号的对应关系
+     * @param orders 新订单，需包含支付单号
+     * @return 影响的行数
+     */
+    int insertOrderPayBatch(@Param("orders") List<Order> orders);
+
+    /**
+     * 批量插入取餐凭证
+     * @param orders 订单，需包含取餐码
+     * @return 影响的行数
+     */
+    int insertFetchMealCodeBatch(@Param("orders") List<Order> orders);
+
+    /**
+     * 批量插入订单中的菜品
+     * @param rows 订单菜品，除菜品信息外还需包含 orderId
+     * @return 影响的行数
+     */
+    int insertOrderDishBatch(@Param("rows") List<Map<String, Object>> rows);
+
+    /**
+     * 查询已经存在的订单，用于判断订单消息是否已经落库
+     * @param ids 订单ID
+     * @return 其中已存在的订单ID
+     */
+    List<String> queryExistingOrderIds(@Param("ids") List<String> ids);
+
 }
@@ -3,7 +3,9 @@ package com.ymsz.mapper;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Happysnaker
@@ -33,4 +35,24 @@ public interface SearchMapper {
      * @return 店铺ID 封装成 List
      */
     List<Integer> queryStoreByName(@Param("name") String addressName);
+
+    /**
+     * 查询建立搜索索引所需的菜品字段：id、name、main_ingredient、ingredient、tags（空格分隔）、sale、like_num
+     * @param ids 菜品ID，为 null 时查询全部菜品
+     * @return 每个菜品一行
+     */
+    List<Map<String, Object>> queryDishDocuments(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * 查询建立搜索索引所需的店铺字段：id、name
+     * @param ids 店铺ID，为 null 时查询全部店铺
+     * @return 每个店铺一行
+     */
+    List<Map<String, Object>> queryStoreDocuments(@Param("ids") Collection<Integer> ids);
+
+    /**
+     * 查询所有菜品的销量与喜欢数，用于搜索排序：id、sale、like_num
+     * @return 每个菜品一行
+     */
+    List<Map<String, Object>> queryDishPopularity();
 }
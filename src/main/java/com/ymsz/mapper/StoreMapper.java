@@ -6,6 +6,7 @@ import com.ymsz.pojo.Store;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
 import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
 
 import java.util.List;
 
@@ -32,4 +33,14 @@ public interface StoreMapper {
      * @return STORE
      */
     Store getStore(@Param("storeId") int storeId);
+
+    /**
+     * 更新地址为 address 的所有店铺的经纬度
+     * @param address 地址
+     * @param longitude 经度
+     * @param latitude 纬度
+     * @return 更新的店铺数
+     */
+    @Update("UPDATE sms_store SET longitude = #{longitude}, latitude = #{latitude} WHERE address = #{address}")
+    int updateStoreLocation(@Param("address") String address, @Param("longitude") String longitude, @Param("latitude") String latitude);
 }
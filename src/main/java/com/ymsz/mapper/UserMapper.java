@@ -2,6 +2,7 @@ package com.ymsz.mapper;
 
 import com.ymsz.pojo.User;
 import org.apache.ibatis.annotations.*;
+import org.apache.ibatis.cursor.Cursor;
 
 import java.sql.Timestamp;
 import java.util.List;
@@ -15,18 +16,58 @@ import java.util.Map;
  */
 @Mapper
 public interface UserMapper {
+    /**
+     * 用户标记（喜欢、收藏、待选）菜品或店铺的表，表名只能来自这里，不接受外部输入
+     */
+    enum MarkedTable {
+        FAVORITE_DISH("ums_favorite_dish", "dish_id"),
+        COLLECTED_DISH("ums_collected_dish", "dish_id"),
+        WILL_BUY_DISH("ums_willbuy_dish", "dish_id"),
+        COLLECTED_STORE("ums_collected_store", "store_id");
+
+        private final String tableName;
+        private final String idColumn;
+
+        MarkedTable(String tableName, String idColumn) {
+            this.tableName = tableName;
+            this.idColumn = idColumn;
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String getIdColumn() {
+            return idColumn;
+        }
+    }
+
     /**
      * 更新积分
      * @param userId
      * @param delta
      * @return
      */
-    @Update("UPDATE `ums_user` SET integral = integral + #{val}")
+    @Update("UPDATE `ums_user` SET integral = integral + #{val} WHERE id = #{id}")
     int updateUserPoints(@Param("id") String userId, @Param("val") int delta);
 
+    /**
+     * 批量更新积分
+     * @param points 用户ID -> 增加的积分
+     * @return row
+     */
+    int updateUserPointsBatch(@Param("points") Map<String, Long> points);
+
     @Select("SELECT id FROM `ums_user`")
     List<String> queryAllUserIds();
 
+    /**
+     * 按 ID 升序查询 ID 大于 after 的所有用户，用于从断点处继续同步
+     * @param after 为 null 时查询所有用户
+     * @return 用户ID
+     */
+    List<String> queryUserIdsAfter(@Param("after") String after);
+
     /**
      * 记录用户上一次登录
      */
@@ -78,6 +119,50 @@ public interface UserMapper {
      */
     List<Integer> queryWillBuyDish(@Param("userId") String userId);
 
+    /**
+     * 按用户顺序流式读取所有用户收藏的菜品，每一项包含 user_id 与 id，用于重建缓存
+     */
+    Cursor<Map<String, Object>> scanCollectedDish();
+
+    /**
+     * 按用户顺序流式读取所有用户收藏的店铺
+     */
+    Cursor<Map<String, Object>> scanCollectedStore();
+
+    /**
+     * 按用户顺序流式读取所有用户喜欢的菜品
+     */
+    Cursor<Map<String, Object>> scanFavoriteDish();
+
+    /**
+     * 按用户顺序流式读取所有用户待选的菜品
+     */
+    Cursor<Map<String, Object>> scanWillBuyDish();
+
+    /**
+     * 查询一批用户在某个标记表中的记录
+     * @param table 标记表
+     * @param userIds 用户ID
+     * @return 每一项包含 user_id 与 id
+     */
+    List<Map<String, Object>> queryMarkedByUsers(@Param("table") MarkedTable table, @Param("userIds") List<String> userIds);
+
+    /**
+     * 多行插入标记
+     * @param table 标记表
+     * @param rows 用户ID -> 菜品或店铺ID
+     * @return row
+     */
+    int addMarkedBatch(@Param("table") MarkedTable table, @Param("rows") List<Map.Entry<String, Integer>> rows);
+
+    /**
+     * 多行删除标记
+     * @param table 标记表
+     * @param rows 用户ID -> 菜品或店铺ID
+     * @return row
+     */
+    int removeMarkedBatch(@Param("table") MarkedTable table, @Param("rows") List<Map.Entry<String, Integer>> rows);
+
 
     /**
      * 返回用户已经享受过菜品的折扣的次数
@@ -115,6 +200,20 @@ public interface UserMapper {
      */
     int insertUsedDiscountCount(@Param("userId") String userId, @Param("dishId") int dishId, @Param("val") int newVal);
 
+    /**
+     * 批量增加用户已经享受过菜品的折扣的次数，不存在的记录会被插入
+     * @param rows 每一项包含 userId、dishId、val，同一用户同一菜品只能出现一次
+     * @return row
+     */
+    int updateUsedDiscountCountBatch(@Param("rows") List<Map<String, Object>> rows);
+
+    /**
+     * 批量插入用户尚未存在记录的折扣次数，已存在的记录会被跳过，需在 updateUsedDiscountCountBatch 之后调用
+     * @param rows 每一项包含 userId、dishId、val
+     * @return row
+     */
+    int insertUsedDiscountCountBatch(@Param("rows") List<Map<String, Object>> rows);
+
     /**
      * 添加一个用户
      * @param user user
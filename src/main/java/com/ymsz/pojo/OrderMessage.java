@@ -22,6 +22,10 @@ public class OrderMessage implements Serializable {
      * 标识消息，默认以订单 ID 标识，可通过此 ID 查询订单处理情况
      */
     String messageId;
+    /**
+     * 预扣库存的下单策略，见 {@link com.ymsz.strategy.PlaceOrderStrategyContent}，为 null 时表示高并发策略
+     */
+    Integer strategy;
 
     public OrderMessage(Map<Integer, Integer> dishStockMap, Order order) {
         this.dishNumMap = dishStockMap;
@@ -0,0 +1,216 @@
+package com.ymsz.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * <p>不可变的倒排索引，词 -> 压缩的倒排表</p>
+ * <p>更新时只重新编码受影响的词的倒排表，其余倒排表在新旧索引之间共享，读线程无需加锁</p>
+ * <p>排序：先按命中的查询词比例，再按命中字段的权重（名字 > 标签 > 配料），最后按销量与喜欢数加权</p>
+ */
+public final class InvertedIndex {
+    public static final byte NAME_FIELD = 1;
+    public static final byte TAG_FIELD = 2;
+    public static final byte INGREDIENT_FIELD = 4;
+
+    private static final double NAME_WEIGHT = 3;
+    private static final double TAG_WEIGHT = 2;
+    private static final double INGREDIENT_WEIGHT = 1;
+
+    private static final double SALE_BOOST = 0.1;
+    private static final double LIKE_BOOST = 0.2;
+
+    public static final InvertedIndex EMPTY = new InvertedIndex(Collections.emptyMap(), Collections.emptyMap());
+
+    private final Map<String, PostingList> postings;
+    private final Map<Integer, SearchDocument> documents;
+
+    private InvertedIndex(Map<String, PostingList> postings, Map<Integer, SearchDocument> documents) {
+        this.postings = postings;
+        this.documents = documents;
+    }
+
+    public static InvertedIndex build(Collection<SearchDocument> documents) {
+        return EMPTY.update(documents, Collections.emptyList());
+    }
+
+    /**
+     * @param upserts    新增或修改的文档，同一个ID出现多次时以最后一个为准
+     * @param removedIds 删除的文档ID，同时出现在 upserts 中时以 upserts 为准
+     * @return 新的索引，当前索引不变
+     */
+    public InvertedIndex update(Collection<SearchDocument> upserts, Collection<Integer> removedIds) {
+        Map<String, PostingList> nextPostings = new HashMap<>(postings);
+        Map<Integer, SearchDocument> nextDocuments = new HashMap<>(documents);
+        Set<Integer> changed = new HashSet<>(removedIds);
+        Set<String> affected = new HashSet<>();
+        Map<String, TreeMap<Integer, Byte>> added = new HashMap<>();
+        Map<Integer, SearchDocument> latest = new LinkedHashMap<>();
+        for (SearchDocument doc : upserts) {
+            latest.put(doc.getId(), doc);
+        }
+        for (SearchDocument doc : latest.values()) {
+            changed.add(doc.getId());
+            for (Map.Entry<String, Byte> it : termFields(doc).entrySet()) {
+                added.computeIfAbsent(it.getKey(), k -> new TreeMap<>()).put(doc.getId(), it.getValue());
+            }
+        }
+        for (Integer id : changed) {
+            SearchDocument old = nextDocuments.remove(id);
+            if (old != null) {
+                affected.addAll(termFields(old).keySet());
+            }
+        }
+        nextDocuments.putAll(latest);
+        affected.addAll(added.keySet());
+
+        for (String term : affected) {
+            PostingList old = nextPostings.getOrDefault(term, PostingList.EMPTY);
+            TreeMap<Integer, Byte> adds = added.getOrDefault(term, new TreeMap<>());
+            int[] oldIds = new int[old.size()];
+            byte[] oldFields = new byte[old.size()];
+            old.decode(oldIds, oldFields);
+            int[] ids = new int[old.size() + adds.size()];
+            byte[] fields = new byte[ids.length];
+            int n = 0;
+            int i = 0;
+            // 归并：旧表中跳过被修改的文档，再按ID顺序插入新的项
+            for (Map.Entry<Integer, Byte> add : adds.entrySet()) {
+                for (; i < oldIds.length && oldIds[i] < add.getKey(); i++) {
+                    if (!changed.contains(oldIds[i])) {
+                        ids[n] = oldIds[i];
+                        fields[n++] = oldFields[i];
+                    }
+                }
+                if (i < oldIds.length && oldIds[i] == add.getKey()) {
+                    i++;
+                }
+                ids[n] = add.getKey();
+                fields[n++] = add.getValue();
+            }
+            for (; i < oldIds.length; i++) {
+                if (!changed.contains(oldIds[i])) {
+                    ids[n] = oldIds[i];
+                    fields[n++] = oldFields[i];
+                }
+            }
+            if (n == 0) {
+                nextPostings.remove(term);
+            } else {
+                nextPostings.put(term, PostingList.of(ids, fields, n));
+            }
+        }
+        return new InvertedIndex(nextPostings, nextDocuments);
+    }
+
+    /**
+     * 只替换文档的销量与喜欢数，倒排表不变
+     *
+     * @param popularity 文档ID -> {销量, 喜欢数}
+     */
+    public InvertedIndex withPopularity(Map<Integer, long[]> popularity) {
+        Map<Integer, SearchDocument> nextDocuments = new HashMap<>(documents);
+        for (Map.Entry<Integer, long[]> it : popularity.entrySet()) {
+            SearchDocument doc = nextDocuments.get(it.getKey());
+            if (doc != null) {
+                nextDocuments.put(it.getKey(), doc.withPopularity(it.getValue()[0], it.getValue()[1]));
+            }
+        }
+        return new InvertedIndex(postings, nextDocuments);
+    }
+
+    /**
+     * @param terms  {@link Tokenizer#queryTerms} 的结果
+     * @param limit  最多返回的结果数
+     * @param filter 过滤条件，例如下架的菜品
+     * @return 按得分从高到低排列
+     */
+    public List<SearchHit> search(List<String> terms, int limit, Predicate<SearchDocument> filter) {
+        if (terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // 文档ID -> {字段权重之和, 命中的词数}
+        Map<Integer, double[]> matched = new HashMap<>();
+        for (String term : terms) {
+            PostingList list = postings.get(term);
+            if (list == null) {
+                continue;
+            }
+            int[] ids = new int[list.size()];
+            byte[] fields = new byte[list.size()];
+            list.decode(ids, fields);
+            for (int i = 0; i < ids.length; i++) {
+                double[] m = matched.computeIfAbsent(ids[i], k -> new double[2]);
+                m[0] += fieldWeight(fields[i]);
+                m[1]++;
+            }
+        }
+        PriorityQueue<SearchHit> top = new PriorityQueue<>(limit + 1, Comparator.comparingDouble(SearchHit::getScore));
+        for (Map.Entry<Integer, double[]> it : matched.entrySet()) {
+            SearchDocument doc = documents.get(it.getKey());
+            if (doc == null || !filter.test(doc)) {
+                continue;
+            }
+            double coverage = it.getValue()[1] / terms.size();
+            double text = it.getValue()[0] / (NAME_WEIGHT * terms.size());
+            double boost = 1 + SALE_BOOST * Math.log1p(Math.max(0, doc.getSale())) + LIKE_BOOST * Math.log1p(Math.max(0, doc.getLikes()));
+            double score = coverage * coverage * text * boost;
+            if (top.size() < limit || score > top.peek().getScore()) {
+                top.offer(new SearchHit(doc.getId(), doc.getName(), score));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        }
+        List<SearchHit> ans = new ArrayList<>(top);
+        ans.sort(Comparator.comparingDouble(SearchHit::getScore).reversed());
+        return ans;
+    }
+
+    public Collection<SearchDocument> documents() {
+        return Collections.unmodifiableCollection(documents.values());
+    }
+
+    public int documentCount() {
+        return documents.size();
+    }
+
+    public int termCount() {
+        return postings.size();
+    }
+
+    private static double fieldWeight(byte fields) {
+        if ((fields & NAME_FIELD) != 0) {
+            return NAME_WEIGHT;
+        }
+        if ((fields & TAG_FIELD) != 0) {
+            return TAG_WEIGHT;
+        }
+        return (fields & INGREDIENT_FIELD) != 0 ? INGREDIENT_WEIGHT : 0;
+    }
+
+    private static Map<String, Byte> termFields(SearchDocument doc) {
+        Map<String, Byte> terms = new HashMap<>();
+        addTerms(terms, doc.getName(), NAME_FIELD);
+        addTerms(terms, doc.getTags(), TAG_FIELD);
+        addTerms(terms, doc.getIngredients(), INGREDIENT_FIELD);
+        return terms;
+    }
+
+    private static void addTerms(Map<String, Byte> terms, String text, byte field) {
+        for (String term : Tokenizer.indexTerms(text)) {
+            terms.merge(term, field, (a, b) -> (byte) (a | b));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.ymsz.search;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>汉字拼音首字母，不依赖拼音库</p>
+ * <p>GB2312 一级汉字（3755 个常用字）按拼音排序，根据汉字的区位码落在哪个字母的区间即可得到首字母；二级汉字以及 GB2312 之外的字没有首字母</p>
+ */
+public class PinyinInitials {
+    private static final Charset GB2312 = Charset.forName("GB2312");
+
+    /**
+     * 每个首字母在 GB2312 中第一个汉字的区位码，最后一项是一级汉字的结束位置
+     */
+    private static final int[] AREA_CODES = {
+            1601, 1637, 1833, 2078, 2274, 2302, 2433, 2594, 2787, 3106, 3212, 3472,
+            3635, 3722, 3730, 3858, 4027, 4086, 4390, 4558, 4684, 4925, 5249, 5590
+    };
+    private static final char[] LETTERS = {
+            'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'j', 'k', 'l', 'm',
+            'n', 'o', 'p', 'q', 'r', 's', 't', 'w', 'x', 'y', 'z'
+    };
+
+    /**
+     * @return 汉字的拼音首字母，无法识别时返回 0
+     */
+    public static char of(char c) {
+        if (c < 0x80) {
+            return 0;
+        }
+        byte[] bytes = String.valueOf(c).getBytes(GB2312);
+        if (bytes.length != 2) {
+            return 0;
+        }
+        int code = ((bytes[0] & 0xff) - 160) * 100 + ((bytes[1] & 0xff) - 160);
+        for (int i = 0; i < LETTERS.length; i++) {
+            if (code >= AREA_CODES[i] && code < AREA_CODES[i + 1]) {
+                return LETTERS[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 文本中每个汉字的首字母依次拼接，字母数字转为小写保留，其余字符忽略，例如 "宫保鸡丁" 为 "gbjd"
+     *
+     * @return 文本中没有可识别的汉字时返回 null
+     */
+    public static String of(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        boolean hasHan = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if (Character.isLetterOrDigit(c)) {
+                    sb.append(Character.toLowerCase(c));
+                }
+                continue;
+            }
+            char initial = of(c);
+            if (initial != 0) {
+                sb.append(initial);
+                hasHan = true;
+            }
+        }
+        return hasHan ? sb.toString() : null;
+    }
+}
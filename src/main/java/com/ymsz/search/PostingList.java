@@ -0,0 +1,79 @@
+package com.ymsz.search;
+
+/**
+ * <p>压缩的倒排表，文档ID升序排列</p>
+ * <p>每一项依次存储与前一个文档ID之差（varint 编码，每字节 7 位）以及一个字节的字段掩码，表示该词出现在文档的哪些字段中；相邻ID通常很接近，一项一般只占 2 个字节</p>
+ */
+public final class PostingList {
+    public static final PostingList EMPTY = new PostingList(new byte[0], 0);
+
+    private final byte[] data;
+    private final int size;
+
+    private PostingList(byte[] data, int size) {
+        this.data = data;
+        this.size = size;
+    }
+
+    /**
+     * @param docIds 文档ID，必须升序且不重复
+     * @param fields 对应的字段掩码
+     * @param n      前 n 项有效
+     */
+    public static PostingList of(int[] docIds, byte[] fields, int n) {
+        if (n == 0) {
+            return EMPTY;
+        }
+        byte[] buf = new byte[n * 6];
+        int pos = 0;
+        int prev = 0;
+        for (int i = 0; i < n; i++) {
+            int delta = docIds[i] - prev;
+            prev = docIds[i];
+            while ((delta & ~0x7f) != 0) {
+                buf[pos++] = (byte) ((delta & 0x7f) | 0x80);
+                delta >>>= 7;
+            }
+            buf[pos++] = (byte) delta;
+            buf[pos++] = fields[i];
+        }
+        byte[] data = new byte[pos];
+        System.arraycopy(buf, 0, data, 0, pos);
+        return new PostingList(data, n);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 解码全部文档ID与字段掩码
+     *
+     * @param docIds 长度至少为 {@link #size()}
+     * @param fields 长度至少为 {@link #size()}
+     */
+    public void decode(int[] docIds, byte[] fields) {
+        int pos = 0;
+        int prev = 0;
+        for (int i = 0; i < size; i++) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                delta |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            prev += delta;
+            docIds[i] = prev;
+            fields[i] = data[pos++];
+        }
+    }
+
+    /**
+     * @return 压缩后占用的字节数
+     */
+    public int bytes() {
+        return data.length;
+    }
+}
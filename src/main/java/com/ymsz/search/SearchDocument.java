@@ -0,0 +1,28 @@
+package com.ymsz.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 参与搜索的文档，即一个菜品或一个店铺，店铺只有名字
+ */
+@Getter
+@AllArgsConstructor
+public class SearchDocument {
+    private final int id;
+    private final String name;
+    /**
+     * 标签，空格分隔
+     */
+    private final String tags;
+    /**
+     * 主料与配料
+     */
+    private final String ingredients;
+    private final long sale;
+    private final long likes;
+
+    public SearchDocument withPopularity(long sale, long likes) {
+        return new SearchDocument(id, name, tags, ingredients, sale, likes);
+    }
+}
@@ -0,0 +1,235 @@
+package com.ymsz.search;
+
+import com.ymsz.mapper.SearchMapper;
+import com.ymsz.service.impl.DishServiceImpl;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * <p>内存中的菜品与店铺搜索，替代 MySQL 全文索引</p>
+ * <p>菜品按名字、标签、配料建立索引，店铺按名字建立索引。启动时全量构建，之后在收到 {@link DishServiceImpl#CATALOG_CHANGED_CHANNEL} 的消息时增量更新；销量与喜欢数定时刷新，只影响排序；全量重建作为兜底</p>
+ * <p>输入提示的前缀树由索引中的文档构建，覆盖菜品名、标签、店铺名及其拼音首字母，每次索引变化后在同一个后台线程中重新构建，查询不访问数据库</p>
+ */
+@Slf4j
+@Component
+public class SearchEngine {
+    private static final String DISH_CHANGED_PREFIX = "dish:";
+    private static final String STORE_CHANGED_PREFIX = "store:";
+
+    @Autowired
+    private SearchMapper searchMapper;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    private volatile InvertedIndex dishIndex = InvertedIndex.EMPTY;
+    private volatile InvertedIndex storeIndex = InvertedIndex.EMPTY;
+    private volatile SuggestTrie suggestTrie = SuggestTrie.EMPTY;
+
+    /**
+     * 前缀树每个节点为每类提示预先计算的条数
+     */
+    @Value("${search.suggest-top-k:10}")
+    private int suggestTopK;
+
+    /**
+     * 在后台依次处理变更通知，不占用消息监听线程
+     */
+    private final ExecutorService updater = Executors.newSingleThreadExecutor();
+
+    @PostConstruct
+    public void init() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.error("构建搜索索引失败，等待下一次重建", e);
+        }
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            updater.execute(() -> onCatalogChanged(body));
+        }, new ChannelTopic(DishServiceImpl.CATALOG_CHANGED_CHANNEL));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        updater.shutdownNow();
+    }
+
+    public List<SearchHit> searchDishes(String keyword, int limit, Predicate<SearchDocument> filter) {
+        return dishIndex.search(Tokenizer.queryTerms(keyword), limit, filter);
+    }
+
+    public List<SearchHit> searchStores(String keyword, int limit, Predicate<SearchDocument> filter) {
+        return storeIndex.search(Tokenizer.queryTerms(keyword), limit, filter);
+    }
+
+    /**
+     * @param prefix 用户已输入的内容，可以是拼音首字母
+     * @param limit  最多返回的提示数
+     * @param filter 过滤条件
+     */
+    public List<Suggestion> suggest(String prefix, int limit, Predicate<Suggestion> filter) {
+        return suggestTrie.suggest(prefix, limit, filter);
+    }
+
+    @Scheduled(fixedDelayString = "${search.rebuild-ms:3600000}", initialDelayString = "${search.rebuild-ms:3600000}")
+    public synchronized void rebuild() {
+        dishIndex = InvertedIndex.build(toDishDocuments(searchMapper.queryDishDocuments(null)));
+        storeIndex = InvertedIndex.build(toStoreDocuments(searchMapper.queryStoreDocuments(null)));
+        rebuildSuggestTrie();
+        log.info("搜索索引已构建，菜品 " + dishIndex.documentCount() + " 个，店铺 " + storeIndex.documentCount()
+                + " 个，词 " + (dishIndex.termCount() + storeIndex.termCount()) + " 个");
+    }
+
+    /**
+     * 销量与喜欢数变化频繁，只替换文档的排序依据，不重新编码倒排表
+     */
+    @Scheduled(fixedDelayString = "${search.popularity-refresh-ms:60000}", initialDelayString = "${search.popularity-refresh-ms:60000}")
+    public synchronized void refreshPopularity() {
+        Map<Integer, long[]> popularity = new HashMap<>();
+        for (Map<String, Object> row : searchMapper.queryDishPopularity()) {
+            popularity.put(toInt(row.get("id")), new long[]{toLong(row.get("sale")), toLong(row.get("like_num"))});
+        }
+        dishIndex = dishIndex.withPopularity(popularity);
+        rebuildSuggestTrie();
+    }
+
+    /**
+     * 重新读取指定菜品并更新索引，数据库中已不存在的菜品从索引中删除
+     */
+    public synchronized void updateDishes(Collection<Integer> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<SearchDocument> docs = toDishDocuments(searchMapper.queryDishDocuments(ids));
+        dishIndex = dishIndex.update(docs, removed(ids, docs));
+        rebuildSuggestTrie();
+    }
+
+    public synchronized void updateStores(Collection<Integer> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        List<SearchDocument> docs = toStoreDocuments(searchMapper.queryStoreDocuments(ids));
+        storeIndex = storeIndex.update(docs, removed(ids, docs));
+        rebuildSuggestTrie();
+    }
+
+    /**
+     * 菜品按销量与喜欢数排序，标签按带有该标签的菜品的权重之和排序，店铺排在同一前缀的菜品之后
+     */
+    private void rebuildSuggestTrie() {
+        SuggestTrie.Builder builder = new SuggestTrie.Builder(suggestTopK);
+        Map<String, Double> tagWeights = new HashMap<>();
+        for (SearchDocument doc : dishIndex.documents()) {
+            double weight = 1 + doc.getSale() + 2 * doc.getLikes();
+            builder.add(new Suggestion(doc.getName(), Suggestion.DISH, doc.getId(), weight),
+                    doc.getName(), PinyinInitials.of(doc.getName()));
+            for (String tag : doc.getTags().split(" ")) {
+                if (!tag.isEmpty()) {
+                    tagWeights.merge(tag, weight, Double::sum);
+                }
+            }
+        }
+        for (Map.Entry<String, Double> it : tagWeights.entrySet()) {
+            builder.add(new Suggestion(it.getKey(), Suggestion.TAG, 0, it.getValue()),
+                    it.getKey(), PinyinInitials.of(it.getKey()));
+        }
+        for (SearchDocument doc : storeIndex.documents()) {
+            builder.add(new Suggestion(doc.getName(), Suggestion.STORE, doc.getId(), 1 + 2 * doc.getLikes()),
+                    doc.getName(), PinyinInitials.of(doc.getName()));
+        }
+        suggestTrie = builder.build();
+    }
+
+    /**
+     * 消息内容为 dish:1,2,3 或 store:1,2 时只更新这些菜品或店铺，否则全量重建
+     */
+    private void onCatalogChanged(String body) {
+        try {
+            if (body.startsWith(DISH_CHANGED_PREFIX)) {
+                updateDishes(parseIds(body.substring(DISH_CHANGED_PREFIX.length())));
+            } else if (body.startsWith(STORE_CHANGED_PREFIX)) {
+                updateStores(parseIds(body.substring(STORE_CHANGED_PREFIX.length())));
+            } else {
+                rebuild();
+            }
+        } catch (RuntimeException e) {
+            log.error("更新搜索索引失败：" + body, e);
+        }
+    }
+
+    private static Set<Integer> parseIds(String ids) {
+        Set<Integer> ans = new HashSet<>();
+        for (String id : ids.split(",")) {
+            if (!id.trim().isEmpty()) {
+                ans.add(Integer.parseInt(id.trim()));
+            }
+        }
+        return ans;
+    }
+
+    private static List<Integer> removed(Collection<Integer> ids, List<SearchDocument> docs) {
+        Set<Integer> present = new HashSet<>();
+        for (SearchDocument doc : docs) {
+            present.add(doc.getId());
+        }
+        List<Integer> removed = new ArrayList<>();
+        for (Integer id : ids) {
+            if (!present.contains(id)) {
+                removed.add(id);
+            }
+        }
+        return removed;
+    }
+
+    private static List<SearchDocument> toDishDocuments(List<Map<String, Object>> rows) {
+        List<SearchDocument> docs = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows) {
+            String ingredients = toString(row.get("main_ingredient")) + " " + toString(row.get("ingredient"));
+            docs.add(new SearchDocument(toInt(row.get("id")), toString(row.get("name")), toString(row.get("tags")),
+                    ingredients, toLong(row.get("sale")), toLong(row.get("like_num"))));
+        }
+        return docs;
+    }
+
+    private static List<SearchDocument> toStoreDocuments(List<Map<String, Object>> rows) {
+        List<SearchDocument> docs = new ArrayList<>(rows.size());
+        for (Map<String, Object> row : rows) {
+            // 店铺的收藏数作为喜欢数，用于排序与输入提示的权重
+            docs.add(new SearchDocument(toInt(row.get("id")), toString(row.get("name")), "", "", 0, toLong(row.get("collect_num"))));
+        }
+        return docs;
+    }
+
+    private static int toInt(Object val) {
+        return ((Number) val).intValue();
+    }
+
+    private static long toLong(Object val) {
+        return val == null ? 0 : ((Number) val).longValue();
+    }
+
+    private static String toString(Object val) {
+        return val == null ? "" : String.valueOf(val);
+    }
+}
@@ -0,0 +1,15 @@
+package com.ymsz.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 一条搜索结果
+ */
+@Getter
+@AllArgsConstructor
+public class SearchHit {
+    private final int id;
+    private final String name;
+    private final double score;
+}
@@ -0,0 +1,193 @@
+package com.ymsz.search;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * <p>输入提示的前缀树，不可变</p>
+ * <p>每个节点为每类提示（菜品、店铺、标签）分别预先计算出以其为前缀的权重最高的 k 条，查询只需沿前缀走到对应节点，与提示总数无关；某类提示权重普遍较低或被过滤掉时不会挤占其他类提示的名额</p>
+ * <p>构建完成后所有节点压平为数组：节点 i 的子节点位于 [childStart[i], childStart[i + 1])，按字符升序排列以便二分查找；预先计算的提示位于 [topStart[i], topStart[i + 1])</p>
+ */
+public final class SuggestTrie {
+    public static final SuggestTrie EMPTY = new Builder(1).build();
+
+    private final char[] labels;
+    private final int[] childStart;
+    private final int[] childNode;
+    private final int[] topStart;
+    private final int[] topEntries;
+    private final Suggestion[] entries;
+
+    private SuggestTrie(char[] labels, int[] childStart, int[] childNode, int[] topStart, int[] topEntries, Suggestion[] entries) {
+        this.labels = labels;
+        this.childStart = childStart;
+        this.childNode = childNode;
+        this.topStart = topStart;
+        this.topEntries = topEntries;
+        this.entries = entries;
+    }
+
+    /**
+     * @param prefix 用户已输入的内容，忽略大小写与空白
+     * @param limit  最多返回的提示数，不超过构建时的 k
+     * @param filter 过滤条件，被过滤的提示由节点中预先计算的其他提示补上
+     * @return 按权重从高到低排列
+     */
+    public List<Suggestion> suggest(String prefix, int limit, Predicate<Suggestion> filter) {
+        String key = normalize(prefix);
+        if (key.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int node = 0;
+        for (int i = 0; i < key.length(); i++) {
+            int from = childStart[node];
+            int to = childStart[node + 1];
+            int j = Arrays.binarySearch(labels, from, to, key.charAt(i));
+            if (j < 0) {
+                return Collections.emptyList();
+            }
+            node = childNode[j];
+        }
+        List<Suggestion> ans = new ArrayList<>();
+        for (int i = topStart[node]; i < topStart[node + 1] && ans.size() < limit; i++) {
+            Suggestion s = entries[topEntries[i]];
+            if (filter.test(s)) {
+                ans.add(s);
+            }
+        }
+        return ans;
+    }
+
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isWhitespace(c)) {
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    public static final class Builder {
+        private static final class Node {
+            final TreeMap<Character, Node> children = new TreeMap<>();
+            final Set<Integer> terminal = new LinkedHashSet<>();
+            int[] top;
+        }
+
+        private final int k;
+        private final Node root = new Node();
+        private final List<Suggestion> entries = new ArrayList<>();
+
+        /**
+         * @param k 每个节点为每类提示预先计算的提示数
+         */
+        public Builder(int k) {
+            this.k = k;
+        }
+
+        /**
+         * 添加一条提示，可以通过多个 key 找到它，例如名字本身以及名字的拼音首字母
+         */
+        public Builder add(Suggestion suggestion, String... keys) {
+            int entry = entries.size();
+            entries.add(suggestion);
+            for (String key : keys) {
+                String normalized = normalize(key);
+                if (normalized.isEmpty()) {
+                    continue;
+                }
+                Node node = root;
+                for (int i = 0; i < normalized.length(); i++) {
+                    node = node.children.computeIfAbsent(normalized.charAt(i), c -> new Node());
+                }
+                node.terminal.add(entry);
+            }
+            return this;
+        }
+
+        public SuggestTrie build() {
+            Comparator<Integer> byWeight = Comparator.comparingDouble((Integer e) -> entries.get(e).getWeight()).reversed();
+            computeTop(root, byWeight);
+
+            // 广度优先编号，同一节点的子节点编号连续
+            List<Node> order = new ArrayList<>();
+            Deque<Node> queue = new ArrayDeque<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                Node node = queue.poll();
+                order.add(node);
+                queue.addAll(node.children.values());
+            }
+            int n = order.size();
+            int edges = n - 1;
+            char[] labels = new char[edges];
+            int[] childNode = new int[edges];
+            int[] childStart = new int[n + 1];
+            int[] topStart = new int[n + 1];
+            int tops = 0;
+            for (Node node : order) {
+                tops += node.top.length;
+            }
+            int[] topEntries = new int[tops];
+            int edge = 0;
+            int next = 1;
+            int top = 0;
+            for (int i = 0; i < n; i++) {
+                Node node = order.get(i);
+                childStart[i] = edge;
+                for (Map.Entry<Character, Node> it : node.children.entrySet()) {
+                    labels[edge] = it.getKey();
+                    childNode[edge++] = next++;
+                }
+                topStart[i] = top;
+                System.arraycopy(node.top, 0, topEntries, top, node.top.length);
+                top += node.top.length;
+            }
+            childStart[n] = edge;
+            topStart[n] = top;
+            return new SuggestTrie(labels, childStart, childNode, topStart, topEntries, entries.toArray(new Suggestion[0]));
+        }
+
+        /**
+         * 后序遍历，节点每类提示的前 k 条从自身与子节点的前 k 条中选出，结果按权重从高到低排列
+         */
+        private void computeTop(Node node, Comparator<Integer> byWeight) {
+            Set<Integer> candidates = new LinkedHashSet<>(node.terminal);
+            for (Node child : node.children.values()) {
+                computeTop(child, byWeight);
+                for (int e : child.top) {
+                    candidates.add(e);
+                }
+            }
+            List<Integer> sorted = new ArrayList<>(candidates);
+            sorted.sort(byWeight);
+            Map<String, Integer> counts = new HashMap<>();
+            List<Integer> top = new ArrayList<>();
+            for (int e : sorted) {
+                if (counts.merge(entries.get(e).getType(), 1, Integer::sum) <= k) {
+                    top.add(e);
+                }
+            }
+            node.top = new int[top.size()];
+            for (int i = 0; i < node.top.length; i++) {
+                node.top[i] = top.get(i);
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.ymsz.search;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 一条输入提示
+ */
+@Getter
+@AllArgsConstructor
+public class Suggestion {
+    public static final String DISH = "dish";
+    public static final String STORE = "store";
+    public static final String TAG = "tag";
+
+    private final String text;
+    /**
+     * {@link #DISH}、{@link #STORE} 或 {@link #TAG}
+     */
+    private final String type;
+    /**
+     * 菜品或店铺ID，标签为 0
+     */
+    private final int id;
+    private final double weight;
+}
@@ -0,0 +1,94 @@
+package com.ymsz.search;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * <p>搜索分词，不依赖词典</p>
+ * <p>连续的汉字切分为单字与相邻两字（bigram），例如 "宫保鸡丁" 切分为 宫、保、鸡、丁、宫保、保鸡、鸡丁；连续的字母数字作为一个小写的词，其余字符作为分隔符</p>
+ */
+public class Tokenizer {
+    /**
+     * 建立索引时的分词，汉字同时产生单字与 bigram，使得单字查询也能命中
+     *
+     * @param text 文本，可以为 null
+     * @return 去重后的词
+     */
+    public static Set<String> indexTerms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String run : runs(text)) {
+            if (!isCjk(run.codePointAt(0))) {
+                terms.add(run);
+                continue;
+            }
+            int[] cps = run.codePoints().toArray();
+            for (int i = 0; i < cps.length; i++) {
+                terms.add(new String(cps, i, 1));
+                if (i + 1 < cps.length) {
+                    terms.add(new String(cps, i, 2));
+                }
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * 查询时的分词，汉字只产生 bigram，单独的一个汉字产生单字，这样多字查询只需求交较短的 bigram 倒排表
+     *
+     * @param text 查询
+     * @return 去重后的词，按在查询中出现的顺序排列
+     */
+    public static List<String> queryTerms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String run : runs(text)) {
+            if (!isCjk(run.codePointAt(0))) {
+                terms.add(run);
+                continue;
+            }
+            int[] cps = run.codePoints().toArray();
+            if (cps.length == 1) {
+                terms.add(run);
+            }
+            for (int i = 0; i + 1 < cps.length; i++) {
+                terms.add(new String(cps, i, 2));
+            }
+        }
+        return new ArrayList<>(terms);
+    }
+
+    /**
+     * 将文本切分为连续的汉字串与连续的字母数字串
+     */
+    private static List<String> runs(String text) {
+        List<String> runs = new ArrayList<>();
+        if (text == null) {
+            return runs;
+        }
+        StringBuilder sb = new StringBuilder();
+        int type = 0;
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            int t = isCjk(cp) ? 1 : Character.isLetterOrDigit(cp) ? 2 : 0;
+            if (t != type && sb.length() > 0) {
+                runs.add(sb.toString());
+                sb.setLength(0);
+            }
+            type = t;
+            if (t != 0) {
+                sb.appendCodePoint(t == 2 ? Character.toLowerCase(cp) : cp);
+            }
+        }
+        if (sb.length() > 0) {
+            runs.add(sb.toString());
+        }
+        return runs;
+    }
+
+    private static boolean isCjk(int cp) {
+        return Character.isIdeographic(cp);
+    }
+}
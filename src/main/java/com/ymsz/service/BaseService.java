@@ -1,7 +1,12 @@
 package com.ymsz.service;
 
+import com.ymsz.config.ComboIndex;
+import com.ymsz.config.KitchenQueueModel;
 import com.ymsz.config.RedisCacheManager;
+import com.ymsz.config.StatusBitmapSnapshot;
 import com.ymsz.mapper.*;
+import com.ymsz.utils.FetchMealCodeAllocator;
+import com.ymsz.utils.SnowflakeIdGenerator;
 import lombok.Data;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
@@ -28,6 +33,21 @@ public class BaseService implements Serializable {
     @Autowired
     protected RedisCacheManager redisManager;
 
+    @Autowired
+    protected ComboIndex comboIndex;
+
+    @Autowired
+    protected SnowflakeIdGenerator idGenerator;
+
+    @Autowired
+    protected FetchMealCodeAllocator fetchMealCodeAllocator;
+
+    @Autowired
+    protected KitchenQueueModel kitchenQueue;
+
+    @Autowired
+    protected StatusBitmapSnapshot statusBitmaps;
+
     @Autowired
     protected MessageMapper messageMapper;
     @Autowired
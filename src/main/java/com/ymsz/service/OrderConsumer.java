@@ -4,6 +4,8 @@ import com.ymsz.pojo.OrderMessage;
 import com.ymsz.utils.JsonUtils;
 import org.springframework.amqp.core.Message;
 
+import java.util.List;
+
 /**
  * @author Happysnaker
  * @description
@@ -22,11 +24,11 @@ public interface OrderConsumer {
      *     <li>更新菜品销量</li>
      *     <li>向 Redis 中写入结果，告知用户</li>
      * </ul>
-     * <p><strong>注意此方法必须是原子的，要么执行成功，要么什么都不做，无论成功还是失败，都应该告知用户结果</strong></p>
-     * @param bytes 消息队列传递的序列化的消息，可调用{@link JsonUtils#getObjectFromBytes(byte[])} 方法转换成 {@link OrderMessage}
-     * @param msg 消息队列中标识消息的属性
+     * <p><strong>注意每笔订单必须是原子的，要么执行成功，要么什么都不做，无论成功还是失败，都应该告知用户结果</strong></p>
+     * <p>消息按批次消费，同一批订单可以在一个事务中落库，某笔订单失败时不能影响同一批中的其他订单</p>
+     * @param messages 一批消息，消息体可调用{@link JsonUtils#getObjectFromBytes(byte[])} 方法转换成 {@link OrderMessage}
      * @param channel 消息队列中传递消息的通道
      * @throws Exception
      */
-    void doAddOrder(byte[] bytes, Message msg, com.rabbitmq.client.Channel channel) throws Exception;
+    void doAddOrders(List<Message> messages, com.rabbitmq.client.Channel channel) throws Exception;
 }
@@ -1,7 +1,6 @@
 package com.ymsz.service;
 
 import com.ymsz.exception.OrderAddException;
-import com.ymsz.exception.ReadWriterLockException;
 import com.ymsz.exception.UpdateException;
 import com.ymsz.pojo.Dish;
 import com.ymsz.pojo.Order;
@@ -141,19 +140,6 @@ public interface OrderService {
      */
     Order getOrder(String userId) throws OrderAddException;
 
-    /**
-     * 下单，添加订单
-     * @param userId
-     * @param form
-     * @return 返回支付号、生成的订单 ID 给前端
-     * @throws OrderAddException
-     * @throws ReadWriterLockException
-     * @deprecated 已弃用，现在由后端存储订单信息，涉及金额的敏感数据都由后端做
-     */
-    @Deprecated
-    Map addUserOrder(String userId, Order form) throws OrderAddException, ReadWriterLockException;
-
-
     /**
      * 获取用户需要等待的时间
      *
@@ -7,4 +7,19 @@ package com.ymsz.service;
  * @email happysnaker@foxmail.com
  */
 public interface SearchService {
+    /**
+     * 按名字、标签、配料搜索上架的菜品，按名字搜索营业中的店铺
+     * @param keyword 关键字
+     * @param limit 菜品与店铺各自最多返回的数目
+     * @return JSON字符串，dishes 与 stores 分别为菜品与店铺的 id、name、score，按相关度从高到低排列
+     */
+    String search(String keyword, int limit);
+
+    /**
+     * 输入提示，匹配菜品名、标签、店铺名的前缀或其拼音首字母的前缀，例如 "gb" 可以提示 "宫保鸡丁"
+     * @param prefix 用户已输入的内容
+     * @param limit 最多返回的提示数
+     * @return JSON字符串，arrays 为 text、type（dish、store、tag）、id，按权重从高到低排列
+     */
+    String suggest(String prefix, int limit);
 }
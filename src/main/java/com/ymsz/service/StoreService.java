@@ -30,4 +30,15 @@ public interface StoreService {
      * @return
      */
     Store getStoreById(int id);
+
+    /**
+     * 获取距离用户最近的营业中的店铺，按距离从近到远分页返回，每个店铺附带距离（米）
+     * @param longitude 用户经度
+     * @param latitude 用户纬度
+     * @param takeout 是否只返回支持外卖的店铺
+     * @param page 页码，从 1 开始
+     * @param pageSize 每页店铺数
+     * @return JSON字符串
+     */
+    String getNearbyStores(double longitude, double latitude, boolean takeout, int page, int pageSize);
 }
@@ -1,17 +1,31 @@
 package com.ymsz.service.impl;
 
 import com.alibaba.fastjson.JSONObject;
+import com.ymsz.config.ComboIndex;
 import com.ymsz.config.RedisCacheManager;
+import com.ymsz.config.StatusBitmapSnapshot;
 import com.ymsz.pojo.Combo;
 import com.ymsz.pojo.ComboDish;
 import com.ymsz.pojo.Dish;
 import com.ymsz.service.BaseService;
 import com.ymsz.service.DishService;
 import com.ymsz.utils.JsonUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.PatternTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 /**
@@ -20,8 +34,58 @@ import java.util.stream.Collectors;
  * @date 2021/10/22
  * @email happysnaker@foxmail.com
  */
+@Slf4j
 @Service
 public class DishServiceImpl extends BaseService implements DishService {
+    /**
+     * 后台修改菜品、套餐、店铺信息后向此频道发布消息，首页数据随即重新构建；消息内容为 dish:1,2 或 store:1 时搜索索引只更新这些菜品或店铺，否则全量重建
+     */
+    public static final String CATALOG_CHANGED_CHANNEL = "B-redis-channel:catalog-changed";
+
+    /**
+     * 首页数据在 Redis 中的过期时间，Redis 中的副本只用于新启动的节点，节点运行时从内存中读取
+     */
+    private static final long INDEX_DISH_INFO_EXPIRATION_SECONDS = 60 * 3;
+
+    @Autowired
+    private RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * 最近一次成功构建的首页数据，读请求总是直接返回它，构建失败时保留旧值
+     */
+    private volatile String indexDishInfo;
+
+    private volatile boolean indexDishInfoDirty;
+
+    private final AtomicBoolean refreshingIndexDishInfo = new AtomicBoolean(false);
+
+    /**
+     * 首页的四个栏目并行查询
+     */
+    private final ExecutorService indexSectionPool = Executors.newFixedThreadPool(4);
+
+    /**
+     * 收到变更通知时在后台重新构建，不占用消息监听线程
+     */
+    private final ExecutorService indexRefresher = Executors.newSingleThreadExecutor();
+
+    @PostConstruct
+    public void subscribeCatalogChanges() {
+        listenerContainer.addMessageListener((message, pattern) -> {
+            // 上架等状态变更时，先让状态快照失效，避免读到旧的状态
+            statusBitmaps.invalidate();
+            indexRefresher.execute(this::refreshIndexDishInfo);
+        }, Arrays.asList(new ChannelTopic(CATALOG_CHANGED_CHANNEL),
+                new ChannelTopic(StatusBitmapSnapshot.STATUS_CHANGED_CHANNEL),
+                new PatternTopic(StatusBitmapSnapshot.STATUS_KEYSPACE_PATTERN)));
+    }
+
+    @PreDestroy
+    public void shutdownIndexRefresher() {
+        indexRefresher.shutdownNow();
+        indexSectionPool.shutdownNow();
+    }
+
     private List<Combo> getCombos() {
         List<Combo> combos = comboMapper.queryComboInfo();
 
@@ -48,17 +112,12 @@ public class DishServiceImpl extends BaseService implements DishService {
      * @return
      */
     public List<Dish> synchronizeDishBackendStatus(List<Dish> dishes, boolean pubStatus, boolean recStatus, boolean newStatus) {
+        StatusBitmapSnapshot.Snapshot status = statusBitmaps.get();
         return dishes.stream().filter((dish -> {
             // 要么未设置 pubStatus，否则进行判断，如果 redis 无 key，默认通过，否则对比缓存数据
-            boolean b1 = (!pubStatus ||
-                    (!redisManager.hasKey(RedisCacheManager.DISH_PUBLISH_STATUS_KEY)
-                            || redisManager.getBit(RedisCacheManager.DISH_PUBLISH_STATUS_KEY, (long) dish.getId())));
-            boolean b2 = (!recStatus ||
-                    (!redisManager.hasKey(RedisCacheManager.DISH_RECOMMEND_STATUS_KEY)
-                            || redisManager.getBit(RedisCacheManager.DISH_RECOMMEND_STATUS_KEY, (long) dish.getId())));
-            boolean b3 = (!newStatus ||
-                    (!redisManager.hasKey(RedisCacheManager.DISH_NEW_STATUS_KEY)
-                            || redisManager.getBit(RedisCacheManager.DISH_NEW_STATUS_KEY, (long) dish.getId())));
+            boolean b1 = !pubStatus || status.test(RedisCacheManager.DISH_PUBLISH_STATUS_KEY, dish.getId());
+            boolean b2 = !recStatus || status.test(RedisCacheManager.DISH_RECOMMEND_STATUS_KEY, dish.getId());
+            boolean b3 = !newStatus || status.test(RedisCacheManager.DISH_NEW_STATUS_KEY, dish.getId());
             return b1 && b2 && b3;
         })).collect(Collectors.toList());
     }
@@ -70,55 +129,91 @@ public class DishServiceImpl extends BaseService implements DishService {
      * @return
      */
     public List<Combo> synchronizeComboBackendStatus(List<Combo> combos) {
+        StatusBitmapSnapshot.Snapshot status = statusBitmaps.get();
         return combos.stream().filter((combo -> {
             // 套餐中的单点菜品如果下架，则套餐不显示
             for (ComboDish comboDish : combo.getComboDish()) {
-                boolean b = (!redisManager.hasKey(RedisCacheManager.DISH_PUBLISH_STATUS_KEY) || redisManager.getBit(RedisCacheManager.DISH_PUBLISH_STATUS_KEY, (long) comboDish.getDishId()));
-                if (b == false) {
+                if (!status.test(RedisCacheManager.DISH_PUBLISH_STATUS_KEY, comboDish.getDishId())) {
                     return false;
                 }
             }
-            // 要么未设置 pubStatus，否则进行判断，如果 redis 无 key，默认通过，否则对比缓存数据
-            return (!redisManager.hasKey(RedisCacheManager.DISH_PUBLISH_STATUS_KEY)
-                    || redisManager.getBit(RedisCacheManager.COMBO_PUBLISH_STATUS_KEY, (long) combo.getId()));
+            // 如果 redis 无 key，默认通过，否则对比缓存数据
+            return status.test(RedisCacheManager.COMBO_PUBLISH_STATUS_KEY, combo.getId());
         })).collect(Collectors.toList());
     }
 
+    /**
+     * 首页数据始终从内存中返回，由后台线程定时或在收到变更通知时重新构建，构建期间读请求不会访问数据库
+     */
     @Override
     public String getIndexDishInfo() {
-        //如果有，直接从缓存中拿
-        if (redisManager.hasKey(RedisCacheManager.INDEX_DISH_INFO_CACHE_KEY)) {
-            return (String) redisManager.getForValue(RedisCacheManager.INDEX_DISH_INFO_CACHE_KEY);
+        String info = indexDishInfo;
+        if (info != null) {
+            return info;
+        }
+        synchronized (this) {
+            if (indexDishInfo == null) {
+                // 刚启动的节点优先使用其他节点构建好的数据
+                Object cached = redisManager.getForValue(RedisCacheManager.INDEX_DISH_INFO_CACHE_KEY);
+                indexDishInfo = cached != null ? (String) cached : buildIndexDishInfo();
+            }
+            return indexDishInfo;
         }
+    }
+
+    /**
+     * 在缓存过期之前重新构建首页数据；正在构建时再次调用，会在本次构建结束后再构建一次，保证变更不会丢失
+     */
+    @Scheduled(fixedDelayString = "${index-dish.refresh-ms:60000}")
+    public void refreshIndexDishInfo() {
+        indexDishInfoDirty = true;
+        do {
+            if (!refreshingIndexDishInfo.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                while (indexDishInfoDirty) {
+                    indexDishInfoDirty = false;
+                    try {
+                        indexDishInfo = buildIndexDishInfo();
+                    } catch (RuntimeException e) {
+                        log.error("构建首页数据失败，继续使用旧数据", e);
+                    }
+                }
+            } finally {
+                refreshingIndexDishInfo.set(false);
+            }
+        } while (indexDishInfoDirty);
+    }
+
+    private String buildIndexDishInfo() {
         // 上架状态等从 Redis 中拿，与后台同步
-        List<Dish> hotSaleDish = synchronizeDishBackendStatus(
+        CompletableFuture<List<Dish>> hotSaleDish = CompletableFuture.supplyAsync(() -> synchronizeDishBackendStatus(
                 dishMapper.queryHotSaleDish(15),
                 true, false, false
-        );
+        ), indexSectionPool);
 
-        List<Dish> newDish = synchronizeDishBackendStatus(
+        CompletableFuture<List<Dish>> newDish = CompletableFuture.supplyAsync(() -> synchronizeDishBackendStatus(
                 dishMapper.queryNewDish(),
                 true, false, true
-        );
+        ), indexSectionPool);
 
-        List<Dish> recommendedDish = synchronizeDishBackendStatus(
+        CompletableFuture<List<Dish>> recommendedDish = CompletableFuture.supplyAsync(() -> synchronizeDishBackendStatus(
                 dishMapper.queryRecommendedDish(),
                 true, true, false
-        );
-
+        ), indexSectionPool);
 
-        List<Combo> combos = synchronizeComboBackendStatus(getCombos());
+        CompletableFuture<List<Combo>> combos = CompletableFuture.supplyAsync(
+                () -> synchronizeComboBackendStatus(getCombos()), indexSectionPool);
 
         JSONObject object = new JSONObject();
-        JsonUtils.listAddToJsonObject(object, hotSaleDish, "hotDishList");
-        JsonUtils.listAddToJsonObject(object, newDish, "newDishList");
-        JsonUtils.listAddToJsonObject(object, recommendedDish, "recommendDishList");
-        JsonUtils.listAddToJsonObject(object, combos, "combos");
-
-        // 添加缓存，由于菜品信息数据静态数据，缓存时间可以长一点
-        // 但是后台管理员可能会变更菜品信息，太久了也是不合适的，因此设置为 3 分钟
-        redisManager.addIfAbsentForValue(RedisCacheManager.INDEX_DISH_INFO_CACHE_KEY, object.toJSONString(), 60 * 3, TimeUnit.SECONDS);
-        return object.toJSONString();
+        JsonUtils.listAddToJsonObject(object, hotSaleDish.join(), "hotDishList");
+        JsonUtils.listAddToJsonObject(object, newDish.join(), "newDishList");
+        JsonUtils.listAddToJsonObject(object, recommendedDish.join(), "recommendDishList");
+        JsonUtils.listAddToJsonObject(object, combos.join(), "combos");
+        String info = object.toJSONString();
+        redis.opsForValue().set(RedisCacheManager.INDEX_DISH_INFO_CACHE_KEY, info, INDEX_DISH_INFO_EXPIRATION_SECONDS, TimeUnit.SECONDS);
+        return info;
     }
 
     @Override
@@ -147,42 +242,41 @@ public class DishServiceImpl extends BaseService implements DishService {
 
     @Override
     public List<Dish> getUserCollectedDishes(String userId) {
-        Set<Integer> set = new HashSet<>(userMapper.queryCollectedDish(userId));
-        List<Dish> dishes = dishMapper.queryDishes();
-        List<Combo> combos = comboMapper.queryComboInfo();
-
+        //从缓存中查询，维护数据一致性
+        String key = RedisCacheManager.getUserCollectedDishCacheKey(userId);
+        int[] ids = redisManager.getBitmap(key);
+        if (ids == null) {
+            //可能是 redis 中缓存过期，初始化用户收藏的菜品和套餐
+            redisManager.initRedisUserMarkedCache(userMapper.queryCollectedDish(userId), key);
+            ids = redisManager.getBitmap(key);
+        }
         List<Dish> ans = new LinkedList<>();
-        try {
-            for (Dish dish : dishes) {
-                //从缓存中查询，维护数据一致性
-                if (redisManager.getBit(RedisCacheManager.getUserCollectedDishCacheKey(userId), (long) dish.getId())) {
-                    ans.add(dish);
-                }
-            }
-
+        if (ids == null || ids.length == 0) {
+            return ans;
+        }
+        // ID 从小到大排列，套餐的 ID 都大于菜品
+        int split = 0;
+        while (split < ids.length && ids[split] < ComboIndex.COMBO_ID_START) {
+            split++;
+        }
+        int[] dishIds = Arrays.copyOfRange(ids, 0, split), comboIds = Arrays.copyOfRange(ids, split, ids.length);
+        if (dishIds.length > 0) {
+            ans.addAll(dishMapper.queryDishesByIds(dishIds));
+        }
+        if (comboIds.length > 0) {
             //将 combo 抽象成 dish 一起返回
-            for (Combo combo : combos) {
-                if (redisManager.getBit(RedisCacheManager.getUserCollectedDishCacheKey(userId), (long) combo.getId())) {
-                    Dish dish = new Dish();
-                    dish.setId(combo.getId());
-                    //收藏页面无法容纳多张照片，因此注入第一个菜品的图片
-                    dish.setDishImg((String) combo.getComboDish().get(0).getDishImg());
-                    dish.setPrice(combo.getPrice());
-                    dish.setSale(combo.getSale());
-                    dish.setName(combo.getName());
-                    dish.setTags(combo.getTags());
-                    dish.setId(combo.getId());
-                    ans.add(dish);
-                }
+            for (Combo combo : comboMapper.queryComboInfoByIds(comboIds)) {
+                Dish dish = new Dish();
+                dish.setId(combo.getId());
+                //收藏页面无法容纳多张照片，因此注入第一个菜品的图片
+                dish.setDishImg((String) combo.getComboDish().get(0).getDishImg());
+                dish.setPrice(combo.getPrice());
+                dish.setSale(combo.getSale());
+                dish.setName(combo.getName());
+                dish.setTags(combo.getTags());
+                dish.setId(combo.getId());
+                ans.add(dish);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-            //可能是 redis 中缓存过期，初始化用户收藏的菜品和套餐，并重试
-            redisManager.initRedisUserMarkedCache(
-                    dishMapper.queryAllDishId(),
-                    userMapper.queryCollectedDish(userId),
-                    RedisCacheManager.getUserCollectedDishCacheKey(userId));
-            return getUserCollectedDishes(userId);
         }
         return ans;
     }
@@ -1,7 +1,9 @@
 package com.ymsz.service.impl;
 
 import com.rabbitmq.client.Channel;
+import com.ymsz.config.CounterWriteBehindBuffer;
 import com.ymsz.config.OrderRabbitMqConfig;
+import com.ymsz.config.OrderResultNotifier;
 import com.ymsz.config.RedisCacheManager;
 import com.ymsz.exception.OrderAddException;
 import com.ymsz.pojo.Order;
@@ -9,8 +11,11 @@ import com.ymsz.pojo.OrderMessage;
 import com.ymsz.service.BaseService;
 import com.ymsz.service.OrderConsumer;
 import com.ymsz.service.OrderService;
+import com.ymsz.strategy.StoreContentionMonitor;
+import com.ymsz.strategy.PlaceOrderStrategy;
+import com.ymsz.strategy.PlaceOrderStrategyContent;
 import com.ymsz.utils.JsonUtils;
-import com.ymsz.utils.Pair;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
@@ -18,12 +23,25 @@ import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -34,6 +52,7 @@ import java.util.concurrent.TimeUnit;
  * @date 2022/3/14
  * @email happysnaker@foxmail.com
  */
+@Slf4j
 @Service
 @Transactional(rollbackFor = Exception.class)
 @Configuration
@@ -47,6 +66,24 @@ public class OrderConsumerImpl extends BaseService implements OrderConsumer {
     @Autowired
     RabbitTemplate rabbit;
 
+    @Autowired
+    private PlaceOrderStrategyContent strategyContent;
+
+    @Autowired
+    private StoreContentionMonitor monitor;
+
+    @Autowired
+    private OrderResultNotifier notifier;
+
+    @Autowired
+    private CounterWriteBehindBuffer counterBuffer;
+
+    private TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
 
     /**
      * 一次消费加多少积分
@@ -55,62 +92,219 @@ public class OrderConsumerImpl extends BaseService implements OrderConsumer {
 
 
     /**
-     * @param bytes   消息队列传递的序列化的消息，可调用{@link JsonUtils#getObjectFromBytes(byte[])} 方法转换成 {@link OrderMessage}
-     * @param msg     消息队列中标识消息的属性
-     * @param channel 消息队列中传递消息的通道
-     * @see OrderConsumer#doAddOrder(byte[], Message, Channel)
+     * 一条已解码的订单消息
+     */
+    private static final class Delivery {
+        final long tag;
+        final OrderMessage om;
+
+        Delivery(long tag, OrderMessage om) {
+            this.tag = tag;
+            this.om = om;
+        }
+    }
+
+    /**
+     * <p>批量消费订单，一批订单在同一个事务中落库，整批确认</p>
+     * <p>事务失败时将这一批对半拆分后分别重试，直到定位到出错的单条消息，只有它会被拒绝并进入死信队列</p>
+     * <p>其他消费者正在处理的重复消息转入延迟队列稍后再处理；认领过期后再次投递的消息先查询数据库，已经落库的新订单直接确认</p>
+     *
+     * @param messages 一批消息，消息体可调用{@link JsonUtils#getObjectFromBytes(byte[])} 方法转换成 {@link OrderMessage}
+     * @param channel  消息队列中传递消息的通道
+     * @see OrderConsumer#doAddOrders(List, Channel)
      */
     @Override
-    @RabbitListener(queues = {OrderRabbitMqConfig.ORDER_ADD_QUEUE})
-    @Transactional(rollbackFor = Exception.class)
-    public void doAddOrder(byte[] bytes, Message msg, Channel channel) throws Exception {
-        channel.basicQos(1);
-        OrderMessage om = null;
-        boolean b = true;
-        boolean present = false;
-        System.out.println("收到消息，开始执行");
-        try {
-            om = (OrderMessage) JsonUtils.getObjectFromBytes(bytes);
-            // 设置，防止重复消费
-            present = redis.opsForValue().setIfAbsent(
-                    RedisCacheManager.getOrderMessageCacheKey(om.getMessageId()), 0);
-            if (!present) {
-                System.out.println("om.getMessageId() = " + om.getMessageId());
-                System.out.println("redisManager.hasKey( RedisCacheManager.getOrderMessageCacheKey(om.getMessageId())) = " + redisManager.hasKey(RedisCacheManager.getOrderMessageCacheKey(om.getMessageId())));
-                System.out.println("重复消费123456!!");
-                // setIfPresent 是原子操作，只有一个线程能设置成功
-                // 一旦设置失败，说明已经有线程在消费了
-                return;
+    @RabbitListener(queues = {OrderRabbitMqConfig.ORDER_ADD_QUEUE}, containerFactory = "batchRabbitListenerContainerFactory")
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void doAddOrders(List<Message> messages, Channel channel) throws Exception {
+        List<Delivery> batch = new ArrayList<>(messages.size());
+        Set<Long> rejected = new HashSet<>();
+        Set<Long> requeued = new HashSet<>();
+        List<Message> delayed = new ArrayList<>();
+        for (Message msg : messages) {
+            long tag = msg.getMessageProperties().getDeliveryTag();
+            OrderMessage om;
+            try {
+                om = (OrderMessage) JsonUtils.getObjectFromBytes(msg.getBody());
+            } catch (Exception e) {
+                log.error("无法解析的订单消息", e);
+                rejected.add(tag);
+                continue;
+            }
+            // 设置，防止重复消费，setIfAbsent 是原子操作，只有一个消费者能设置成功
+            String key = RedisCacheManager.getOrderMessageCacheKey(om.getMessageId());
+            Boolean claimed = redis.opsForValue().setIfAbsent(key, 0, 180, TimeUnit.SECONDS);
+            if (claimed == null || !claimed) {
+                Object result = redis.opsForValue().get(key);
+                if (result instanceof Number && ((Number) result).intValue() != 0) {
+                    // 已经有了最终结果，确认即可
+                    log.info("重复消费，messageId = " + om.getMessageId());
+                } else {
+                    // 其他消费者正在处理，或者处理它的节点已经宕机，转入延迟队列，等到有了结果或认领过期后再处理
+                    delayed.add(msg);
+                }
+                continue;
+            }
+            batch.add(new Delivery(tag, om));
+        }
+        for (Message msg : delayed) {
+            try {
+                rabbit.send(OrderRabbitMqConfig.ORDER_ADD_RETRY_ROUTEING_KEY, msg);
+            } catch (Exception e) {
+                log.warn("转入延迟队列失败，重新入队", e);
+                requeued.add(msg.getMessageProperties().getDeliveryTag());
+            }
+        }
+
+        List<Delivery> failed = new ArrayList<>();
+        consume(skipCommitted(batch), failed);
+        for (Delivery d : failed) {
+            rejected.add(d.tag);
+        }
+        // 拒绝重新入队，这些消息将进入死信队列；未能转入延迟队列的重复消息重新入队
+        long lastTag = -1;
+        for (Message msg : messages) {
+            long tag = msg.getMessageProperties().getDeliveryTag();
+            if (rejected.contains(tag)) {
+                channel.basicNack(tag, false, false);
+            } else if (requeued.contains(tag)) {
+                channel.basicNack(tag, false, true);
+            } else {
+                lastTag = Math.max(lastTag, tag);
+            }
+        }
+        if (lastTag >= 0) {
+            // 一次确认这一批中其余的消息
+            channel.basicAck(lastTag, true);
+        }
+    }
+
+    /**
+     * <p>过滤掉已经落库的新订单并发布成功的结果</p>
+     * <p>事务提交后、发布结果前节点宕机，认领过期后消息会再次被处理，以数据库为准判断是否已经落库，不能再插入一次，更不能进入死信队列取消订单</p>
+     *
+     * @return 尚未落库的订单
+     */
+    private List<Delivery> skipCommitted(List<Delivery> batch) {
+        List<String> ids = new ArrayList<>();
+        for (Delivery d : batch) {
+            if (d.om.getOrder().getIsNew()) {
+                ids.add(d.om.getOrder().getId());
             }
+        }
+        if (ids.isEmpty()) {
+            return batch;
+        }
+        Set<String> committed;
+        try {
+            committed = new HashSet<>(orderMapper.queryExistingOrderIds(ids));
         } catch (Exception e) {
-            e.printStackTrace();
-            channel.basicAck(msg.getMessageProperties().getDeliveryTag(), false);
+            // 查询失败时照常处理，已落库的订单会因主键冲突失败，进入死信队列后再次以数据库为准判断
+            log.warn("查询已落库的订单失败", e);
+            return batch;
         }
-        // 再次判断，防止重复消费
-        if (!present) {
-            System.out.println("重复消费!!");
-            return;
+        if (committed.isEmpty()) {
+            return batch;
+        }
+        List<Delivery> rest = new ArrayList<>(batch.size());
+        List<Delivery> done = new ArrayList<>();
+        for (Delivery d : batch) {
+            if (d.om.getOrder().getIsNew() && committed.contains(d.om.getOrder().getId())) {
+                log.info("订单已落库，messageId = " + d.om.getMessageId());
+                done.add(d);
+            } else {
+                rest.add(d);
+            }
+        }
+        publishResults(done, true);
+        return rest;
+    }
+
+    /**
+     * 发布处理结果，失败只记录日志；结果没有写入时，等待认领过期后再次处理，届时以数据库为准
+     */
+    private void publishResults(List<Delivery> batch, boolean success) {
+        for (Delivery d : batch) {
+            try {
+                notifier.publishResult(d.om.getMessageId(), success);
+            } catch (Exception e) {
+                log.error("发布订单结果失败，messageId = " + d.om.getMessageId(), e);
+            }
         }
+    }
 
-        Order order = om.getOrder();
-        System.out.println("消费！");
+    /**
+     * 在一个事务中处理一批订单，失败时对半拆分重试；只有事务本身失败才拆分，提交之后发布结果失败不影响订单
+     *
+     * @param batch  订单
+     * @param failed 单独处理仍然失败的订单
+     */
+    private void consume(List<Delivery> batch, List<Delivery> failed) {
+        if (batch.isEmpty()) {
+            return;
+        }
         try {
-            // 先扣减库存，看看能不能通过乐观锁
-            // 如果失败的话，会抛出异常，我们添加了 Transactional 注解，所有事务将回滚
-            Map<Integer, Integer> dishNumMap = om.getDishNumMap();
-            if (dishNumMap != null) {
-                // 如果没扣减库存，那么消费者负责扣减库存
-                System.out.println("扣库存");
-                deductionInventory(dishNumMap, order.getStoreId());
+            transactionTemplate.executeWithoutResult(status -> {
+                try {
+                    addOrders(batch);
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    // 受检异常需要包装，事务模板才会回滚
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            });
+        } catch (Exception e) {
+            if (batch.size() == 1) {
+                log.error("订单处理失败，messageId = " + batch.get(0).om.getMessageId(), e);
+                failed.add(batch.get(0));
+                publishResults(batch, false);
+                return;
+            }
+            int mid = batch.size() / 2;
+            consume(batch.subList(0, mid), failed);
+            consume(batch.subList(mid, batch.size()), failed);
+            return;
+        }
+        publishResults(batch, true);
+    }
+
+    /**
+     * 将一批订单落库，必须在事务中调用
+     * <ul>
+     *     <li>按（店铺，菜品）合并扣减库存，并按顺序更新，避免多个消费者之间死锁</li>
+     *     <li>新订单、支付单、取餐码、订单菜品均以多行插入写入</li>
+     *     <li>Redis 中的等待队列与销量在事务提交后再写入</li>
+     * </ul>
+     */
+    private void addOrders(List<Delivery> batch) throws Exception {
+        // 先扣减库存，看看能不能通过乐观锁，失败则整个事务回滚
+        Map<Long, Integer> deductions = new TreeMap<>();
+        for (Delivery d : batch) {
+            Map<Integer, Integer> dishNumMap = d.om.getDishNumMap();
+            if (dishNumMap == null) {
+                // 悲观锁模式下单时已经扣减过库存
+                continue;
+            }
+            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
+                long key = ((long) d.om.getOrder().getStoreId() << 32) | (it.getKey() & 0xffffffffL);
+                deductions.merge(key, it.getValue(), Integer::sum);
             }
-            addToWaitingQueue(dishNumMap, order.getStoreId());
+        }
+        for (Map.Entry<Long, Integer> it : deductions.entrySet()) {
+            deductionInventory((int) (it.getKey() >>> 32), (int) (long) it.getKey(), it.getValue());
+        }
 
-            // 如果不是已经下单了的订单（继续加餐的订单），此时订单是新的，需要写入订单表
+        List<Order> newOrders = new ArrayList<>();
+        List<Order> fetchMealOrders = new ArrayList<>();
+        List<Map<String, Object>> orderDishes = new ArrayList<>();
+        Map<String, Integer> points = new HashMap<>();
+        for (Delivery d : batch) {
+            Order order = d.om.getOrder();
             if (order.getIsNew()) {
-                orderMapper.insertOrderInfo(order);
-                orderMapper.insertOrderPay(order.getId(), order.getPayId());
+                newOrders.add(order);
                 // 新下单、增加积分
-                userMapper.updateUserPoints(order.getUserId(), integral);
+                points.merge(order.getUserId(), integral, Integer::sum);
             } else {
                 // 继续加餐的订单价格可能改变，更新价格，并且让管理员重新确认，更新订单状态
                 orderMapper.updateShopDiscount(order.getId(), order.getShopDiscount());
@@ -119,86 +313,121 @@ public class OrderConsumerImpl extends BaseService implements OrderConsumer {
             }
             //取餐凭证
             if (order.getConsumeType() == 2) {
-                orderMapper.insertFetchMealCode(order.getId(), order.getFetchMealCode());
+                fetchMealOrders.add(order);
+            }
+            for (Map<String, Object> it : order.getDishOrders()) {
+                Map<String, Object> row = new HashMap<>(it);
+                row.put("orderId", order.getId());
+                orderDishes.add(row);
             }
-            // 插入信息
-            handleDishOrders(order.getId(), order.getUserId(), order.getStoreId(), order.getDishOrders());
-
-
-            // 确认执行完毕
-            channel.basicAck(msg.getMessageProperties().getDeliveryTag(), false);
-        } catch (Exception e) {
-            e.printStackTrace();
-            // 第三个参数 false，拒绝重新入队，那么这条消息将进入死信
-            channel.basicNack(msg.getMessageProperties().getDeliveryTag(), false, false);
-            // 执行失败了
-            b = false;
-            // 抛出异常，事务回滚
-            throw e;
-
-        } finally {
-            // 设置结果
-            redis.opsForValue().set(RedisCacheManager.getOrderMessageCacheKey(om.getMessageId()), b ? 1 : -1);
-            redis.expire(RedisCacheManager.getOrderMessageCacheKey(om.getMessageId()), 180, TimeUnit.SECONDS);
         }
+        handleDishOrders(batch);
+        if (!newOrders.isEmpty()) {
+            orderMapper.insertOrderInfoBatch(newOrders);
+            orderMapper.insertOrderPayBatch(newOrders);
+        }
+        if (!fetchMealOrders.isEmpty()) {
+            orderMapper.insertFetchMealCodeBatch(fetchMealOrders);
+        }
+        if (!orderDishes.isEmpty()) {
+            orderMapper.insertOrderDishBatch(orderDishes);
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                Map<Integer, Integer> storeSales = new HashMap<>();
+                Map<Integer, Map<Integer, Integer>> landed = new HashMap<>();
+                for (Delivery d : batch) {
+                    Order order = d.om.getOrder();
+                    Map<Integer, Integer> dishNumMap = d.om.getDishNumMap();
+                    if (dishNumMap == null) {
+                        dishNumMap = getDishNumMap(order.getDishOrders());
+                    } else {
+                        Map<Integer, Integer> m = landed.computeIfAbsent(order.getStoreId(), k -> new HashMap<>());
+                        dishNumMap.forEach((id, num) -> m.merge(id, num, Integer::sum));
+                    }
+                    kitchenQueue.enqueue(order.getStoreId(), order.getId(), dishNumMap);
+                    for (Map<String, Object> it : order.getDishOrders()) {
+                        storeSales.merge(order.getStoreId(), (int) it.get("dishNum"), Integer::sum);
+                        counterBuffer.addDishSale((int) it.get("dishId"), (int) it.get("dishNum"));
+                    }
+                }
+                // 已经在数据库中扣减，不再是在途库存
+                for (Map.Entry<Integer, Map<Integer, Integer>> it : landed.entrySet()) {
+                    redisManager.addInflightStock(it.getValue(), it.getKey(), -1);
+                }
+                // 销量与积分由缓冲定时批量写回
+                for (Map.Entry<String, Integer> it : points.entrySet()) {
+                    counterBuffer.addUserPoints(it.getKey(), it.getValue());
+                }
+                //在 Redis 中存储当日的销量，由定时任务在每日 0点 写入，所有店铺的增量通过一次管道提交
+                String key = RedisCacheManager.getTodayDateKey();
+                redis.executePipelined(new SessionCallback<Object>() {
+                    @Override
+                    public Object execute(RedisOperations operations) {
+                        for (Map.Entry<Integer, Integer> it : storeSales.entrySet()) {
+                            operations.opsForHash().increment(key, it.getKey(), it.getValue());
+                        }
+                        return null;
+                    }
+                });
+            }
+        });
     }
 
     /**
-     * 更新用户使用折扣、插入订单菜品表、更新销量
+     * 更新用户使用折扣，同一用户同一菜品先在内存中合并，无论订单有多少菜品都只需固定的几条语句
      */
-    public void handleDishOrders(String orderId, String userId, int storeId, List<Map<String, Object>> dishOrders) throws IOException {
-        for (Map<String, Object> it : dishOrders) {
-            int row = userMapper.updateUsedDiscountCount(
-                    userId, (int) it.get("dishId"), (int) it.get("usedCount"));
-            if (row == 0) {
-                userMapper.insertUsedDiscountCount(
-                        userId,
-                        (int) it.get("dishId"), (int) it.get("usedCount"));
+    private void handleDishOrders(List<Delivery> batch) {
+        Map<String, Map<Integer, Integer>> usedCounts = new TreeMap<>();
+        for (Delivery d : batch) {
+            Order order = d.om.getOrder();
+            Map<Integer, Integer> used = usedCounts.computeIfAbsent(order.getUserId(), k -> new TreeMap<>());
+            for (Map<String, Object> it : order.getDishOrders()) {
+                int dishId = (int) it.get("dishId");
+                used.merge(dishId, (int) it.get("usedCount"), Integer::sum);
+            }
+        }
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (Map.Entry<String, Map<Integer, Integer>> user : usedCounts.entrySet()) {
+            for (Map.Entry<Integer, Integer> it : user.getValue().entrySet()) {
+                Map<String, Object> row = new HashMap<>(4);
+                row.put("userId", user.getKey());
+                row.put("dishId", it.getKey());
+                row.put("val", it.getValue());
+                rows.add(row);
             }
-            orderMapper.insertOrderDish(orderId, it);
-            dishMapper.updateDishSale((int) it.get("dishId"), (int) it.get("dishNum"));
-            //在 Redis 中存储当日的销量，由定时任务在每日 0点 写入
-            redis.opsForHash().increment(RedisCacheManager.getTodayDateKey(), storeId, (int) it.get("dishNum"));
         }
+        if (!rows.isEmpty()) {
+            userMapper.updateUsedDiscountCountBatch(rows);
+            userMapper.insertUsedDiscountCountBatch(rows);
+        }
+    }
+
+    public Map<Integer, Integer> getDishNumMap(List<Map<String, Object>> dishOrders) {
+        return comboIndex.getDishNumMap(dishOrders);
     }
 
 
     /**
      * 扣减库存
      *
-     * @param dishNumMap
-     * @param storeId
-     * @throws OrderAddException
-     */
-    public void deductionInventory(Map<Integer, Integer> dishNumMap, int storeId) throws OrderAddException {
-        for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-            // 乐观锁查询
-            int row = dishMapper.optimisticDeductInventory(
-                    storeId, it.getKey(), it.getValue());
-            if (row == 0) {
-                // 不捕获，让事务回滚
-                throw new OrderAddException("库存不足，请重试");
-            }
-        }
-    }
-
-    /**
-     * 将菜品添加至等待队列
+     * @param storeId 店铺ID
+     * @param dishId  菜品ID
+     * @param num     扣减的数目
+     * @throws OrderAddException 库存不足
      */
-    public void addToWaitingQueue(Map<Integer, Integer> dishNumMap, int storeId) {
-        long nowTs = System.currentTimeMillis();
-        for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-            //将菜品添加至等待队列中，对于多个相同菜品，重复添加单独实例以便处理
-            // 同时附带菜品加入的时间戳
-            for (int i = 0; i < (int) it.getValue(); i++) {
-                redis.opsForList().leftPush(
-                        RedisCacheManager.DISH_WAITING_QUEUE_KEY,
-                        new Pair<Integer, Double>((Integer) it.getKey(), (double) nowTs));
-            }
+    public void deductionInventory(int storeId, int dishId, int num) throws OrderAddException {
+        // 乐观锁查询
+        int row = dishMapper.optimisticDeductInventory(storeId, dishId, num);
+        monitor.recordDeduction(storeId, row);
+        if (row == 0) {
+            // 不捕获，让事务回滚
+            throw new OrderAddException("库存不足，请重试");
         }
     }
 
-
     /**
      * 订单库存回滚
      *
@@ -209,26 +438,33 @@ public class OrderConsumerImpl extends BaseService implements OrderConsumer {
      */
     @RabbitListener(queues = {OrderRabbitMqConfig.ROLL_BACK_STOCK_QUEUE})
     public void rollBackStock(byte[] bytes, Message m, Channel channel) throws Exception {
-        Map<Integer, Integer> dishNumMap = (Map<Integer, Integer>) JsonUtils.getObjectFromBytes(bytes);
-        int storeId = dishNumMap.get(-1);
         try {
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                int id = it.getKey(), stock = it.getValue();
-                redis.opsForHash().increment(RedisCacheManager.getDishStockCacheKey(storeId), id, stock);
-            }
+            Map<Integer, Integer> dishNumMap = new HashMap<>((Map<Integer, Integer>) JsonUtils.getObjectFromBytes(bytes));
+            int storeId = dishNumMap.remove(OrderRabbitMqConfig.ROLL_BACK_STORE_ID_KEY);
+            // 旧的消息没有记录策略，当时只有高并发策略会预扣库存
+            Integer type = dishNumMap.remove(OrderRabbitMqConfig.ROLL_BACK_STRATEGY_KEY);
+            PlaceOrderStrategy strategy = strategyContent.getStrategy(type == null ? PlaceOrderStrategyContent.HIGH_CONCURRENCY : type);
+            // 只由预扣库存的策略归还，其他策略不重复计算
+            strategy.rollBackStock(storeId, dishNumMap);
             channel.basicAck(m.getMessageProperties().getDeliveryTag(), false);
-        } catch (IOException e) {
-            e.printStackTrace();
-            channel.basicNack(
-                    m.getMessageProperties().getDeliveryTag(), false, false);
-            throw e;
-        } catch (NullPointerException e) {
-            redisManager.flushRedisDishStockCache(dishMapper.queryDishInfo(storeId), storeId);
-            rollBackStock(bytes, m, channel);
-            throw e;
+        } catch (Exception e) {
+            log.error("回滚库存失败", e);
+            channel.basicNack(m.getMessageProperties().getDeliveryTag(), false, false);
         }
     }
 
+    /**
+     * 发送回滚库存的消息
+     *
+     * @param type 预扣库存的策略，为 null 时表示高并发策略
+     */
+    private void sendRollBackStock(int storeId, Integer type, Map<Integer, Integer> dishNumMap) {
+        Map<Integer, Integer> msg = new HashMap<>(dishNumMap);
+        msg.put(OrderRabbitMqConfig.ROLL_BACK_STORE_ID_KEY, storeId);
+        msg.put(OrderRabbitMqConfig.ROLL_BACK_STRATEGY_KEY, type == null ? PlaceOrderStrategyContent.HIGH_CONCURRENCY : type);
+        rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, msg);
+    }
+
     /**
      * 订单处理失败
      * @param bytes
@@ -243,20 +479,36 @@ public class OrderConsumerImpl extends BaseService implements OrderConsumer {
         try {
             om = (OrderMessage) JsonUtils.getObjectFromBytes(bytes);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("无法解析的死信订单消息", e);
             channel.basicAck(m.getMessageProperties().getDeliveryTag(), false);
+            return;
+        }
+        if (om.getOrder().getIsNew() && !orderMapper.queryExistingOrderIds(Collections.singletonList(om.getOrder().getId())).isEmpty()) {
+            // 订单已经落库，只是结果没有发布，不能取消
+            log.info("死信订单已落库，messageId = " + om.getMessageId());
+            try {
+                notifier.publishResult(om.getMessageId(), true);
+            } catch (Exception e) {
+                log.error("发布订单结果失败，messageId = " + om.getMessageId(), e);
+            }
+            channel.basicAck(m.getMessageProperties().getDeliveryTag(), false);
+            return;
         }
         //取消订单
         orderMapper.updateOrderType(om.getOrder().getId(), 9);
+        kitchenQueue.complete(om.getOrder().getStoreId(), om.getOrder().getId());
         com.ymsz.pojo.Message message = com.ymsz.pojo.Message.createSystemMessage("通知，您的订单处理失败", "服务器发送了一些不好的事情，因此没能正确处理您的订单，十分抱歉，您可以前往 我的-客服 寻求退款，订单ID为唯一凭证。订单ID：" + om.getOrder().getId(), om.getOrder().getUserId());
         messageMapper.insertMessage(message);
         if (messageMapper.updateUnReadUserMsgCount(message.getUserId(), 1) == 0) {
             messageMapper.insertUnReadUserMsgCount(message.getUserId(), 1);
         }
 
-        // 发送消息回滚 redis
-        om.getDishNumMap().put(-1, om.getOrder().getStoreId());
-        rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, om.getDishNumMap());
+        // 发送消息回滚 redis，悲观锁模式下没有预扣 redis，无需回滚
+        if (om.getDishNumMap() != null) {
+            // 订单不会再落库，不再是在途库存
+            redisManager.addInflightStock(om.getDishNumMap(), om.getOrder().getStoreId(), -1);
+            sendRollBackStock(om.getOrder().getStoreId(), om.getStrategy(), om.getDishNumMap());
+        }
         channel.basicAck(m.getMessageProperties().getDeliveryTag(), false);
     }
 
@@ -287,13 +539,13 @@ public class OrderConsumerImpl extends BaseService implements OrderConsumer {
             return;
         }
 
-        // 发送消息回滚 redis
-        Map<Integer, Integer> m1 = ((OrderServiceImpl) service).getDishNumMap(om.getOrder().getDishOrders());
-        m1.put(-1, om.getOrder().getStoreId());
-        rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, m1);
+        // 发送消息回滚预扣的库存，待支付的消息中没有记录下单时的策略，以店铺当前的策略为准
+        int storeId = om.getOrder().getStoreId();
+        sendRollBackStock(storeId, strategyContent.getStoreStrategyType(storeId), getDishNumMap(om.getOrder().getDishOrders()));
 
         // 取消订单
         orderMapper.updateOrderType(om.getOrder().getId(), OrderService.CANCELLED_STATUS);
+        kitchenQueue.complete(om.getOrder().getStoreId(), om.getOrder().getId());
 
         com.ymsz.pojo.Message message = com.ymsz.pojo.Message.createSystemMessage("订单取消通知", "您有一份订单由于超时未支付而取消，订单ID为 " + om.getOrder().getId(), om.getOrder().getUserId());
         messageMapper.insertMessage(message);
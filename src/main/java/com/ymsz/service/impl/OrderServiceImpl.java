@@ -5,14 +5,12 @@ import com.alibaba.fastjson.JSONObject;
 import com.ymsz.config.OrderRabbitMqConfig;
 import com.ymsz.config.RedisCacheManager;
 import com.ymsz.exception.OrderAddException;
-import com.ymsz.exception.ReadWriterLockException;
 import com.ymsz.exception.UpdateException;
 import com.ymsz.pojo.*;
 import com.ymsz.service.BaseService;
 import com.ymsz.service.OrderService;
 import com.ymsz.strategy.PlaceOrderStrategyContent;
 import com.ymsz.utils.JsonUtils;
-import com.ymsz.utils.Pair;
 import com.ymsz.utils.VerifyUtils;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
@@ -26,7 +24,6 @@ import org.springframework.transaction.annotation.Transactional;
 import java.sql.Timestamp;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
 
 /**
  * @author Happysnaker
@@ -104,6 +101,10 @@ public class OrderServiceImpl extends BaseService implements OrderService {
         if (row == 0) {
             throw new UpdateException("更新订单状态失败: " + orderId);
         }
+        // 订单已出餐或被取消，不再占用后厨
+        if (newStatus > PREPARING_MEAL_STATUS && newStatus != CANCELING_STATUS) {
+            kitchenQueue.complete(orderMapper.queryOrder(orderId).getStoreId(), orderId);
+        }
     }
 
     @Override
@@ -170,37 +171,7 @@ public class OrderServiceImpl extends BaseService implements OrderService {
      * @return key -> dishId，val -> stock
      */
     public Map<Integer, Integer> getDishNumMap(List<Map<String, Object>> dishOrders) {
-        Map<Integer, Integer> m = new HashMap<>(8);
-        for (Map<String, Object> map : dishOrders) {
-            int dishId = (int) map.get("dishId");
-            int dishNum = (int) map.get("dishNum");
-            if (dishId >= 100000) {
-                List<ComboDish> list = comboMapper.queryComboDishById(dishId);
-                for (ComboDish cMap : list) {
-                    // 套餐内置的菜品个数 * 套餐个数
-                    m.put((Integer) cMap.getDishId(), m.getOrDefault(cMap.getDishId(), 0) + cMap.getDishNum() * dishNum);
-                }
-            } else {
-                m.put(dishId, m.getOrDefault(dishId, 0) + dishNum);
-            }
-        }
-        return m;
-    }
-
-    private boolean checkStock(Map<Integer, Integer> m, int storeId) {
-        try {
-            for (Map.Entry<Integer, Integer> it : m.entrySet()) {
-                int id = it.getKey(), stock = it.getValue();
-                if ((int) redisManager.getForHash(RedisCacheManager.getDishStockCacheKey(storeId), id) < stock) {
-                    return false;
-                }
-            }
-            return true;
-        } catch (NullPointerException e) {
-            redisManager.flushRedisDishStockCache(
-                    dishMapper.queryDishInfo(storeId), storeId);
-            return checkStock(m, storeId);
-        }
+        return comboIndex.getDishNumMap(dishOrders);
     }
 
 
@@ -210,7 +181,6 @@ public class OrderServiceImpl extends BaseService implements OrderService {
      * <p>原先的代码使用了 redis 提前缓存库存，适用与高并发条件</p>
      *
      * @return 返回 payId 和 orderId 给用户
-     * @see #addUserOrder(String, Order)
      */
     @Override
     public Map placeOrder(Order order) throws Exception {
@@ -301,187 +271,9 @@ public class OrderServiceImpl extends BaseService implements OrderService {
         return dishOrders;
     }
 
-
-    /**
-     * 添加订单要做的事有<br/>
-     * <ul>
-     *  <li> 计算订单ID<br/></li>
-     *  <li>扣减库存，扣减库存必须保证库存充足<br/></li>
-     * <li> 增加用户使用的折扣数目<br/></li>
-     * <li>增加用户会员积分<br/></li>
-     * <li> 扣减优惠券，目前不支持<br/></li>
-     * <li>向 order 表 和 order_dish 表写订单数据<br/></li>
-     *  <li>增加对应菜品销量<br/></li>
-     * <li> 将菜品写入等待队列，以便计算新用户下单后需要等待的时常<br/></li>
-     * </ul>
-     */
-    @Override
-    public Map addUserOrder(String userId, Order order) throws OrderAddException, ReadWriterLockException {
-        System.out.println("order = " + order);
-        if (order == null) {
-            return null;
-        }
-
-        if (!order.getIsNew()) {
-            order.setIsNew(false);
-            System.out.println("旧！");
-            //这是一个旧订单，由用户继续加餐而来
-            handleOldOrder(order);
-            return null;
-        }
-        order.setIsNew(true);
-
-        Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-        order.setCreateTime(timestamp);
-
-        //生成订单编号
-        String orderId = UUID.randomUUID().toString().replaceAll("-", "").toUpperCase();
-
-
-        order.setId(orderId);
-        order.setUserId(userId);
-
-
-        // 测试用，删除 key 以便更新 redis
-        redis.delete(RedisCacheManager.getDishStockCacheKey(order.getStoreId()));
-
-        if (order.getConsumeType() == 2) {
-            // 以当前时间戳生产取餐码，确保取餐吗唯一
-            String code = VerifyUtils.BaseConversion(System.currentTimeMillis(), 32);
-            order.setFetchMealCode(code);
-        }
-
-
-        //m 保存的是菜品ID与要下单的数量，主要是将套餐中的每个菜品与单点菜品合并
-        Map<Integer, Integer> m = getDishNumMap(order.getDishOrders());
-        if (!checkStock(m, order.getStoreId())) {
-            throw new OrderAddException("库存不足");
-        }
-        // 扣减库存
-        boolean hasDeduction = false;
-        try {
-            // 扣减 redis，发送消息，数据库层面会进行乐观锁判断
-            for (Map.Entry<Integer, Integer> it : m.entrySet()) {
-                int id = it.getKey(), stock = it.getValue();
-                redis.opsForHash().increment(RedisCacheManager.getDishStockCacheKey(order.getStoreId()), id, -stock);
-            }
-            hasDeduction = true;
-            // 订单算是生成成功，产生随机支付单号，发起支付
-            order.setPayId(UUID.randomUUID().toString().replace("-", ""));
-            OrderMessage om = new OrderMessage(m, order);
-
-            System.out.println("扣减库存成功，上锁，发送消息到消息队列！");
-
-            rabbit.convertAndSend(OrderRabbitMqConfig.ORDER_ADD_ROUTEING_KEY, om);
-
-        } catch (NullPointerException e) {
-            // 缓存不存在，重试，注意并发条件下会出错，这里不用回滚，因为我们要更新了
-            e.printStackTrace();
-            redisManager.flushRedisDishStockCache(
-                    dishMapper.queryDishInfo(order.getStoreId()),
-                    order.getStoreId());
-            return addUserOrder(userId, order);
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (hasDeduction) {
-                m.put(-1, order.getStoreId());
-                rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, m);
-            }
-            throw e;
-        }
-        // 返回支付单号给前端
-        Map map = new HashMap(2);
-        map.put("payId", order.getPayId());
-        map.put("orderId", order.getId());
-        return map;
-    }
-
-    /**
-     * 处理旧订单
-     *
-     * @param order
-     * @throws OrderAddException
-     */
-    @Deprecated
-    public void handleOldOrder(Order order) throws OrderAddException, ReadWriterLockException {
-        // 筛选出添加的菜
-        List<Map<String, Object>> dishOrders = order.getDishOrders().stream().filter((item -> {
-            return (Boolean) item.getOrDefault("isAdd", false);
-        })).collect(Collectors.toList());
-        Map<Integer, Integer> m = getDishNumMap(dishOrders);
-
-        order.setDishOrders(dishOrders);
-
-        if (!checkStock(m, order.getStoreId())) {
-            throw new OrderAddException("库存不足");
-        }
-        // 扣减库存
-        boolean hasDeduction = false;
-        try {
-            // 扣减库存
-            for (Map.Entry<Integer, Integer> it : m.entrySet()) {
-                int id = it.getKey(), stock = it.getValue();
-                redis.opsForHash().increment(RedisCacheManager.getDishStockCacheKey(order.getStoreId()), id, -stock);
-            }
-            hasDeduction = true;
-            // 库存扣减成功，订单算完成，发布消息
-            order.setOrderType(CONFIRMING_STATUS);
-            OrderMessage om = new OrderMessage(m, order);
-
-            rabbit.convertAndSend(OrderRabbitMqConfig.ORDER_ADD_ROUTEING_KEY, om);
-        } catch (NullPointerException e) {
-            // 缓存不存在，重试
-            e.printStackTrace();
-            // 该方法是原子的，并且会继续判断缓存是否存在，避免多个线程竞争
-            redisManager.flushRedisDishStockCache(dishMapper.queryDishInfo(order.getStoreId()), order.getStoreId());
-            handleOldOrder(order);
-            return;
-        } catch (Exception e) {
-            e.printStackTrace();
-            if (hasDeduction) {
-                m.put(-1, order.getStoreId());
-                rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, m);
-            }
-            throw e;
-        }
-
-
-    }
-
     @Override
     public double getWaitingTime(int storeId) {
-        long nowTs = System.currentTimeMillis();
-        double waitingTime = 0;
-//      将菜品添加至当前菜品队列中，以便计算等待时间，redis中缓存了菜品的制作时间
-//      当缓存过期，需要更新缓存
-        List queue = redis.opsForList().range(
-                RedisCacheManager.DISH_WAITING_QUEUE_KEY, 0, -1);
-        try {
-            for (Object o : queue) {
-                Pair<Integer, Double> pair = (Pair) o;
-                int id = pair.getFirst();
-                if (id >= 100000) {
-                    continue;
-                }
-                // 菜品下单时间
-                double ts = pair.getSecond();
-                // * 60000 转换为 时间戳形式 || 菜品制作时间
-                double makeTime = (double) redisManager.getForHash(RedisCacheManager.DISH_MAKE_TIME_CACHE_KEY, id) * 60000;
-
-                // 开始时间加制作时间就是结束时间 ts + makeTime
-                //暂时没有办法简单的删除队列中的元素
-                if (ts + makeTime > nowTs) {
-                    waitingTime += (ts + makeTime - nowTs);
-                }
-
-            }
-        } catch (NullPointerException e) {
-            e.printStackTrace();
-            redisManager.initRedisDishMakeTimeCache(dishMapper.queryDishes());
-            return getWaitingTime(storeId);
-        }
-
-        return waitingTime / 60000;
+        return kitchenQueue.getWaitingTimeMs(storeId) / 60000.0;
     }
 
     @Override
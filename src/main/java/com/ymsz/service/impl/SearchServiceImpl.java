@@ -1,10 +1,50 @@
 package com.ymsz.service.impl;
 
+import com.alibaba.fastjson.JSONObject;
+import com.ymsz.config.RedisCacheManager;
+import com.ymsz.config.StatusBitmapSnapshot;
+import com.ymsz.search.SearchEngine;
+import com.ymsz.search.Suggestion;
+import com.ymsz.service.BaseService;
+import com.ymsz.service.SearchService;
+import com.ymsz.utils.JsonUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
 /**
  * @author Happysnaker
  * @description
  * @date 2021/10/22
  * @email happysnaker@foxmail.com
  */
-public class SearchServiceImpl {
+@Service
+public class SearchServiceImpl extends BaseService implements SearchService {
+    @Autowired
+    private SearchEngine searchEngine;
+
+    @Override
+    public String search(String keyword, int limit) {
+        // 上架、营业状态以后台为准
+        StatusBitmapSnapshot.Snapshot status = statusBitmaps.get();
+        JSONObject object = new JSONObject();
+        JsonUtils.listAddToJsonObject(object, searchEngine.searchDishes(keyword, limit,
+                doc -> status.test(RedisCacheManager.DISH_PUBLISH_STATUS_KEY, doc.getId())), "dishes");
+        JsonUtils.listAddToJsonObject(object, searchEngine.searchStores(keyword, limit,
+                doc -> status.test(RedisCacheManager.STORE_WORKING_STATUS_KEY, doc.getId())), "stores");
+        return object.toJSONString();
+    }
+
+    @Override
+    public String suggest(String prefix, int limit) {
+        StatusBitmapSnapshot.Snapshot status = statusBitmaps.get();
+        return JsonUtils.listAddToJsonObject(new JSONObject(), searchEngine.suggest(prefix, limit, s -> {
+            if (Suggestion.DISH.equals(s.getType())) {
+                return status.test(RedisCacheManager.DISH_PUBLISH_STATUS_KEY, s.getId());
+            }
+            if (Suggestion.STORE.equals(s.getType())) {
+                return status.test(RedisCacheManager.STORE_WORKING_STATUS_KEY, s.getId());
+            }
+            return true;
+        })).toJSONString();
+    }
 }
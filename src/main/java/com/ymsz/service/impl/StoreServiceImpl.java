@@ -1,14 +1,20 @@
 package com.ymsz.service.impl;
 
+import com.alibaba.fastjson.JSON;
 import com.alibaba.fastjson.JSONObject;
-import com.ymsz.api.BaiduApi;
 import com.ymsz.config.RedisCacheManager;
+import com.ymsz.config.StatusBitmapSnapshot;
+import com.ymsz.config.StoreGeoIndex;
+import com.ymsz.config.StoreLocationResolver;
 import com.ymsz.pojo.Store;
 import com.ymsz.service.BaseService;
 import com.ymsz.service.StoreService;
 import com.ymsz.utils.JsonUtils;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -20,46 +26,43 @@ import java.util.stream.Collectors;
  */
 @Service
 public class StoreServiceImpl extends BaseService implements StoreService {
+    @Autowired
+    private StoreLocationResolver storeLocations;
+
+    @Autowired
+    private StoreGeoIndex storeGeoIndex;
 
     @Override
     public String getStoreInfo() {
         // 热数据可以使用缓存
-        if (redisManager.hasKey(RedisCacheManager.STORE_CACHE_KEY)) {
-            return (String) redisManager.getForValue(RedisCacheManager.STORE_CACHE_KEY);
-        }
-        // 同步店铺启用状态以及支持外卖状态
-        List<Store> stores = storeMapper.getStoreInfo().stream().filter(store-> {
-            return !redisManager.hasKey(RedisCacheManager.STORE_WORKING_STATUS_KEY)
-                            || redisManager.getBit(RedisCacheManager.STORE_WORKING_STATUS_KEY, (long) store.getId());
-        }).map(store-> {
-            if (redisManager.hasKey(RedisCacheManager.STORE_SUP_TAKEOUT_STATUS_KEY)) {
-                store.setSupportTakeout(redisManager.getBit(RedisCacheManager.STORE_SUP_TAKEOUT_STATUS_KEY, store.getId()));
-            }
-            return store;
-        }).collect(Collectors.toList());
-        for (Store store : stores) {
-            String[] addrs = BaiduApi.getLatitudeAndLongitude(store.getAddress());
-            store.setLongitude(addrs[0]);
-            store.setLatitude(addrs[1]);
-        }
-        String ans = JsonUtils.listAddToJsonObject(new JSONObject(), stores).toJSONString();
-        redisManager.addIfAbsentForValue(RedisCacheManager.STORE_CACHE_KEY, ans);
-        return ans;
+        return redisManager.getOrLoad(RedisCacheManager.STORE_CACHE_KEY, () -> {
+            // 同步店铺启用状态以及支持外卖状态
+            StatusBitmapSnapshot.Snapshot status = statusBitmaps.get();
+            List<Store> stores = storeMapper.getStoreInfo().stream().filter(store-> {
+                return status.test(RedisCacheManager.STORE_WORKING_STATUS_KEY, store.getId());
+            }).map(store-> {
+                if (status.hasKey(RedisCacheManager.STORE_SUP_TAKEOUT_STATUS_KEY)) {
+                    store.setSupportTakeout(status.getBit(RedisCacheManager.STORE_SUP_TAKEOUT_STATUS_KEY, store.getId()) ? 1 : 0);
+                }
+                return store;
+            }).collect(Collectors.toList());
+            // 经纬度在后台解析，不阻塞请求
+            storeLocations.fill(stores);
+            return JsonUtils.listAddToJsonObject(new JSONObject(), stores).toJSONString();
+        });
     }
 
     @Override
     public List<Integer> getCollectedStore(String userId) {
         //以缓存中的信息为主
-        try {
-            return storeMapper.queryAllStoreId().stream().filter((id)-> {
-                return redisManager.getBit(RedisCacheManager.getUserCollectedStoreCacheKey(userId), (long)id);
-            }).collect(Collectors.toList());
-        } catch (Exception e) {
-            e.printStackTrace();
-            // 缓存可能不存在
-            redisManager.initRedisUserMarkedCache(storeMapper.queryAllStoreId(), userMapper.queryCollectedStore(userId), RedisCacheManager.getUserCollectedStoreCacheKey(userId));
-            return getCollectedStore(userId);
+        String key = RedisCacheManager.getUserCollectedStoreCacheKey(userId);
+        int[] ids = redisManager.getBitmap(key);
+        if (ids == null) {
+            // 缓存不存在
+            redisManager.initRedisUserMarkedCache(userMapper.queryCollectedStore(userId), key);
+            ids = redisManager.getBitmap(key);
         }
+        return ids == null ? new ArrayList<>() : Arrays.stream(ids).boxed().collect(Collectors.toList());
     }
 
     @Override
@@ -68,4 +71,32 @@ public class StoreServiceImpl extends BaseService implements StoreService {
     }
 
 
+
+    @Override
+    public String getNearbyStores(double longitude, double latitude, boolean takeout, int page, int pageSize) {
+        StatusBitmapSnapshot.Snapshot status = statusBitmaps.get();
+        // 与后台同步营业状态以及支持外卖状态，不满足条件的店铺不占用名额
+        int k = (int) Math.min((long) page * pageSize, Integer.MAX_VALUE);
+        List<StoreGeoIndex.Neighbor> neighbors = storeGeoIndex.nearest(longitude, latitude, k, store -> {
+            return status.test(RedisCacheManager.STORE_WORKING_STATUS_KEY, store.getId())
+                    && (!takeout || isSupportTakeout(status, store));
+        });
+        List<JSONObject> stores = new ArrayList<>();
+        for (int i = (page - 1) * pageSize; i < neighbors.size(); i++) {
+            Store store = neighbors.get(i).getStore();
+            // 索引中的店铺是共享的，不能修改，在副本上填充状态与距离
+            JSONObject object = (JSONObject) JSON.toJSON(store);
+            object.put("supportTakeout", isSupportTakeout(status, store) ? 1 : 0);
+            object.put("distance", Math.round(neighbors.get(i).getDistance()));
+            stores.add(object);
+        }
+        return JsonUtils.listAddToJsonObject(new JSONObject(), stores).toJSONString();
+    }
+
+    private boolean isSupportTakeout(StatusBitmapSnapshot.Snapshot status, Store store) {
+        if (status.hasKey(RedisCacheManager.STORE_SUP_TAKEOUT_STATUS_KEY)) {
+            return status.getBit(RedisCacheManager.STORE_SUP_TAKEOUT_STATUS_KEY, store.getId());
+        }
+        return store.getSupportTakeout() != 0;
+    }
 }
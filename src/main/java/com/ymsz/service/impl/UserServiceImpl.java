@@ -4,15 +4,13 @@ import com.alibaba.fastjson.JSONObject;
 import com.ymsz.config.RedisCacheManager;
 import com.ymsz.mapper.DishMapper;
 import com.ymsz.mapper.UserMapper;
+import com.ymsz.mapper.UserMapper.MarkedTable;
 import com.ymsz.service.BaseService;
 import com.ymsz.service.UserService;
-import com.ymsz.utils.JsonUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -32,35 +30,45 @@ public class UserServiceImpl extends BaseService implements UserService {
     }
 
     private void initializedRedisCache(String userId) {
-        List<Integer> dishIds = dishMapper.queryAllDishId();
-        List<Integer> storeIds = storeMapper.queryAllStoreId();
         //尝试更新收藏店铺
         if (!redisManager.hasKey(RedisCacheManager.getUserCollectedStoreCacheKey(userId))) {
-            redisManager.initRedisUserMarkedCache(storeIds, userMapper.queryCollectedStore(userId), RedisCacheManager.getUserCollectedStoreCacheKey(userId));
+            redisManager.initRedisUserMarkedCache(userMapper.queryCollectedStore(userId), RedisCacheManager.getUserCollectedStoreCacheKey(userId));
         }
         //尝试更新收藏菜品
         if (!redisManager.hasKey(RedisCacheManager.getUserCollectedDishCacheKey(userId))) {
-            redisManager.initRedisUserMarkedCache(dishIds, userMapper.queryCollectedDish(userId), RedisCacheManager.getUserCollectedDishCacheKey(userId));
+            redisManager.initRedisUserMarkedCache(userMapper.queryCollectedDish(userId), RedisCacheManager.getUserCollectedDishCacheKey(userId));
         }
         //尝试更新喜欢菜品
         if (!redisManager.hasKey(RedisCacheManager.getUserLikeDishCacheKey(userId))) {
-            redisManager.initRedisUserMarkedCache(dishIds, userMapper.queryFavoriteDish(userId), RedisCacheManager.getUserLikeDishCacheKey(userId));
+            redisManager.initRedisUserMarkedCache(userMapper.queryFavoriteDish(userId), RedisCacheManager.getUserLikeDishCacheKey(userId));
         }
         //尝试更新用户待选菜品
         if (!redisManager.hasKey(RedisCacheManager.getUserWillBuyDishCacheKey(userId))) {
-            redisManager.initRedisUserMarkedCache(dishIds, userMapper.queryWillBuyDish(userId), RedisCacheManager.getUserWillBuyDishCacheKey(userId));
+            redisManager.initRedisUserMarkedCache(userMapper.queryWillBuyDish(userId), RedisCacheManager.getUserWillBuyDishCacheKey(userId));
         }
     }
 
-    private List<Integer> getMarkedFromCache(String cacheKey, String idKey) {
-        List<Integer> ret = new ArrayList<>();
-        List<Integer> ids = idKey == ALL_DISH_ID ? dishMapper.queryAllDishId() : storeMapper.queryAllStoreId();
-        for (int id : ids) {
-            if (redis.opsForValue().getBit(cacheKey, id)) {
-                ret.add( id);
-            }
+    /**
+     * 一次取回用户的 bitmap，缓存不存在时初始化用户的所有 bitmap 后重新读取
+     */
+    private int[] getMarkedFromCache(String userId, String cacheKey) {
+        int[] ids = redisManager.getBitmap(cacheKey);
+        if (ids == null) {
+            initializedRedisCache(userId);
+            ids = redisManager.getBitmap(cacheKey);
         }
-        return ret;
+        return ids == null ? new int[0] : ids;
+    }
+
+    /**
+     * 修改 bitmap 并追加变更日志，由 MarkedChangeLogConsumer 在数秒内写入数据库；bitmap 已过期时先从数据库加载再修改
+     */
+    private String setMarked(MarkedTable table, String userId, int id, boolean val) {
+        if (!redisManager.setUserMarked(table, userId, id, val, false)) {
+            initializedRedisCache(userId);
+            redisManager.setUserMarked(table, userId, id, val, true);
+        }
+        return "OK";
     }
 
     @Override
@@ -70,31 +78,16 @@ public class UserServiceImpl extends BaseService implements UserService {
 
     @Override
     public String getUserMarkedDish(String userId) {
-        try {
-            List<Integer> list1 = getMarkedFromCache(RedisCacheManager.getUserLikeDishCacheKey(userId), ALL_DISH_ID);
-            List<Integer> list2 = getMarkedFromCache(RedisCacheManager.getUserCollectedDishCacheKey(userId), ALL_DISH_ID);
-            List<Integer> list3 = getMarkedFromCache(RedisCacheManager.getUserWillBuyDishCacheKey(userId), ALL_DISH_ID);
-
-            JSONObject object = new JSONObject();
-            JsonUtils.listAddToJsonObject(object, list1, "like");
-            JsonUtils.listAddToJsonObject(object, list2, "collection");
-            JsonUtils.listAddToJsonObject(object, list3, "willBuy");
-            return object.toJSONString();
-        } catch (Exception e) {
-            e.printStackTrace();
-            // 缓存中可能无数据
-            initializedRedisCache(userId);
-            return getUserMarkedDish(userId);
-        }
+        JSONObject object = new JSONObject();
+        object.put("like", getMarkedFromCache(userId, RedisCacheManager.getUserLikeDishCacheKey(userId)));
+        object.put("collection", getMarkedFromCache(userId, RedisCacheManager.getUserCollectedDishCacheKey(userId)));
+        object.put("willBuy", getMarkedFromCache(userId, RedisCacheManager.getUserWillBuyDishCacheKey(userId)));
+        return object.toJSONString();
     }
 
     @Override
     public String getCollectedStores(String userId) {
-        //如果 REDIS 位图中没有用户喜欢、收藏、待选等数据，则初始化 REDIS 缓存
-        if (!redis.hasKey(RedisCacheManager.getUserLikeDishCacheKey(userId))) {
-            initializedRedisCache(userId);
-        }
-        return JsonUtils.listAddToJsonObject(new JSONObject(), getMarkedFromCache(RedisCacheManager.getUserCollectedStoreCacheKey(userId), ALL_STORE_ID)).toJSONString();
+        return new JSONObject().fluentPut("arrays", getMarkedFromCache(userId, RedisCacheManager.getUserCollectedStoreCacheKey(userId))).toJSONString();
     }
 
     @Override
@@ -111,54 +104,46 @@ public class UserServiceImpl extends BaseService implements UserService {
     @Transactional(rollbackFor = Exception.class)
     public String addUserLikeDish(String userId, int dishId) {
         System.out.println("dishId = " + dishId);
-        redis.opsForValue().setBit(RedisCacheManager.getUserLikeDishCacheKey(userId), dishId, true);
-        return "OK";
+        return setMarked(MarkedTable.FAVORITE_DISH, userId, dishId, true);
     }
 
     @Override
     @Transactional(rollbackFor = Exception.class)
     public String addUserCollectedDish(String userId, int dishId) {
-        redis.opsForValue().setBit(RedisCacheManager.getUserCollectedDishCacheKey(userId), dishId, true);
-        return "OK";
+        return setMarked(MarkedTable.COLLECTED_DISH, userId, dishId, true);
     }
 
     @Override
     @Transactional(rollbackFor = Exception.class)
     public String addUserWillBuyDish(String userId, int dishId) {
         System.out.println(RedisCacheManager.getUserWillBuyDishCacheKey(userId) + "--" + dishId);
-        redis.opsForValue().setBit(RedisCacheManager.getUserWillBuyDishCacheKey(userId), dishId, true);
-        return "OK";
+        return setMarked(MarkedTable.WILL_BUY_DISH, userId, dishId, true);
     }
 
     @Override
     @Transactional(rollbackFor = Exception.class)
     public String addUserCollectedStore(String userId, int storeId) {
         System.out.println(RedisCacheManager.getUserWillBuyDishCacheKey(userId) + "--" + storeId);
-        redis.opsForValue().setBit(RedisCacheManager.getUserCollectedStoreCacheKey(userId), storeId, true);
-        return "OK";
+        return setMarked(MarkedTable.COLLECTED_STORE, userId, storeId, true);
     }
 
     @Override
     public String removeUserLikeDish(String userId, int dishId) {
-        redis.opsForValue().setBit(RedisCacheManager.getUserLikeDishCacheKey(userId), dishId, false);
-        return "OK";
+        return setMarked(MarkedTable.FAVORITE_DISH, userId, dishId, false);
     }
 
     @Override
     public String removeUserCollectedDish(String userId, int dishId) {
-        redis.opsForValue().setBit(RedisCacheManager.getUserCollectedDishCacheKey(userId), dishId, false);
-        return "OK";
+        return setMarked(MarkedTable.COLLECTED_DISH, userId, dishId, false);
     }
 
     @Override
     public String removeUserWillBuyDish(String userId, int dishId) {
-        redis.opsForValue().setBit(RedisCacheManager.getUserWillBuyDishCacheKey(userId), dishId, false);
-        return "OK";
+        return setMarked(MarkedTable.WILL_BUY_DISH, userId, dishId, false);
     }
 
     @Override
     public String removeUserCollectedStore(String userId, int storeId) {
-        redis.opsForValue().setBit(RedisCacheManager.getUserCollectedStoreCacheKey(userId), storeId, false);
-        return "OK";
+        return setMarked(MarkedTable.COLLECTED_STORE, userId, storeId, false);
     }
 }
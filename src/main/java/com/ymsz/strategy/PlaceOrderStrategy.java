@@ -30,4 +30,23 @@ public interface PlaceOrderStrategy {
      * 初始化方法
      */
     void initMethod();
+
+    /**
+     * 店铺切换到该策略时调用，此时该店铺没有正在执行的下单请求
+     * @param storeId 店铺ID
+     */
+    void initStore(int storeId);
+
+    /**
+     * 店铺切换到其他策略时调用，释放该店铺在此策略中持有的资源，此时该店铺没有正在执行的下单请求
+     * @param storeId 店铺ID
+     */
+    void releaseStore(int storeId);
+
+    /**
+     * 订单消费失败或被取消时，归还该策略在下单时预扣的库存，数据库中的库存不在此处理
+     * @param storeId 店铺ID
+     * @param dishNumMap 菜品ID与要归还的数目
+     */
+    void rollBackStock(int storeId, Map<Integer, Integer> dishNumMap);
 }
@@ -1,5 +1,7 @@
 package com.ymsz.strategy;
 
+import com.ymsz.exception.OrderAddException;
+import com.ymsz.mapper.StoreMapper;
 import com.ymsz.pojo.Order;
 import com.ymsz.strategy.impl.HighConcurrencyPlaceOrderStrategy;
 import com.ymsz.strategy.impl.OptimisticPlaceOrderStrategy;
@@ -7,13 +9,24 @@ import com.ymsz.strategy.impl.PessimisticPlaceOrderStrategy;
 import com.ymsz.strategy.impl.SerializePlaceOrderStrategy;
 import lombok.extern.log4j.Log4j2;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
- * 策略模式上下文
+ * <p>策略模式上下文</p>
+ * <p>每个店铺独立选择下单策略，未单独设置的店铺使用 strategy.place-order 配置的默认策略。开启 strategy.adaptive.enabled 后，会根据 {@link StoreContentionMonitor} 统计的下单频率、乐观锁失败率与锁等待时间定时为每个店铺重新选择策略；管理员手动指定的店铺不参与自动选择</p>
+ * <p>切换时先获取店铺的写锁，等待该店铺正在执行的下单请求全部结束，再释放旧策略的资源、初始化新策略，期间该店铺的新请求会等待。已经发送到消息队列的订单仍由消费者以数据库乐观锁兜底</p>
  *
  * @author Happysnaker
  * @description
@@ -23,34 +36,286 @@ import java.util.concurrent.ConcurrentHashMap;
 @Log4j2
 @Component
 public class PlaceOrderStrategyContent {
+    public static final int HIGH_CONCURRENCY = 0;
+    public static final int OPTIMISTIC = 1;
+    public static final int PESSIMISTIC = 2;
+    public static final int SERIALIZE = 3;
+
     static Map<Integer, PlaceOrderStrategy> cache = new ConcurrentHashMap<>();
 
+    /**
+     * 店铺当前的策略
+     */
+    private static final class StoreState {
+        final ReentrantReadWriteLock drain = new ReentrantReadWriteLock();
+        volatile int type;
+        volatile boolean overridden;
+        /**
+         * 上一次评估得出的策略，连续两次一致才切换，避免来回抖动
+         */
+        int pending = -1;
+
+        StoreState(int type) {
+            this.type = type;
+        }
+    }
 
-    private PlaceOrderStrategy strategy;
+    private final Map<Integer, StoreState> states = new ConcurrentHashMap<>();
+
+    /**
+     * 所有店铺的ID，只为存在的店铺创建状态，遇到未知的店铺时重新加载，两次加载至少间隔 {@link #STORE_IDS_RELOAD_INTERVAL_MS}
+     */
+    private volatile Set<Integer> storeIds = Collections.emptySet();
+    private volatile long storeIdsLoadTime;
+    private static final long STORE_IDS_RELOAD_INTERVAL_MS = 10000;
+
+    @Autowired
+    private StoreMapper storeMapper;
+
+    private volatile int defaultType;
+
+    @Autowired
+    private StoreContentionMonitor monitor;
+
+    @Value("${strategy.adaptive.enabled:false}")
+    private boolean adaptive;
+
+    @Value("${strategy.adaptive.interval-ms:5000}")
+    private long intervalMs;
+
+    /**
+     * 每秒下单次数达到此值时切换到高并发模式
+     */
+    @Value("${strategy.adaptive.high-rate:50}")
+    private double highRate;
+
+    /**
+     * 每秒下单次数低于此值时切换到乐观锁模式
+     */
+    @Value("${strategy.adaptive.low-rate:5}")
+    private double lowRate;
+
+    /**
+     * 乐观锁扣减失败率达到此值时切换到悲观锁模式
+     */
+    @Value("${strategy.adaptive.failure-rate:0.1}")
+    private double failureRate;
+
+    /**
+     * 悲观锁平均等待时间达到此值（毫秒）时切换到高并发模式
+     */
+    @Value("${strategy.adaptive.lock-wait-ms:20}")
+    private double lockWaitMs;
+
+    /**
+     * 切换策略期间下单请求的最长等待时间，毫秒
+     */
+    @Value("${strategy.adaptive.drain-timeout-ms:3000}")
+    private long drainTimeoutMs;
 
     @Autowired
     public PlaceOrderStrategyContent(HighConcurrencyPlaceOrderStrategy highConcurrencyPlaceOrderStrategy, OptimisticPlaceOrderStrategy optimisticPlaceOrderStrategy, PessimisticPlaceOrderStrategy pessimisticPlaceOrderStrategy, SerializePlaceOrderStrategy serializePlaceOrderStrategy) {
-        cache.put(0, highConcurrencyPlaceOrderStrategy);
-        cache.put(1, optimisticPlaceOrderStrategy);
-        cache.put(2, pessimisticPlaceOrderStrategy);
-        cache.put(3, serializePlaceOrderStrategy);
+        cache.put(HIGH_CONCURRENCY, highConcurrencyPlaceOrderStrategy);
+        cache.put(OPTIMISTIC, optimisticPlaceOrderStrategy);
+        cache.put(PESSIMISTIC, pessimisticPlaceOrderStrategy);
+        cache.put(SERIALIZE, serializePlaceOrderStrategy);
     }
 
+    /**
+     * 设置默认策略，已单独设置策略的店铺不受影响
+     */
     public void setStrategy(int type) {
-        this.strategy = cache.get(type);
+        if (!cache.containsKey(type)) {
+            throw new IllegalArgumentException("不存在的下单策略：" + type);
+        }
+        this.defaultType = type;
+    }
+
+    /**
+     * @return 店铺的状态，店铺不存在时返回 null
+     */
+    private StoreState getState(int storeId) {
+        StoreState state = states.get(storeId);
+        if (state != null) {
+            return state;
+        }
+        if (!isStore(storeId)) {
+            return null;
+        }
+        return states.computeIfAbsent(storeId, k -> new StoreState(defaultType));
+    }
+
+    private boolean isStore(int storeId) {
+        if (storeIds.contains(storeId)) {
+            return true;
+        }
+        synchronized (this) {
+            if (!storeIds.contains(storeId) && System.currentTimeMillis() - storeIdsLoadTime >= STORE_IDS_RELOAD_INTERVAL_MS) {
+                storeIds = new HashSet<>(storeMapper.queryAllStoreId());
+                storeIdsLoadTime = System.currentTimeMillis();
+            }
+            return storeIds.contains(storeId);
+        }
     }
 
     public Map executePlaceOrderStrategy(Order order) throws Exception {
-        log.info("开始执行下单策略，使用策略：" + strategy.getClass().getName());
-        log.info("订单 ID：" + order.getId());
+        StoreState state = getState(order.getStoreId());
+        if (state == null) {
+            throw new OrderAddException("店铺不存在");
+        }
+        monitor.recordOrder(order.getStoreId());
+        Lock lock = state.drain.readLock();
+        if (!lock.tryLock(drainTimeoutMs, TimeUnit.MILLISECONDS)) {
+            throw new OrderAddException("店铺正在切换下单模式，请稍后重试");
+        }
+        try {
+            PlaceOrderStrategy strategy = cache.get(state.type);
+            log.info("开始执行下单策略，使用策略：" + strategy.getClass().getName());
+            log.info("订单 ID：" + order.getId());
 
-        Map map = strategy.doPlaceOrder(order);
+            Map map = strategy.doPlaceOrder(order);
+
+            log.info("执行策略成功");
+            return map;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-        log.info("执行策略成功");
-        return map;
+    /**
+     * @param type 策略
+     * @return 策略，不存在时返回 null
+     */
+    public PlaceOrderStrategy getStrategy(int type) {
+        return cache.get(type);
+    }
+
+    /**
+     * @return 店铺当前使用的策略
+     */
+    public int getStoreStrategyType(int storeId) {
+        StoreState state = states.get(storeId);
+        return state == null ? defaultType : state.type;
     }
 
     public int isComplete(String oid) {
-        return strategy.isComplete(oid);
+        // 所有策略都以消费者写入的结果为准
+        return cache.get(defaultType).isComplete(oid);
+    }
+
+    /**
+     * 等待店铺正在执行的下单请求结束后切换策略，是否手动指定在写锁内判断与修改，自动选择不会覆盖同时发生的手动指定
+     *
+     * @param manual 是否为管理员手动指定
+     */
+    private void switchStrategy(int storeId, StoreState state, int type, boolean manual) {
+        Lock lock = state.drain.writeLock();
+        lock.lock();
+        try {
+            if (manual) {
+                state.overridden = true;
+            } else if (state.overridden) {
+                return;
+            }
+            if (state.type == type) {
+                return;
+            }
+            log.info("店铺 " + storeId + " 的下单策略由 " + state.type + " 切换为 " + type);
+            cache.get(state.type).releaseStore(storeId);
+            cache.get(type).initStore(storeId);
+            state.type = type;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 管理员手动指定店铺的策略
+     *
+     * @param storeId 店铺ID
+     * @param type    策略，小于 0 表示取消手动指定，恢复自动选择
+     */
+    public void overrideStrategy(int storeId, int type) {
+        StoreState state = getState(storeId);
+        if (state == null) {
+            throw new IllegalArgumentException("不存在的店铺：" + storeId);
+        }
+        if (type < 0) {
+            Lock lock = state.drain.writeLock();
+            lock.lock();
+            try {
+                state.overridden = false;
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        if (!cache.containsKey(type)) {
+            throw new IllegalArgumentException("不存在的下单策略：" + type);
+        }
+        switchStrategy(storeId, state, type, true);
+    }
+
+    /**
+     * @return 默认策略以及每个店铺当前的策略
+     */
+    public Map<String, Object> getStrategies() {
+        Map<Integer, Map<String, Object>> stores = new HashMap<>();
+        for (Map.Entry<Integer, StoreState> it : states.entrySet()) {
+            Map<String, Object> m = new HashMap<>(4);
+            m.put("type", it.getValue().type);
+            m.put("name", cache.get(it.getValue().type).getClass().getSimpleName());
+            m.put("overridden", it.getValue().overridden);
+            stores.put(it.getKey(), m);
+        }
+        Map<String, Object> ans = new HashMap<>(4);
+        ans.put("default", defaultType);
+        ans.put("adaptive", adaptive);
+        ans.put("stores", stores);
+        return ans;
+    }
+
+    /**
+     * 定时根据上一周期的统计为每个店铺重新选择策略
+     */
+    @Scheduled(fixedDelayString = "${strategy.adaptive.interval-ms:5000}")
+    public void evaluate() {
+        Map<Integer, StoreContentionMonitor.Stats> stats = monitor.drain();
+        if (!adaptive) {
+            return;
+        }
+        for (Map.Entry<Integer, StoreContentionMonitor.Stats> it : stats.entrySet()) {
+            StoreState state = getState(it.getKey());
+            if (state == null || state.overridden) {
+                continue;
+            }
+            int type = choose(it.getValue(), state.type);
+            if (type == state.type) {
+                state.pending = -1;
+            } else if (type == state.pending) {
+                state.pending = -1;
+                try {
+                    switchStrategy(it.getKey(), state, type, false);
+                } catch (Exception e) {
+                    log.error("店铺 " + it.getKey() + " 切换下单策略失败", e);
+                }
+            } else {
+                state.pending = type;
+            }
+        }
+    }
+
+    private int choose(StoreContentionMonitor.Stats stats, int current) {
+        double rate = stats.orders * 1000.0 / intervalMs;
+        if (rate >= highRate || stats.getAvgLockWaitMs() >= lockWaitMs) {
+            return HIGH_CONCURRENCY;
+        }
+        if (stats.getFailureRate() >= failureRate) {
+            return PESSIMISTIC;
+        }
+        if (rate < lowRate) {
+            return OPTIMISTIC;
+        }
+        return current;
     }
 }
@@ -0,0 +1,97 @@
+package com.ymsz.strategy;
+
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>收集每个店铺的竞争情况，供 {@link PlaceOrderStrategyContent} 选择下单策略</p>
+ * <p>包括下单次数、数据库乐观锁扣减的成功与失败次数、悲观锁的等待时间，统计值在每次 {@link #drain()} 后清零</p>
+ */
+@Component
+public class StoreContentionMonitor {
+    private static final class Counter {
+        final LongAdder orders = new LongAdder();
+        final LongAdder deductions = new LongAdder();
+        final LongAdder deductionFailures = new LongAdder();
+        final LongAdder lockWaits = new LongAdder();
+        final LongAdder lockWaitNanos = new LongAdder();
+    }
+
+    /**
+     * 一个统计周期内店铺的竞争情况
+     */
+    public static final class Stats {
+        public final long orders;
+        public final long deductions;
+        public final long deductionFailures;
+        public final long lockWaits;
+        public final long lockWaitNanos;
+
+        Stats(Counter c) {
+            this.orders = c.orders.sumThenReset();
+            this.deductions = c.deductions.sumThenReset();
+            this.deductionFailures = c.deductionFailures.sumThenReset();
+            this.lockWaits = c.lockWaits.sumThenReset();
+            this.lockWaitNanos = c.lockWaitNanos.sumThenReset();
+        }
+
+        /**
+         * 乐观锁扣减失败的比例
+         */
+        public double getFailureRate() {
+            return deductions == 0 ? 0 : (double) deductionFailures / deductions;
+        }
+
+        /**
+         * 平均每次获取锁的等待时间，毫秒
+         */
+        public double getAvgLockWaitMs() {
+            return lockWaits == 0 ? 0 : lockWaitNanos / 1e6 / lockWaits;
+        }
+    }
+
+    private final Map<Integer, Counter> counters = new ConcurrentHashMap<>();
+
+    private Counter counter(int storeId) {
+        return counters.computeIfAbsent(storeId, k -> new Counter());
+    }
+
+    public void recordOrder(int storeId) {
+        counter(storeId).orders.increment();
+    }
+
+    /**
+     * 记录一次数据库乐观锁扣减
+     *
+     * @param storeId 店铺ID
+     * @param row     optimisticDeductInventory 影响的行数，0 表示失败
+     */
+    public void recordDeduction(int storeId, int row) {
+        Counter c = counter(storeId);
+        c.deductions.increment();
+        if (row == 0) {
+            c.deductionFailures.increment();
+        }
+    }
+
+    public void recordLockWait(int storeId, long nanos) {
+        Counter c = counter(storeId);
+        c.lockWaits.increment();
+        c.lockWaitNanos.add(nanos);
+    }
+
+    /**
+     * 取出所有店铺在上一个周期内的统计值并清零
+     */
+    public Map<Integer, Stats> drain() {
+        Map<Integer, Stats> ans = new HashMap<>(counters.size() * 2);
+        for (Map.Entry<Integer, Counter> it : counters.entrySet()) {
+            ans.put(it.getKey(), new Stats(it.getValue()));
+        }
+        return ans;
+    }
+}
@@ -1,7 +1,9 @@
 package com.ymsz.strategy.impl;
 
+import com.ymsz.config.OrderRabbitMqConfig;
 import com.ymsz.config.RedisCacheManager;
-import com.ymsz.pojo.ComboDish;
+import com.ymsz.pojo.Dish;
+import com.ymsz.pojo.OrderMessage;
 import com.ymsz.service.BaseService;
 import com.ymsz.service.impl.OrderServiceImpl;
 import com.ymsz.strategy.PlaceOrderStrategy;
@@ -32,21 +34,35 @@ public abstract class AbstractPlaceOrderStrategy extends BaseService implements
      * @see OrderServiceImpl#getDishNumMap(List)
      */
     public Map<Integer, Integer> getDishNumMap(List<Map<String, Object>> dishOrders) {
-        Map<Integer, Integer> m = new HashMap<>(8);
-        for (Map<String, Object> map : dishOrders) {
-            int dishId = (int) map.get("dishId");
-            int dishNum = (int) map.get("dishNum");
-            if (dishId >= 100000) {
-                List<ComboDish> list = comboMapper.queryComboDishById(dishId);
-                for (ComboDish cMap : list) {
-                    // 套餐内置的菜品个数 * 套餐个数
-                    m.put((Integer) cMap.getDishId(), m.getOrDefault(cMap.getDishId(), 0) + cMap.getDishNum() * dishNum);
-                }
-            } else {
-                m.put(dishId, m.getOrDefault(dishId, 0) + dishNum);
-            }
+        return comboIndex.getDishNumMap(dishOrders);
+    }
+
+    /**
+     * 发送新订单消息，消费者在数据库中扣减之前，订单中的菜品记为在途库存
+     */
+    protected void publishOrder(OrderMessage om) {
+        int storeId = om.getOrder().getStoreId();
+        redisManager.addInflightStock(om.getDishNumMap(), storeId, 1);
+        try {
+            rabbit.convertAndSend(OrderRabbitMqConfig.ORDER_ADD_ROUTEING_KEY, om);
+        } catch (RuntimeException e) {
+            redisManager.addInflightStock(om.getDishNumMap(), storeId, -1);
+            throw e;
+        }
+    }
+
+    /**
+     * 店铺当前可售的库存，即数据库中的库存减去已经发出但尚未落库的订单，从数据库加载库存时必须使用此方法，否则在途的订单会被重复计算
+     *
+     * @return 菜品ID -> 库存
+     */
+    protected Map<Integer, Integer> queryAvailableStock(int storeId) {
+        Map<Integer, Integer> inflight = redisManager.getInflightStock(storeId);
+        Map<Integer, Integer> stock = new HashMap<>();
+        for (Dish dish : dishMapper.queryDishInfo(storeId)) {
+            stock.put(dish.getId(), Math.max(0, dish.getStock() - inflight.getOrDefault(dish.getId(), 0)));
         }
-        return m;
+        return stock;
     }
 
     @Override
@@ -54,6 +70,24 @@ public abstract class AbstractPlaceOrderStrategy extends BaseService implements
 
     }
 
+    @Override
+    public void initStore(int storeId) {
+
+    }
+
+    @Override
+    public void releaseStore(int storeId) {
+
+    }
+
+    /**
+     * 默认下单时不预扣数据库以外的库存，无需归还
+     */
+    @Override
+    public void rollBackStock(int storeId, Map<Integer, Integer> dishNumMap) {
+
+    }
+
 
     @Override
     public int isComplete(String orderId) {
@@ -1,5 +1,6 @@
 package com.ymsz.strategy.impl;
 
+import com.ymsz.config.CacheRehydrator;
 import com.ymsz.config.OrderRabbitMqConfig;
 import com.ymsz.config.RedisCacheManager;
 import com.ymsz.exception.OrderAddException;
@@ -7,8 +8,9 @@ import com.ymsz.exception.ReadWriterLockException;
 import com.ymsz.pojo.Order;
 import com.ymsz.pojo.OrderMessage;
 import com.ymsz.service.OrderService;
-import com.ymsz.utils.VerifyUtils;
+import com.ymsz.strategy.PlaceOrderStrategyContent;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -17,7 +19,6 @@ import java.sql.Timestamp;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.stream.Collectors;
 
 /**
@@ -34,6 +35,11 @@ import java.util.stream.Collectors;
 @Configuration
 @EnableRabbit
 public class HighConcurrencyPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
+    @Autowired
+    private StockLeaseManager leaseManager;
+
+    @Autowired
+    private CacheRehydrator cacheRehydrator;
 
     /**
      * 刷新 Redis 缓存，准备进入高并发模式
@@ -41,9 +47,30 @@ public class HighConcurrencyPlaceOrderStrategy extends AbstractPlaceOrderStrateg
     @Override
     public void initMethod() {
         System.out.println("执行初始化方法");
-        for (Integer sid : storeMapper.queryAllStoreId()) {
-            redisManager.flushRedisDishStockCache(dishMapper.queryDishInfo(sid), sid);
-        }
+        // 各店铺并行以游标读取库存，不再逐个店铺加锁查询
+        cacheRehydrator.flushAllStock();
+    }
+
+    /**
+     * 店铺切换到高并发模式时以数据库为准刷新 Redis 库存，期间该店铺可能已经以其他模式扣减过库存；已经发出但尚未落库的订单从中减去
+     */
+    @Override
+    public void initStore(int storeId) {
+        redisManager.flushRedisDishStockCache(queryAvailableStock(storeId), storeId);
+        leaseManager.invalidate(storeId);
+    }
+
+    @Override
+    public void releaseStore(int storeId) {
+        leaseManager.invalidate(storeId);
+    }
+
+    /**
+     * 归还到 Redis 中的共享库存，缓存中已经没有的菜品下次从数据库加载
+     */
+    @Override
+    public void rollBackStock(int storeId, Map<Integer, Integer> dishNumMap) {
+        redisManager.restoreDishStock(dishNumMap, storeId);
     }
 
     @Override
@@ -51,19 +78,33 @@ public class HighConcurrencyPlaceOrderStrategy extends AbstractPlaceOrderStrateg
         return addUserOrder(order);
     }
 
-    public boolean checkStock(Map<Integer, Integer> m, int storeId) {
-        try {
-            for (Map.Entry<Integer, Integer> it : m.entrySet()) {
-                int id = it.getKey(), stock = it.getValue();
-                if ((int) redisManager.getForHash(RedisCacheManager.getDishStockCacheKey(storeId), id) < stock) {
-                    return false;
-                }
-            }
-            return true;
-        } catch (NullPointerException e) {
-            redisManager.flushRedisDishStockCache(
-                    dishMapper.queryDishInfo(storeId), storeId);
-            return checkStock(m, storeId);
+    /**
+     * <p>先从本地租约中扣减热点菜品，剩余的菜品在 Redis 中一次往返原子地检查并扣减，要么全部扣减，要么什么都不做</p>
+     * <p>如果缓存中没有该店铺或某个菜品的库存，则从数据库中补充缺失的部分后重试一次，补充不会覆盖已被扣减的库存，本节点内同一店铺同一时刻只补充一次</p>
+     *
+     * @param dishNumMap 菜品ID与要扣减的数目
+     * @param storeId    店铺ID
+     * @throws OrderAddException 库存不足或菜品不存在
+     */
+    public void deductStock(Map<Integer, Integer> dishNumMap, int storeId) throws OrderAddException {
+        Map<Integer, Integer> rest = new HashMap<>(dishNumMap);
+        Map<Integer, StockLeaseManager.Taken> leased = leaseManager.tryDeduct(storeId, rest);
+        int ret = redisManager.deductDishStock(storeId, rest);
+        if (ret == RedisCacheManager.DISH_STOCK_CACHE_MISS) {
+            // 同一店铺并发缺失时只有一个线程查询数据库
+            redisManager.loadWithStats(RedisCacheManager.getDishStockCacheKey(storeId),
+                    () -> redisManager.loadDishStockIfAbsent(queryAvailableStock(storeId), storeId));
+            ret = redisManager.deductDishStock(storeId, rest);
+        }
+        if (ret != 0) {
+            // 共享库存扣减失败，归还本地租约中已扣减的部分
+            leaseManager.restore(storeId, leased);
+        }
+        if (ret == RedisCacheManager.DISH_STOCK_CACHE_MISS) {
+            throw new OrderAddException("菜品不存在或未在该店铺上架");
+        }
+        if (ret != 0) {
+            throw new OrderAddException("库存不足，菜品ID：" + ret);
         }
     }
 
@@ -99,56 +140,39 @@ public class HighConcurrencyPlaceOrderStrategy extends AbstractPlaceOrderStrateg
         order.setCreateTime(timestamp);
 
         //生成订单编号
-        String orderId = UUID.randomUUID().toString();
+        String orderId = idGenerator.nextIdString();
 
 
         order.setId(orderId);
         order.setUserId(userId);
 
-
-        // 测试用，删除 key 以便更新 redis
-        redis.delete(RedisCacheManager.getDishStockCacheKey(order.getStoreId()));
-
         if (order.getConsumeType() == 2) {
-            // 以当前时间戳生产取餐码，确保取餐吗唯一
-            String code = VerifyUtils.BaseConversion(System.currentTimeMillis(), 32);
-            order.setFetchMealCode(code);
+            // 取餐码在店铺当天内唯一
+            order.setFetchMealCode(fetchMealCodeAllocator.allocate(order.getStoreId()));
         }
 
 
         //m 保存的是菜品ID与要下单的数量，主要是将套餐中的每个菜品与单点菜品合并
         Map<Integer, Integer> dishNumMap = getDishNumMap(order.getDishOrders());
-        if (!checkStock(dishNumMap, order.getStoreId())) {
-            throw new OrderAddException("库存不足");
-        }
-        // 扣减库存
-        boolean hasDeduction = false;
+        // 检查并扣减 redis 库存，这一步是原子的，库存不足时直接抛出异常，无需补偿
+        deductStock(dishNumMap, order.getStoreId());
         try {
-            // 扣减 redis，发送消息，数据库层面会进行乐观锁判断
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                int id = it.getKey(), stock = it.getValue();
-                redis.opsForHash().increment(RedisCacheManager.getDishStockCacheKey(order.getStoreId()), id, -stock);
-            }
-            hasDeduction = true;
+            // 发送消息，数据库层面会进行乐观锁判断
             // 订单算是生成成功，产生随机支付单号，发起支付
-            order.setPayId(UUID.randomUUID().toString().replace("-", ""));
+            order.setPayId(idGenerator.nextIdString());
             OrderMessage om = new OrderMessage(dishNumMap, order);
+            om.setStrategy(PlaceOrderStrategyContent.HIGH_CONCURRENCY);
 
             System.out.println("扣减库存成功，上锁，发送消息到消息队列！");
 
-            rabbit.convertAndSend(OrderRabbitMqConfig.ORDER_ADD_ROUTEING_KEY, om);
+            publishOrder(om);
 
-        } catch (NullPointerException e) {
-            // 缓存不存在，不能更新，高并发下更新会造成缓存不一致
-            e.printStackTrace();
-            throw e;
         } catch (Exception e) {
             e.printStackTrace();
-            if (hasDeduction) {
-                // 如果已经减了 redis 缓存，那么要补偿
-                dishNumMap.put(-1, order.getStoreId());
-                rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, dishNumMap);
-            }
+            // 已经减了 redis 缓存，那么要补偿
+            dishNumMap.put(OrderRabbitMqConfig.ROLL_BACK_STORE_ID_KEY, order.getStoreId());
+            dishNumMap.put(OrderRabbitMqConfig.ROLL_BACK_STRATEGY_KEY, PlaceOrderStrategyContent.HIGH_CONCURRENCY);
+            rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, dishNumMap);
             throw e;
         }
         // 返回支付单号给前端
@@ -173,35 +197,20 @@ public class HighConcurrencyPlaceOrderStrategy extends AbstractPlaceOrderStrateg
 
         order.setDishOrders(dishOrders);
 
-        if (!checkStock(dishNumMap, order.getStoreId())) {
-            throw new OrderAddException("库存不足");
-        }
-        // 扣减库存
-        boolean hasDeduction = false;
+        // 原子地检查并扣减库存
+        deductStock(dishNumMap, order.getStoreId());
         try {
-            // 扣减库存
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                int id = it.getKey(), stock = it.getValue();
-                redis.opsForHash().increment(
-                        RedisCacheManager.getDishStockCacheKey(
-                                order.getStoreId()), id, -stock);
-            }
-            hasDeduction = true;
             // 库存扣减成功，订单算完成，发布消息
             order.setOrderType(OrderService.CONFIRMING_STATUS);
             OrderMessage om = new OrderMessage(dishNumMap, order);
+            om.setStrategy(PlaceOrderStrategyContent.HIGH_CONCURRENCY);
 
-            rabbit.convertAndSend(OrderRabbitMqConfig.ORDER_ADD_ROUTEING_KEY, om);
-        } catch (NullPointerException e) {
-            // 缓存不存在
-            e.printStackTrace();
-            throw e;
+            publishOrder(om);
         } catch (Exception e) {
             e.printStackTrace();
-            if (hasDeduction) {
-                dishNumMap.put(-1, order.getStoreId());
-                rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, dishNumMap);
-            }
+            dishNumMap.put(OrderRabbitMqConfig.ROLL_BACK_STORE_ID_KEY, order.getStoreId());
+            dishNumMap.put(OrderRabbitMqConfig.ROLL_BACK_STRATEGY_KEY, PlaceOrderStrategyContent.HIGH_CONCURRENCY);
+            rabbit.convertAndSend(OrderRabbitMqConfig.ROLL_BACK_STOCK_ROUTEING_KEY, dishNumMap);
             throw e;
         }
     }
@@ -6,7 +6,7 @@ import com.ymsz.exception.ReadWriterLockException;
 import com.ymsz.pojo.Order;
 import com.ymsz.pojo.OrderMessage;
 import com.ymsz.service.OrderService;
-import com.ymsz.utils.VerifyUtils;
+import com.ymsz.strategy.PlaceOrderStrategyContent;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
@@ -16,7 +16,6 @@ import java.sql.Timestamp;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 import java.util.stream.Collectors;
 
 /**
@@ -69,7 +68,7 @@ public class OptimisticPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
         order.setCreateTime(timestamp);
 
         //生成订单编号
-        String orderId = UUID.randomUUID().toString();
+        String orderId = idGenerator.nextIdString();
 
 
         order.setId(orderId);
@@ -78,9 +77,8 @@ public class OptimisticPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
 
 
         if (order.getConsumeType() == 2) {
-            // 以当前时间戳生产取餐码，确保取餐吗唯一
-            String code = VerifyUtils.BaseConversion(System.currentTimeMillis(), 32);
-            order.setFetchMealCode(code);
+            // 取餐码在店铺当天内唯一
+            order.setFetchMealCode(fetchMealCodeAllocator.allocate(order.getStoreId()));
         }
 
 
@@ -91,10 +89,11 @@ public class OptimisticPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
         try {
             // 数据库层面会进行乐观锁判断
             // 订单算是生成成功，产生随机支付单号，发起支付
-            order.setPayId(UUID.randomUUID().toString().replace("-", ""));
+            order.setPayId(idGenerator.nextIdString());
             OrderMessage om = new OrderMessage(dishNumMap, order);
+            om.setStrategy(PlaceOrderStrategyContent.OPTIMISTIC);
 
-            rabbit.convertAndSend(OrderRabbitMqConfig.ORDER_ADD_ROUTEING_KEY, om);
+            publishOrder(om);
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -128,8 +127,9 @@ public class OptimisticPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
             // 库存扣减成功，订单算完成，发布消息
             order.setOrderType(OrderService.CONFIRMING_STATUS);
             OrderMessage om = new OrderMessage(dishNumMap, order);
+            om.setStrategy(PlaceOrderStrategyContent.OPTIMISTIC);
 
-            rabbit.convertAndSend(OrderRabbitMqConfig.ORDER_ADD_ROUTEING_KEY, om);
+            publishOrder(om);
         }  catch (Exception e) {
             e.printStackTrace();
             throw e;
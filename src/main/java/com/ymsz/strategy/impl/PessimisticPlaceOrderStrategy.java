@@ -6,19 +6,22 @@ import com.ymsz.exception.ReadWriterLockException;
 import com.ymsz.pojo.Order;
 import com.ymsz.pojo.OrderMessage;
 import com.ymsz.service.OrderService;
-import com.ymsz.utils.VerifyUtils;
+import com.ymsz.strategy.StoreContentionMonitor;
+import com.ymsz.utils.StripedLockManager;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.sql.Timestamp;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -39,12 +42,58 @@ public class PessimisticPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
         return addUserOrder(order);
     }
 
-    static Map<Long, ReentrantLock> lockMap = new ConcurrentHashMap<>();
+    @Autowired
+    private StripedLockManager lockManager;
 
-    private synchronized ReentrantLock getLock(int did, int sid) {
-        long key = (did << 32) | sid;
-        lockMap.putIfAbsent(key, new ReentrantLock());
-        return lockMap.get(key);
+    @Autowired
+    private StoreContentionMonitor monitor;
+
+    /**
+     * 获取全部菜品锁的最长等待时间，毫秒
+     */
+    @Value("${strategy.pessimistic.lock-timeout-ms:2000}")
+    private long lockTimeoutMs;
+
+    /**
+     * <p>上锁 - 检查 - 扣减，锁按顺序获取，因此包含相同菜品的订单不会死锁</p>
+     * <p>锁在事务结束后才释放，否则其他线程可能在本事务提交前读到旧的库存</p>
+     *
+     * @param storeId    店铺ID
+     * @param dishNumMap 菜品ID与要扣减的数目
+     */
+    private void checkAndDeduct(int storeId, Map<Integer, Integer> dishNumMap) throws OrderAddException, ReadWriterLockException {
+        long start = System.nanoTime();
+        int[] locks;
+        try {
+            locks = lockManager.lockAll(storeId, dishNumMap.keySet(), lockTimeoutMs, TimeUnit.MILLISECONDS);
+        } finally {
+            monitor.recordLockWait(storeId, System.nanoTime() - start);
+        }
+        boolean deferred = false;
+        try {
+            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
+                Integer v = dishMapper.getTheDishInventory(storeId, it.getKey());
+                if (v == null || v < it.getValue()) {
+                    throw new OrderAddException("库存不足");
+                }
+            }
+            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
+                dishMapper.optimisticDeductInventory(storeId, it.getKey(), it.getValue());
+            }
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                    @Override
+                    public void afterCompletion(int status) {
+                        lockManager.unlockAll(locks);
+                    }
+                });
+                deferred = true;
+            }
+        } finally {
+            if (!deferred) {
+                lockManager.unlockAll(locks);
+            }
+        }
     }
 
     /**
@@ -71,7 +120,7 @@ public class PessimisticPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
         order.setCreateTime(timestamp);
 
         //生成订单编号
-        String orderId = UUID.randomUUID().toString();
+        String orderId = idGenerator.nextIdString();
 
 
         order.setId(orderId);
@@ -80,42 +129,21 @@ public class PessimisticPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
 
 
         if (order.getConsumeType() == 2) {
-            // 以当前时间戳生产取餐码，确保取餐吗唯一
-            String code = VerifyUtils.BaseConversion(System.currentTimeMillis(), 32);
-            order.setFetchMealCode(code);
+            // 取餐码在店铺当天内唯一
+            order.setFetchMealCode(fetchMealCodeAllocator.allocate(order.getStoreId()));
         }
 
 
         //dishNumMap 保存的是菜品ID与要下单的数量，主要是将套餐中的每个菜品与单点菜品合并
         Map<Integer, Integer> dishNumMap = getDishNumMap(order.getDishOrders());
 
-        try {
-            // 上锁 - 检查 - 扣减 - 释放
-            boolean check = true;
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                getLock(it.getKey(), order.getStoreId()).lock();
-                Integer v = dishMapper.getTheDishInventory(order.getStoreId(), it.getKey());
-                if (v == null || v < it.getValue()) {
-                    // 检查失败
-                    check = false;
-                }
-            }
-            if (!check) {
-                throw new OrderAddException("库存不足");
-            }
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                dishMapper.optimisticDeductInventory(order.getStoreId(), it.getKey(), it.getValue());
-            }
-        } finally {
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                getLock(it.getKey(), order.getStoreId()).unlock();
-            }
-        }
+        // 上锁 - 检查 - 扣减，事务结束后释放
+        checkAndDeduct(order.getStoreId(), dishNumMap);
         
         try {
             // 数据库层面会进行乐观锁判断
             // 订单算是生成成功，产生随机支付单号，发起支付
-            order.setPayId(UUID.randomUUID().toString().replace("-", ""));
+            order.setPayId(idGenerator.nextIdString());
             // dishStockMap 设置为 null
             OrderMessage om = new OrderMessage(null, order);
 
@@ -145,33 +173,11 @@ public class PessimisticPlaceOrderStrategy extends AbstractPlaceOrderStrategy {
         })).collect(Collectors.toList());
         Map<Integer, Integer> dishNumMap = getDishNumMap(dishOrders);
 
-        try {
-            // 上锁 - 检查 - 扣减 - 释放
-            boolean check = true;
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                getLock(it.getKey(), order.getStoreId()).lock();
-                Integer v = dishMapper.getTheDishInventory(order.getStoreId(), it.getKey());
-                if (v == null || v < it.getValue()) {
-                    // 检查失败
-                    check = false;
-                }
-            }
-            if (!check) {
-                throw new OrderAddException("库存不足");
-            }
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                dishMapper.optimisticDeductInventory(order.getStoreId(), it.getKey(), it.getValue());
-            }
-        } finally {
-            for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
-                getLock(it.getKey(), order.getStoreId()).unlock();
-            }
-        }
+        // 上锁 - 检查 - 扣减，事务结束后释放
+        checkAndDeduct(order.getStoreId(), dishNumMap);
 
         order.setDishOrders(dishOrders);
 
-        // 扣减库存
-        boolean hasDeduction = false;
         try {
             // 库存扣减成功，订单算完成，发布消息
             order.setOrderType(OrderService.CONFIRMING_STATUS);
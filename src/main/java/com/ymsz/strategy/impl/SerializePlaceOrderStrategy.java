@@ -1,27 +1,151 @@
 package com.ymsz.strategy.impl;
 
+import com.ymsz.exception.OrderAddException;
 import com.ymsz.pojo.Order;
+import com.ymsz.pojo.OrderMessage;
+import com.ymsz.service.OrderService;
+import com.ymsz.strategy.PlaceOrderStrategyContent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 /**
- * 串行化的策略
+ * <p>串行化的策略</p>
+ * <p>每个店铺一个 {@link StoreInventoryEngine}，店铺的库存只由引擎的写线程修改，下单请求排队交给写线程检查并扣减整笔订单，不需要锁，也不需要访问 Redis</p>
+ * <p>引擎在店铺第一次下单时从数据库加载库存，通过检查的订单批量发送到消息队列，由消费者在数据库中以乐观锁落库，消费失败时通过回滚消息归还引擎中的库存</p>
+ * <p>与高并发策略一样，使用该策略期间管理员不得更改菜品库存，否则需要调用 {@link #initMethod()} 重新加载</p>
+ *
  * @author Happysnaker
  * @description
  * @date 2022/3/15
  * @email happysnaker@foxmail.com
  */
+@Slf4j
 @Component
 public class SerializePlaceOrderStrategy extends AbstractPlaceOrderStrategy {
+    private final Map<Integer, StoreInventoryEngine> engines = new ConcurrentHashMap<>();
+
+    /**
+     * 每个店铺环形缓冲区的大小，缓冲区满时下单请求会等待直至超时
+     */
+    @Value("${strategy.serialize.ring-buffer-size:1024}")
+    private int ringBufferSize;
+
+    /**
+     * 写线程一次处理并发送的最大订单数
+     */
+    @Value("${strategy.serialize.batch-size:64}")
+    private int batchSize;
+
+    /**
+     * 排队与等待处理结果的超时时间，毫秒
+     */
+    @Value("${strategy.serialize.timeout-ms:3000}")
+    private long timeoutMs;
+
+    /**
+     * 停止所有引擎，下一次下单时将从数据库重新加载库存
+     */
+    @Override
+    public void initMethod() {
+        for (Integer storeId : engines.keySet()) {
+            releaseStore(storeId);
+        }
+    }
+
+    /**
+     * 店铺切换到其他模式时停止其引擎，再次切换回来时从数据库重新加载库存
+     */
+    @Override
+    public void releaseStore(int storeId) {
+        StoreInventoryEngine engine = engines.remove(storeId);
+        if (engine != null) {
+            engine.stop();
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        initMethod();
+    }
+
     @Override
     public Map doPlaceOrder(Order order) throws Exception {
-        // ......
-        return null;
+        if (order == null) {
+            return null;
+        }
+        if (!order.getIsNew()) {
+            handleOldOrder(order);
+            return null;
+        }
+        order.setIsNew(true);
+        order.setCreateTime(new Timestamp(System.currentTimeMillis()));
+        order.setId(idGenerator.nextIdString());
+        if (order.getConsumeType() == 2) {
+            // 取餐码在店铺当天内唯一
+            order.setFetchMealCode(fetchMealCodeAllocator.allocate(order.getStoreId()));
+        }
+        order.setPayId(idGenerator.nextIdString());
+
+        Map<Integer, Integer> dishNumMap = getDishNumMap(order.getDishOrders());
+        getEngine(order.getStoreId()).placeOrder(dishNumMap, newOrderMessage(dishNumMap, order), timeoutMs);
+
+        // 返回支付单号给前端
+        Map map = new HashMap(2);
+        map.put("payId", order.getPayId());
+        map.put("orderId", order.getId());
+        return map;
+    }
+
+    /**
+     * 处理加餐的旧订单，只扣减新添加的菜
+     */
+    public void handleOldOrder(Order order) throws OrderAddException {
+        List<Map<String, Object>> dishOrders = order.getDishOrders().stream().filter((item -> {
+            return (Boolean) item.getOrDefault("isAdd", false);
+        })).collect(Collectors.toList());
+        order.setDishOrders(dishOrders);
+        order.setOrderType(OrderService.CONFIRMING_STATUS);
+
+        Map<Integer, Integer> dishNumMap = getDishNumMap(dishOrders);
+        getEngine(order.getStoreId()).placeOrder(dishNumMap, newOrderMessage(dishNumMap, order), timeoutMs);
+    }
+
+    private OrderMessage newOrderMessage(Map<Integer, Integer> dishNumMap, Order order) {
+        OrderMessage om = new OrderMessage(dishNumMap, order);
+        om.setStrategy(PlaceOrderStrategyContent.SERIALIZE);
+        return om;
     }
 
+    /**
+     * 订单消费失败或被取消时归还库存，店铺的引擎尚未启动时无需处理，启动时会从数据库加载
+     *
+     * @param storeId    店铺ID
+     * @param dishNumMap 菜品ID与要归还的数目
+     */
     @Override
-    public int isComplete(String orderId) {
-        return 1;
+    public void rollBackStock(int storeId, Map<Integer, Integer> dishNumMap) {
+        StoreInventoryEngine engine = engines.get(storeId);
+        if (engine != null) {
+            engine.restock(dishNumMap);
+        }
+    }
+
+    private StoreInventoryEngine getEngine(int storeId) {
+        return engines.computeIfAbsent(storeId, sid -> {
+            Map<Integer, Integer> dishStockMap = queryAvailableStock(sid);
+            StoreInventoryEngine engine = new StoreInventoryEngine(sid, dishStockMap, ringBufferSize, batchSize, rabbit, redisManager);
+            engine.start();
+            log.info("店铺 {} 的库存引擎已启动，共 {} 个菜品", sid, dishStockMap.size());
+            return engine;
+        });
     }
 }
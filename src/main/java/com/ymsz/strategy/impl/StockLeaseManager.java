@@ -0,0 +1,290 @@
+package com.ymsz.strategy.impl;
+
+import com.ymsz.config.RedisCacheManager;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>热点菜品的本地库存租约</p>
+ * <p>对于下单频率超过阈值的（店铺，菜品），本节点一次从 Redis 共享库存中租出一段库存，之后在本地用 CAS 计数器扣减，不再访问 Redis；租约用完后再次租用，租不到时由调用方退回共享库存的脚本路径</p>
+ * <p>租约以店铺库存缓存的版本号为准，{@link RedisCacheManager#flushRedisDishStockCache} 以及缓存缺失后的重新加载会使版本号自增，旧版本的租约直接作废，不会归还；长时间未使用的租约以及关闭应用时剩余的租约会归还给 Redis，之后从本地移除</p>
+ */
+@Slf4j
+@Component
+public class StockLeaseManager {
+    /**
+     * 一个（店铺，菜品）的租约
+     */
+    static final class Lease {
+        final int storeId;
+        final int dishId;
+        final AtomicInteger remaining = new AtomicInteger();
+        final LongAdder hits = new LongAdder();
+        volatile long epoch = -1;
+        volatile boolean hot;
+        volatile long lastUsed = System.currentTimeMillis();
+        /**
+         * 已从本地移除，不再补充
+         */
+        boolean evicted;
+
+        Lease(int storeId, int dishId) {
+            this.storeId = storeId;
+            this.dishId = dishId;
+        }
+
+        boolean tryTake(int n) {
+            for (int r = remaining.get(); r >= n; r = remaining.get()) {
+                if (remaining.compareAndSet(r, r - n)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 从一个租约中扣减的库存，以及扣减时租约的版本号
+     */
+    public static final class Taken {
+        final int num;
+        final long epoch;
+
+        Taken(int num, long epoch) {
+            this.num = num;
+            this.epoch = epoch;
+        }
+    }
+
+    @Autowired
+    private RedisCacheManager redisManager;
+
+    @Value("${strategy.lease.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每秒下单次数达到此值时视为热点
+     */
+    @Value("${strategy.lease.hot-threshold:20}")
+    private int hotThreshold;
+
+    /**
+     * 每次租用的库存数目
+     */
+    @Value("${strategy.lease.block-size:20}")
+    private int blockSize;
+
+    /**
+     * 租约空闲多久后归还，毫秒
+     */
+    @Value("${strategy.lease.idle-timeout-ms:5000}")
+    private long idleTimeoutMs;
+
+    private final Map<Long, Lease> leases = new ConcurrentHashMap<>();
+
+    private static long key(int storeId, int dishId) {
+        return ((long) storeId << 32) | (dishId & 0xffffffffL);
+    }
+
+    /**
+     * <p>尝试从本地租约中扣减整笔订单中热点菜品的库存</p>
+     * <p>成功扣减的菜品会从 dishNumMap 中移除并记录到返回值中，剩余的菜品需要调用方走共享库存路径；如果共享路径失败，调用方需要调用 {@link #restore(int, Map)} 归还</p>
+     *
+     * @param storeId    店铺ID
+     * @param dishNumMap 菜品ID与要扣减的数目，会被修改
+     * @return 从本地租约中扣减的部分，key -> 菜品ID
+     */
+    public Map<Integer, Taken> tryDeduct(int storeId, Map<Integer, Integer> dishNumMap) {
+        if (!enabled || dishNumMap.isEmpty()) {
+            return null;
+        }
+        Map<Integer, Taken> taken = null;
+        for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
+            Lease lease = leases.computeIfAbsent(key(storeId, it.getKey()), k -> new Lease(storeId, it.getKey()));
+            lease.hits.increment();
+            if (!lease.hot) {
+                continue;
+            }
+            lease.lastUsed = System.currentTimeMillis();
+            int n = it.getValue();
+            // 先读版本号再扣减，期间租约被作废时记下的是旧版本号，归还时会被丢弃，只会少卖不会超卖
+            long epoch = lease.epoch;
+            boolean ok = lease.tryTake(n);
+            if (!ok && refill(lease, n)) {
+                epoch = lease.epoch;
+                ok = lease.tryTake(n);
+            }
+            if (ok) {
+                if (taken == null) {
+                    taken = new HashMap<>(dishNumMap.size() * 2);
+                }
+                taken.put(it.getKey(), new Taken(n, epoch));
+            }
+        }
+        if (taken != null) {
+            dishNumMap.keySet().removeAll(taken.keySet());
+        }
+        return taken;
+    }
+
+    /**
+     * <p>归还 {@link #tryDeduct} 扣减的库存</p>
+     * <p>租约版本号未变时放回本地租约；租约已作废或已移除时按扣减时的版本号归还给 Redis，版本号已变化的直接丢弃，新版本的库存已经以数据库为准重新加载</p>
+     */
+    public void restore(int storeId, Map<Integer, Taken> taken) {
+        if (taken == null) {
+            return;
+        }
+        for (Map.Entry<Integer, Taken> it : taken.entrySet()) {
+            int dishId = it.getKey();
+            Taken t = it.getValue();
+            if (t.epoch < 0) {
+                continue;
+            }
+            Lease lease = leases.get(key(storeId, dishId));
+            if (lease != null) {
+                synchronized (lease) {
+                    if (!lease.evicted && lease.epoch == t.epoch) {
+                        lease.remaining.addAndGet(t.num);
+                        continue;
+                    }
+                }
+            }
+            try {
+                redisManager.returnDishStock(storeId, dishId, t.num, t.epoch);
+            } catch (Exception e) {
+                log.warn("归还店铺 {} 菜品 {} 的租约库存失败", storeId, dishId, e);
+            }
+        }
+    }
+
+    /**
+     * 从 Redis 补充租约，同一时刻只有一个线程访问 Redis
+     *
+     * @return 是否补充到了库存
+     */
+    private boolean refill(Lease lease, int need) {
+        synchronized (lease) {
+            if (lease.remaining.get() >= need) {
+                return true;
+            }
+            if (lease.evicted) {
+                return false;
+            }
+            int want = Math.max(blockSize, need);
+            for (int i = 0; i < 2; i++) {
+                if (lease.epoch < 0) {
+                    lease.epoch = redisManager.getDishStockEpoch(lease.storeId);
+                }
+                int got = redisManager.leaseDishStock(lease.storeId, lease.dishId, want, lease.epoch);
+                if (got == RedisCacheManager.DISH_STOCK_EPOCH_CHANGED) {
+                    // 库存已重新加载，旧租约作废
+                    lease.remaining.set(0);
+                    lease.epoch = -1;
+                    continue;
+                }
+                if (got > 0) {
+                    lease.remaining.addAndGet(got);
+                    return true;
+                }
+                return false;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 将租约剩余的库存归还给 Redis
+     */
+    private void giveBack(Lease lease) {
+        synchronized (lease) {
+            int n = lease.remaining.getAndSet(0);
+            if (n > 0 && lease.epoch >= 0) {
+                redisManager.returnDishStock(lease.storeId, lease.dishId, n, lease.epoch);
+            }
+        }
+    }
+
+    /**
+     * 店铺库存缓存被强制刷新后调用，作废该店铺的全部租约
+     */
+    public void invalidate(int storeId) {
+        for (Lease lease : leases.values()) {
+            if (lease.storeId == storeId) {
+                synchronized (lease) {
+                    lease.remaining.set(0);
+                    lease.epoch = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * 每秒统计一次下单频率，标记热点，归还空闲的租约，移除长时间没有下单的（店铺，菜品），并作废版本号已变化的租约
+     */
+    @Scheduled(fixedDelay = 1000)
+    public void evaluate() {
+        if (!enabled) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Map<Integer, Long> epochs = new HashMap<>();
+        for (Map.Entry<Long, Lease> it : leases.entrySet()) {
+            Lease lease = it.getValue();
+            long hits = lease.hits.sumThenReset();
+            lease.hot = hits >= hotThreshold;
+            if (hits > 0) {
+                lease.lastUsed = now;
+            }
+            if (lease.remaining.get() == 0) {
+                if (now - lease.lastUsed >= idleTimeoutMs) {
+                    evict(it.getKey(), lease);
+                }
+                continue;
+            }
+            if (!lease.hot && now - lease.lastUsed >= idleTimeoutMs) {
+                giveBack(lease);
+                continue;
+            }
+            long epoch = epochs.computeIfAbsent(lease.storeId, redisManager::getDishStockEpoch);
+            if (epoch != lease.epoch) {
+                synchronized (lease) {
+                    if (epoch != lease.epoch) {
+                        lease.remaining.set(0);
+                        lease.epoch = -1;
+                    }
+                }
+            }
+        }
+    }
+
+    private void evict(long key, Lease lease) {
+        synchronized (lease) {
+            if (lease.remaining.get() == 0) {
+                lease.evicted = true;
+                leases.remove(key, lease);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        for (Lease lease : leases.values()) {
+            try {
+                giveBack(lease);
+            } catch (Exception e) {
+                log.warn("归还店铺 {} 菜品 {} 的库存租约失败", lease.storeId, lease.dishId, e);
+            }
+        }
+    }
+}
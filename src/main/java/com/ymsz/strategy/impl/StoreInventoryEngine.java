@@ -0,0 +1,265 @@
+package com.ymsz.strategy.impl;
+
+import com.ymsz.config.OrderRabbitMqConfig;
+import com.ymsz.config.RedisCacheManager;
+import com.ymsz.exception.OrderAddException;
+import com.ymsz.pojo.OrderMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>单个店铺的库存引擎，店铺的库存只由一个写线程持有，所有下单请求通过有界环形缓冲区交给写线程串行处理</p>
+ * <p>库存保存在基本类型数组中，写线程对整笔订单做检查与扣减，不需要任何锁；通过检查的订单按批次发送到消息队列，由消费者完成落库</p>
+ * <p>数据库中的乐观锁仍然是最终的保障，如果同一店铺被多个节点同时持有，可能出现超卖后由消费者回滚的情况，因此部署多个节点时应将同一店铺的请求路由到同一节点</p>
+ */
+@Slf4j
+public class StoreInventoryEngine implements Runnable {
+    private static final int NEW = 0, TAKEN = 1, CANCELLED = 2;
+
+    /**
+     * 一条指令，可能是下单，也可能是回补库存
+     */
+    private static final class Command {
+        final int[] slots;
+        final int[] nums;
+        /**
+         * 为 null 表示这是一条回补库存的指令
+         */
+        final OrderMessage message;
+        final AtomicInteger state = new AtomicInteger(NEW);
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        Command(int[] slots, int[] nums, OrderMessage message) {
+            this.slots = slots;
+            this.nums = nums;
+            this.message = message;
+        }
+    }
+
+    private final int storeId;
+    /**
+     * 有序的菜品 ID，与 stock 一一对应，构造后不再修改，因此调用线程可以并发地查找下标
+     */
+    private final int[] dishIds;
+    /**
+     * 库存，只允许写线程访问
+     */
+    private final int[] stock;
+    private final ArrayBlockingQueue<Command> ringBuffer;
+    private final int batchSize;
+    private final RabbitTemplate rabbit;
+    private final RedisCacheManager redisManager;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /**
+     * @param storeId      店铺ID
+     * @param dishStockMap 菜品ID与库存
+     * @param capacity     环形缓冲区大小
+     * @param batchSize    写线程每次最多处理的指令数目，同时也是发送消息的批次大小
+     * @param rabbit       发送订单消息
+     * @param redisManager 记录在途库存
+     */
+    public StoreInventoryEngine(int storeId, Map<Integer, Integer> dishStockMap, int capacity, int batchSize, RabbitTemplate rabbit, RedisCacheManager redisManager) {
+        this.storeId = storeId;
+        this.dishIds = new int[dishStockMap.size()];
+        this.stock = new int[dishStockMap.size()];
+        int i = 0;
+        for (Integer id : dishStockMap.keySet()) {
+            dishIds[i++] = id;
+        }
+        Arrays.sort(dishIds);
+        for (i = 0; i < dishIds.length; i++) {
+            stock[i] = dishStockMap.get(dishIds[i]);
+        }
+        this.ringBuffer = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.rabbit = rabbit;
+        this.redisManager = redisManager;
+        this.writer = new Thread(this, "inventory-engine-store-" + storeId);
+        this.writer.setDaemon(true);
+    }
+
+    public void start() {
+        writer.start();
+    }
+
+    /**
+     * 提交一笔订单，阻塞直到写线程检查、扣减并发送消息完毕
+     *
+     * @param dishNumMap 菜品ID与要扣减的数目
+     * @param om         检查通过后要发送的订单消息
+     * @param timeoutMs  等待的最长时间
+     * @throws OrderAddException 库存不足、菜品不存在或系统繁忙
+     */
+    public void placeOrder(Map<Integer, Integer> dishNumMap, OrderMessage om, long timeoutMs) throws OrderAddException {
+        int[] slots = new int[dishNumMap.size()];
+        int[] nums = new int[dishNumMap.size()];
+        int i = 0;
+        for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
+            slots[i] = Arrays.binarySearch(dishIds, it.getKey());
+            if (slots[i] < 0) {
+                throw new OrderAddException("菜品不存在或未在该店铺上架，菜品ID：" + it.getKey());
+            }
+            nums[i++] = it.getValue();
+        }
+        Command command = new Command(slots, nums, om);
+        try {
+            if (!running || !ringBuffer.offer(command, timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new OrderAddException("当前下单人数过多，请稍后再试");
+            }
+            try {
+                command.result.get(timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // 写线程还没有取走这条指令，取消它；否则指令正在处理，再等待一个超时时间
+                if (command.state.compareAndSet(NEW, CANCELLED)) {
+                    throw new OrderAddException("当前下单人数过多，请稍后再试");
+                }
+                try {
+                    command.result.get(timeoutMs, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException te) {
+                    // 写线程停滞或引擎已停止，不再无限等待；订单可能已经发出，以消费者的结果为准
+                    log.warn("店铺 {} 的库存引擎处理超时", storeId);
+                    throw new OrderAddException("下单超时，请稍后在订单列表中确认");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OrderAddException("下单被中断");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OrderAddException) {
+                throw (OrderAddException) e.getCause();
+            }
+            throw new OrderAddException("下单失败：" + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * 回补库存，例如订单消费失败或超时取消，不等待结果
+     *
+     * @param dishNumMap 菜品ID与要回补的数目，不存在的菜品将被忽略
+     */
+    public void restock(Map<Integer, Integer> dishNumMap) {
+        int[] slots = new int[dishNumMap.size()];
+        int[] nums = new int[dishNumMap.size()];
+        int n = 0;
+        for (Map.Entry<Integer, Integer> it : dishNumMap.entrySet()) {
+            int slot = Arrays.binarySearch(dishIds, it.getKey());
+            if (slot >= 0) {
+                slots[n] = slot;
+                nums[n++] = it.getValue();
+            }
+        }
+        if (!ringBuffer.offer(new Command(Arrays.copyOf(slots, n), Arrays.copyOf(nums, n), null))) {
+            log.warn("店铺 {} 的库存引擎已满，回补库存失败", storeId);
+        }
+    }
+
+    /**
+     * 停止写线程，尚未处理的订单将以失败告终
+     */
+    public void stop() {
+        running = false;
+        writer.interrupt();
+    }
+
+    @Override
+    public void run() {
+        List<Command> batch = new ArrayList<>(batchSize);
+        List<Command> accepted = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                batch.add(ringBuffer.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            ringBuffer.drainTo(batch, batchSize - 1);
+            for (Command command : batch) {
+                if (command.message == null) {
+                    apply(command, 1);
+                } else if (command.state.compareAndSet(NEW, TAKEN)) {
+                    if (isEnough(command)) {
+                        apply(command, -1);
+                        accepted.add(command);
+                    } else {
+                        command.result.completeExceptionally(new OrderAddException("库存不足"));
+                    }
+                }
+            }
+            publish(accepted);
+            batch.clear();
+            accepted.clear();
+        }
+        List<Command> rest = new ArrayList<>();
+        ringBuffer.drainTo(rest);
+        for (Command command : rest) {
+            command.result.completeExceptionally(new OrderAddException("店铺库存正在重新加载，请重试"));
+        }
+        log.info("店铺 {} 的库存引擎已停止", storeId);
+    }
+
+    private boolean isEnough(Command command) {
+        for (int i = 0; i < command.slots.length; i++) {
+            if (stock[command.slots[i]] < command.nums[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void apply(Command command, int sign) {
+        for (int i = 0; i < command.slots.length; i++) {
+            stock[command.slots[i]] += sign * command.nums[i];
+        }
+    }
+
+    /**
+     * 在同一个信道上批量发送通过检查的订单，发送失败则归还这一批的库存
+     */
+    private void publish(List<Command> accepted) {
+        if (accepted.isEmpty()) {
+            return;
+        }
+        Map<Integer, Integer> inflight = new HashMap<>();
+        for (Command command : accepted) {
+            for (int i = 0; i < command.slots.length; i++) {
+                inflight.merge(dishIds[command.slots[i]], command.nums[i], Integer::sum);
+            }
+        }
+        boolean counted = false;
+        try {
+            redisManager.addInflightStock(inflight, storeId, 1);
+            counted = true;
+            rabbit.invoke(ops -> {
+                for (Command command : accepted) {
+                    ops.convertAndSend(OrderRabbitMqConfig.ORDER_ADD_ROUTEING_KEY, command.message);
+                }
+                return null;
+            });
+            for (Command command : accepted) {
+                command.result.complete(null);
+            }
+        } catch (Exception e) {
+            log.error("店铺 {} 发送订单消息失败", storeId, e);
+            if (counted) {
+                redisManager.addInflightStock(inflight, storeId, -1);
+            }
+            for (Command command : accepted) {
+                apply(command, 1);
+                command.result.completeExceptionally(new OrderAddException("下单失败，请重试"));
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.ymsz.utils;
+
+import com.ymsz.config.RedisCacheManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>取餐码分配器，取餐码是店铺内每个营业日从 1 开始的序号</p>
+ * <p>每个节点通过 Redis INCRBY 一次租用一段序号，之后在本地分配，不需要每笔订单访问 Redis；不同节点租到的号段互不重叠，因此取餐码在店铺当天内唯一，但跨节点不保证严格按下单顺序，未用完的号段会被跳过</p>
+ * <p>营业日从每天 fetch-code.day-start-hour 点开始，新的营业日使用新的 key，序号随之重置</p>
+ */
+@Component
+public class FetchMealCodeAllocator {
+    /**
+     * 一个店铺当前租用的号段，[next, end] 可用
+     */
+    private static final class Block {
+        LocalDate day;
+        long next = 1;
+        long end = 0;
+    }
+
+    @Qualifier("myRedisTemplate")
+    @Autowired
+    private RedisTemplate redis;
+
+    @Value("${fetch-code.block-size:10}")
+    private int blockSize;
+
+    @Value("${fetch-code.day-start-hour:0}")
+    private int dayStartHour;
+
+    private final Map<Integer, Block> blocks = new ConcurrentHashMap<>();
+
+    /**
+     * 分配一个取餐码
+     *
+     * @param storeId 店铺ID
+     * @return 至少 4 位的数字，不足补 0
+     */
+    public String allocate(int storeId) {
+        Block block = blocks.computeIfAbsent(storeId, k -> new Block());
+        LocalDate today = LocalDateTime.now().minusHours(dayStartHour).toLocalDate();
+        synchronized (block) {
+            if (!today.equals(block.day)) {
+                block.day = today;
+                block.next = 1;
+                block.end = 0;
+            }
+            if (block.next > block.end) {
+                String key = RedisCacheManager.getFetchMealCodeKey(storeId, today.toString());
+                Long end = redis.opsForValue().increment(key, blockSize);
+                // 过期时间覆盖整个营业日即可
+                redis.expire(key, 2, TimeUnit.DAYS);
+                block.end = end;
+                block.next = end - blockSize + 1;
+            }
+            return String.format("%04d", block.next++);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.ymsz.utils;
+
+import java.util.Collection;
+
+/**
+ * <p>Redis bitmap 与 ID 集合之间的转换，在本地一次构造出整个 bitmap 后用一条 SET 写入，读取时一次 GET 取回整个 bitmap 后在本地解码，不再逐位 SETBIT、GETBIT</p>
+ * <p>Redis 中偏移量 0 对应第一个字节的最高位</p>
+ */
+public class RedisBitmap {
+    /**
+     * @param ids 要设置为 1 的偏移量，忽略负数
+     * @return bitmap 的原始字节，没有 ID 时为空数组
+     */
+    public static byte[] encode(Collection<Integer> ids) {
+        int max = -1;
+        for (Integer id : ids) {
+            if (id != null && id > max) {
+                max = id;
+            }
+        }
+        byte[] bytes = new byte[(max >> 3) + 1];
+        for (Integer id : ids) {
+            if (id != null && id >= 0) {
+                bytes[id >> 3] |= 0x80 >>> (id & 7);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 每次取出 8 个字节拼成一个 long，逐个取出其中为 1 的最高位
+     *
+     * @param bytes bitmap 的原始字节，可以为 null
+     * @return 为 1 的偏移量，从小到大排列
+     */
+    public static int[] decode(byte[] bytes) {
+        if (bytes == null) {
+            return new int[0];
+        }
+        int count = 0;
+        for (int i = 0; i < bytes.length; i += 8) {
+            count += Long.bitCount(getWord(bytes, i));
+        }
+        int[] ids = new int[count];
+        int k = 0;
+        for (int i = 0; i < bytes.length; i += 8) {
+            long word = getWord(bytes, i);
+            while (word != 0) {
+                int bit = Long.numberOfLeadingZeros(word);
+                ids[k++] = (i << 3) + bit;
+                word &= ~(Long.MIN_VALUE >>> bit);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @param bytes  bitmap 的原始字节，可以为 null
+     * @param offset 偏移量
+     * @return 位是否为 1，超出 bitmap 长度时为 0，与 GETBIT 一致
+     */
+    public static boolean get(byte[] bytes, int offset) {
+        if (bytes == null || offset < 0 || (offset >> 3) >= bytes.length) {
+            return false;
+        }
+        return (bytes[offset >> 3] & (0x80 >>> (offset & 7))) != 0;
+    }
+
+    private static long getWord(byte[] bytes, int from) {
+        long word = 0;
+        int n = Math.min(8, bytes.length - from);
+        for (int j = 0; j < n; j++) {
+            word |= (bytes[from + j] & 0xffL) << (56 - (j << 3));
+        }
+        return word;
+    }
+}
@@ -0,0 +1,73 @@
+package com.ymsz.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * <p>雪花算法 ID 生成器，生成按时间递增的 64 位 ID，用于订单号与支付单号</p>
+ * <p>从高到低依次为 1 位符号位、41 位毫秒时间戳（自 2022-01-01 起）、10 位节点号、12 位序列号，同一节点内严格递增，不同节点的节点号（id.node-id）必须不同</p>
+ * <p>时钟回拨不超过 id.max-backward-ms 时等待时钟追上，否则拒绝生成，防止产生重复 ID</p>
+ */
+@Component
+public class SnowflakeIdGenerator {
+    /**
+     * 2022-01-01 00:00:00 UTC+8
+     */
+    private static final long EPOCH = 1640966400000L;
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    public static final int MAX_NODE_ID = (1 << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long nodeId;
+    private final long maxBackwardMs;
+
+    private long lastTimestamp = -1;
+    private long sequence = 0;
+
+    public SnowflakeIdGenerator(@Value("${id.node-id:0}") int nodeId, @Value("${id.max-backward-ms:5}") long maxBackwardMs) {
+        if (nodeId < 0 || nodeId > MAX_NODE_ID) {
+            throw new IllegalArgumentException("节点号必须在 0 到 " + MAX_NODE_ID + " 之间：" + nodeId);
+        }
+        this.nodeId = nodeId;
+        this.maxBackwardMs = maxBackwardMs;
+    }
+
+    public synchronized long nextId() {
+        long now = System.currentTimeMillis();
+        if (now < lastTimestamp) {
+            long offset = lastTimestamp - now;
+            if (offset > maxBackwardMs) {
+                throw new IllegalStateException("时钟回拨 " + offset + " 毫秒，拒绝生成 ID");
+            }
+            now = waitUntil(lastTimestamp);
+        }
+        if (now == lastTimestamp) {
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // 当前毫秒的序列号用完，等待下一毫秒
+                now = waitUntil(lastTimestamp + 1);
+            }
+        } else {
+            sequence = 0;
+        }
+        lastTimestamp = now;
+        return ((now - EPOCH) << (NODE_BITS + SEQUENCE_BITS)) | (nodeId << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * @return 十进制字符串形式的 ID
+     */
+    public String nextIdString() {
+        return Long.toString(nextId());
+    }
+
+    private long waitUntil(long timestamp) {
+        long now = System.currentTimeMillis();
+        while (now < timestamp) {
+            Thread.yield();
+            now = System.currentTimeMillis();
+        }
+        return now;
+    }
+}
@@ -0,0 +1,160 @@
+package com.ymsz.utils;
+
+import com.ymsz.exception.ReadWriterLockException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>固定大小的分段锁，以（店铺ID，菜品ID）定位到某一段，不同的菜品可能共享同一把锁，但锁的数目不会随菜品增长</p>
+ * <p>一次性获取多把锁时按段下标升序获取并去重，因此两笔包含相同菜品的订单不会互相死锁；获取带有超时，超时后释放已获取的锁</p>
+ */
+@Component
+public class StripedLockManager {
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contentions = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+
+    /**
+     * @param size 锁的段数，会向上取整为 2 的幂
+     */
+    public StripedLockManager(@Value("${strategy.pessimistic.lock-stripes:1024}") int size) {
+        int n = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.stripes = new ReentrantLock[n];
+        this.mask = n - 1;
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * 按升序获取店铺下一组菜品对应的锁
+     *
+     * @param storeId 店铺ID
+     * @param dishIds 菜品ID
+     * @param timeout 获取全部锁的最长等待时间
+     * @param unit    时间单位
+     * @return 已获取的段下标，需要传递给 {@link #unlockAll(int[])} 释放
+     * @throws ReadWriterLockException 超时或被中断，此时不持有任何锁
+     */
+    public int[] lockAll(int storeId, Collection<Integer> dishIds, long timeout, TimeUnit unit) throws ReadWriterLockException {
+        int[] idx = new int[dishIds.size()];
+        int n = 0;
+        for (Integer dishId : dishIds) {
+            idx[n++] = stripeOf(storeId, dishId);
+        }
+        Arrays.sort(idx);
+        // 去重，同一段的锁只获取一次
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (k == 0 || idx[k - 1] != idx[i]) {
+                idx[k++] = idx[i];
+            }
+        }
+        idx = Arrays.copyOf(idx, k);
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (int i = 0; i < idx.length; i++) {
+            ReentrantLock lock = stripes[idx[i]];
+            if (lock.tryLock()) {
+                acquisitions.increment();
+                continue;
+            }
+            contentions.increment();
+            long start = System.nanoTime();
+            boolean locked = false;
+            try {
+                locked = lock.tryLock(deadline - start, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waitNanos.add(System.nanoTime() - start);
+            }
+            if (!locked) {
+                timeouts.increment();
+                unlockAll(Arrays.copyOf(idx, i));
+                throw new ReadWriterLockException("获取库存锁超时，请稍后重试");
+            }
+            acquisitions.increment();
+        }
+        return idx;
+    }
+
+    /**
+     * 释放 {@link #lockAll} 获取的锁
+     */
+    public void unlockAll(int[] idx) {
+        for (int i = idx.length - 1; i >= 0; i--) {
+            stripes[idx[i]].unlock();
+        }
+    }
+
+    private int stripeOf(int storeId, int dishId) {
+        long h = ((long) dishId << 32) | (storeId & 0xffffffffL);
+        // murmur3 的 fmix64，打散相邻的 ID
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (int) h & mask;
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * 成功获取的锁次数
+     */
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * 需要等待才能获取锁的次数
+     */
+    public long getContentions() {
+        return contentions.sum();
+    }
+
+    /**
+     * 等待超时的次数
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * 累计等待时间，纳秒
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * 自启动以来的锁统计，平均等待时间按需要等待的次数计算
+     */
+    public Map<String, Object> getStats() {
+        long contended = getContentions();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("stripes", getStripeCount());
+        stats.put("acquisitions", getAcquisitions());
+        stats.put("contentions", contended);
+        stats.put("timeouts", getTimeouts());
+        stats.put("waitMs", getWaitNanos() / 1000000);
+        stats.put("avgWaitMs", contended == 0 ? 0 : getWaitNanos() / 1000000.0 / contended);
+        return stats;
+    }
+}
@@ -41,6 +41,20 @@ public class VerifyUtils {
         return true;
     }
 
+    /**
+     * 是否为有限的小数，可以带负号，例如经纬度
+     */
+    public static boolean isDecimal(String input) {
+        if (isNullOrEmpty(input)) {
+            return false;
+        }
+        try {
+            return Double.isFinite(Double.parseDouble(input));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     public static boolean allIsNumber(String... inputs) {
         for (String input : inputs) {
             if (!isNumber(input)) {
@@ -0,0 +1,84 @@
+package com.ymsz.config;
+
+import com.ymsz.mapper.UserMapper.MarkedTable;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MarkedChangeLogConsumerTest {
+
+    private static ByteRecord record(String id, String... kv) {
+        Map<byte[], byte[]> fields = new LinkedHashMap<>();
+        for (int i = 0; i < kv.length; i += 2) {
+            fields.put(kv[i].getBytes(StandardCharsets.UTF_8), kv[i + 1].getBytes(StandardCharsets.UTF_8));
+        }
+        return StreamRecords.rawBytes(fields).withId(RecordId.of(id));
+    }
+
+    private static MarkedChangeLogConsumer.Change change(MarkedTable table, String userId, int id, boolean value) {
+        return new MarkedChangeLogConsumer.Change(table, userId, id, value);
+    }
+
+    @Test
+    void parsesTheFieldsWrittenBySetUserMarked() {
+        MarkedChangeLogConsumer.Change change = MarkedChangeLogConsumer.parse(
+                record("1-0", "t", "COLLECTED_STORE", "u", "user-1", "i", "42", "v", "1"));
+        assertEquals(MarkedTable.COLLECTED_STORE, change.table);
+        assertEquals("user-1", change.userId);
+        assertEquals(42, change.id);
+        assertTrue(change.value);
+        assertFalse(MarkedChangeLogConsumer.parse(record("1-1", "t", "FAVORITE_DISH", "u", "u", "i", "1", "v", "0")).value);
+    }
+
+    @Test
+    void malformedRecordsAreSkipped() {
+        assertNull(MarkedChangeLogConsumer.parse(record("2-0", "t", "NO_SUCH_TABLE", "u", "u", "i", "1", "v", "1")));
+        assertNull(MarkedChangeLogConsumer.parse(record("2-1", "t", "FAVORITE_DISH", "u", "u", "i", "x", "v", "1")));
+        assertNull(MarkedChangeLogConsumer.parse(record("2-2", "u", "u", "i", "1")));
+    }
+
+    @Test
+    void laterChangesOverrideEarlierOnes() {
+        Map<MarkedTable, Map<String, Map<Integer, Boolean>>> changes = MarkedChangeLogConsumer.coalesce(Arrays.asList(
+                change(MarkedTable.FAVORITE_DISH, "u1", 1, true),
+                change(MarkedTable.FAVORITE_DISH, "u1", 1, false),
+                change(MarkedTable.FAVORITE_DISH, "u1", 2, true),
+                change(MarkedTable.FAVORITE_DISH, "u1", 1, true),
+                change(MarkedTable.FAVORITE_DISH, "u2", 2, false)));
+        assertEquals(1, changes.size());
+        Map<String, Map<Integer, Boolean>> byUser = changes.get(MarkedTable.FAVORITE_DISH);
+        assertEquals(2, byUser.size());
+        assertEquals(Boolean.TRUE, byUser.get("u1").get(1));
+        assertEquals(Boolean.TRUE, byUser.get("u1").get(2));
+        assertEquals(Collections.singletonMap(2, false), byUser.get("u2"));
+    }
+
+    @Test
+    void tablesAreKeptApart() {
+        Map<MarkedTable, Map<String, Map<Integer, Boolean>>> changes = MarkedChangeLogConsumer.coalesce(Arrays.asList(
+                change(MarkedTable.COLLECTED_DISH, "u", 7, true),
+                change(MarkedTable.WILL_BUY_DISH, "u", 7, false),
+                change(MarkedTable.COLLECTED_STORE, "u", 7, true)));
+        assertEquals(3, changes.size());
+        assertEquals(Boolean.TRUE, changes.get(MarkedTable.COLLECTED_DISH).get("u").get(7));
+        assertEquals(Boolean.FALSE, changes.get(MarkedTable.WILL_BUY_DISH).get("u").get(7));
+        assertEquals(Boolean.TRUE, changes.get(MarkedTable.COLLECTED_STORE).get("u").get(7));
+    }
+
+    @Test
+    void nothingToCoalesce() {
+        assertTrue(MarkedChangeLogConsumer.coalesce(Collections.emptyList()).isEmpty());
+    }
+}
@@ -0,0 +1,82 @@
+package com.ymsz.config;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MarkedSyncJobTest {
+
+    private static List<Integer> ids(List<Map.Entry<String, Integer>> entries) {
+        return entries.stream().map(Map.Entry::getValue).collect(Collectors.toList());
+    }
+
+    @Test
+    void addsMissingAndRemovesStale() {
+        List<Map.Entry<String, Integer>> adds = new ArrayList<>();
+        List<Map.Entry<String, Integer>> removes = new ArrayList<>();
+        MarkedSyncJob.diff("u1", new int[]{1, 3, 5, 9}, new TreeSet<>(Arrays.asList(2, 3, 9, 10)), adds, removes);
+        assertEquals(Arrays.asList(1, 5), ids(adds));
+        assertEquals(Arrays.asList(2, 10), ids(removes));
+        for (Map.Entry<String, Integer> it : adds) {
+            assertEquals("u1", it.getKey());
+        }
+    }
+
+    @Test
+    void emptySides() {
+        List<Map.Entry<String, Integer>> adds = new ArrayList<>();
+        List<Map.Entry<String, Integer>> removes = new ArrayList<>();
+        // 数据库中没有记录
+        MarkedSyncJob.diff("u", new int[]{4, 7}, null, adds, removes);
+        assertEquals(Arrays.asList(4, 7), ids(adds));
+        assertTrue(removes.isEmpty());
+
+        adds.clear();
+        // bitmap 为空，数据库中的记录全部删除
+        MarkedSyncJob.diff("u", new int[0], new TreeSet<>(Arrays.asList(4, 7)), adds, removes);
+        assertTrue(adds.isEmpty());
+        assertEquals(Arrays.asList(4, 7), ids(removes));
+
+        removes.clear();
+        MarkedSyncJob.diff("u", new int[]{1, 2}, new TreeSet<>(Arrays.asList(1, 2)), adds, removes);
+        assertTrue(adds.isEmpty());
+        assertTrue(removes.isEmpty());
+    }
+
+    @Test
+    void matchesSetDifference() {
+        Random random = new Random(13);
+        for (int round = 0; round < 500; round++) {
+            TreeSet<Integer> cached = new TreeSet<>();
+            TreeSet<Integer> stored = new TreeSet<>();
+            int bound = 1 + random.nextInt(200);
+            for (int i = random.nextInt(60); i > 0; i--) {
+                cached.add(random.nextInt(bound));
+            }
+            for (int i = random.nextInt(60); i > 0; i--) {
+                stored.add(random.nextInt(bound));
+            }
+            List<Map.Entry<String, Integer>> adds = new ArrayList<>();
+            List<Map.Entry<String, Integer>> removes = new ArrayList<>();
+            MarkedSyncJob.diff("u", cached.stream().mapToInt(Integer::intValue).toArray(), stored, adds, removes);
+
+            Set<Integer> expectedAdds = new HashSet<>(cached);
+            expectedAdds.removeAll(stored);
+            Set<Integer> expectedRemoves = new HashSet<>(stored);
+            expectedRemoves.removeAll(cached);
+            assertEquals(new ArrayList<>(new TreeSet<>(expectedAdds)), ids(adds));
+            assertEquals(new ArrayList<>(new TreeSet<>(expectedRemoves)), ids(removes));
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.ymsz.config;
+
+import com.ymsz.pojo.Store;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StoreGeoIndexTest {
+    private static final double EARTH_RADIUS_METERS = 6371008.8;
+
+    private static Store store(int id, double longitude, double latitude) {
+        Store store = new Store();
+        store.setId(id);
+        store.setLongitude(String.valueOf(longitude));
+        store.setLatitude(String.valueOf(latitude));
+        return store;
+    }
+
+    private static double haversine(double lng1, double lat1, double lng2, double lat2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private static List<Store> bruteForce(List<Store> stores, double lng, double lat, int k, Predicate<Store> filter) {
+        return stores.stream()
+                .filter(filter)
+                .sorted(Comparator.comparingDouble((Store s) -> haversine(lng, lat,
+                        Double.parseDouble(s.getLongitude()), Double.parseDouble(s.getLatitude()))))
+                .limit(k)
+                .collect(Collectors.toList());
+    }
+
+    private static void assertSameNeighbors(List<Store> expected, List<StoreGeoIndex.Neighbor> actual, double lng, double lat) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Store e = expected.get(i);
+            double expectedDistance = haversine(lng, lat, Double.parseDouble(e.getLongitude()), Double.parseDouble(e.getLatitude()));
+            // 距离相同的店铺顺序可以不同，比较距离即可
+            assertEquals(expectedDistance, actual.get(i).getDistance(), 1e-3);
+        }
+    }
+
+    @Test
+    void matchesBruteForce() {
+        Random random = new Random(7);
+        List<Store> stores = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            // 集中在一座城市附近，另有少量分布在全球
+            if (i % 10 == 0) {
+                stores.add(store(i, random.nextDouble() * 360 - 180, random.nextDouble() * 180 - 90));
+            } else {
+                stores.add(store(i, 113.2 + random.nextDouble() * 0.5, 23.0 + random.nextDouble() * 0.3));
+            }
+        }
+        StoreGeoIndex index = new StoreGeoIndex();
+        assertEquals(stores.size(), index.load(stores));
+        for (int q = 0; q < 200; q++) {
+            double lng = q % 4 == 0 ? random.nextDouble() * 360 - 180 : 113.2 + random.nextDouble() * 0.5;
+            double lat = q % 4 == 0 ? random.nextDouble() * 180 - 90 : 23.0 + random.nextDouble() * 0.3;
+            int k = 1 + random.nextInt(50);
+            assertSameNeighbors(bruteForce(stores, lng, lat, k, s -> true), index.nearest(lng, lat, k, s -> true), lng, lat);
+        }
+    }
+
+    @Test
+    void filteredStoresDoNotTakeSlots() {
+        Random random = new Random(11);
+        List<Store> stores = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            stores.add(store(i, 116.3 + random.nextDouble() * 0.2, 39.9 + random.nextDouble() * 0.2));
+        }
+        StoreGeoIndex index = new StoreGeoIndex();
+        index.load(stores);
+        Predicate<Store> odd = s -> s.getId() % 2 == 1;
+        List<StoreGeoIndex.Neighbor> ans = index.nearest(116.4, 40.0, 20, odd);
+        assertSameNeighbors(bruteForce(stores, 116.4, 40.0, 20, odd), ans, 116.4, 40.0);
+        for (StoreGeoIndex.Neighbor neighbor : ans) {
+            assertTrue(odd.test(neighbor.getStore()));
+        }
+    }
+
+    @Test
+    void crossesTheAntimeridian() {
+        List<Store> stores = new ArrayList<>();
+        stores.add(store(1, 179.99, 0));
+        stores.add(store(2, -179.99, 0));
+        stores.add(store(3, 170, 0));
+        StoreGeoIndex index = new StoreGeoIndex();
+        index.load(stores);
+        List<StoreGeoIndex.Neighbor> ans = index.nearest(-179.999, 0, 2, s -> true);
+        assertEquals(2, ans.get(0).getStore().getId());
+        assertEquals(1, ans.get(1).getStore().getId());
+    }
+
+    @Test
+    void kLargerThanStoreCountAndInvalidCoordinates() {
+        List<Store> stores = new ArrayList<>();
+        stores.add(store(1, 120, 30));
+        stores.add(store(2, 121, 31));
+        Store missing = new Store();
+        missing.setId(3);
+        stores.add(missing);
+        stores.add(store(4, 200, 30));
+        StoreGeoIndex index = new StoreGeoIndex();
+        assertEquals(2, index.load(stores));
+        assertEquals(2, index.nearest(120, 30, Integer.MAX_VALUE, s -> true).size());
+        assertEquals(0, index.nearest(120, 30, 0, s -> true).size());
+    }
+}
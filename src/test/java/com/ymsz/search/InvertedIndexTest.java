@@ -0,0 +1,118 @@
+package com.ymsz.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InvertedIndexTest {
+    private static final String[] NAMES = {"宫保鸡丁", "鱼香肉丝", "麻婆豆腐", "红烧牛肉面", "牛肉炒饭", "鸡丁炒饭", "酸辣土豆丝", "可乐鸡翅"};
+    private static final String[] TAGS = {"川菜 下饭", "家常", "辣", "面食", "主食 快餐", "招牌"};
+    private static final String[] INGREDIENTS = {"鸡肉 花生", "猪肉 木耳", "豆腐 牛肉", "牛肉 面条", "米饭 鸡蛋", "土豆 辣椒"};
+    private static final String[] QUERIES = {"鸡丁", "牛肉", "炒饭", "豆腐", "辣", "川菜", "花生", "丝", "面"};
+
+    private static SearchDocument doc(int id, String name, String tags, String ingredients, long sale, long likes) {
+        return new SearchDocument(id, name, tags, ingredients, sale, likes);
+    }
+
+    private static SearchDocument random(Random random, int id) {
+        return doc(id, NAMES[random.nextInt(NAMES.length)], TAGS[random.nextInt(TAGS.length)],
+                INGREDIENTS[random.nextInt(INGREDIENTS.length)], random.nextInt(1000), random.nextInt(100));
+    }
+
+    private static List<String> search(InvertedIndex index, String query) {
+        // 得分相同的结果顺序不确定，按得分与ID比较
+        return index.search(Tokenizer.queryTerms(query), 1000, d -> true).stream()
+                .sorted(Comparator.comparingDouble(SearchHit::getScore).reversed().thenComparingInt(SearchHit::getId))
+                .map(h -> h.getId() + ":" + Math.round(h.getScore() * 1e9))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void namesOutrankTagsAndIngredients() {
+        InvertedIndex index = InvertedIndex.build(Arrays.asList(
+                doc(1, "牛肉炒饭", "", "", 0, 0),
+                doc(2, "番茄炒蛋", "牛肉", "", 0, 0),
+                doc(3, "番茄炒蛋", "", "牛肉", 0, 0)));
+        List<SearchHit> hits = index.search(Tokenizer.queryTerms("牛肉"), 10, d -> true);
+        assertEquals(Arrays.asList(1, 2, 3), hits.stream().map(SearchHit::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void popularityBreaksTies() {
+        InvertedIndex index = InvertedIndex.build(Arrays.asList(
+                doc(1, "牛肉面", "", "", 10, 0),
+                doc(2, "牛肉面", "", "", 1000, 50)));
+        List<SearchHit> hits = index.search(Tokenizer.queryTerms("牛肉面"), 10, d -> true);
+        assertEquals(2, hits.get(0).getId());
+
+        Map<Integer, long[]> popularity = new HashMap<>();
+        popularity.put(1, new long[]{100000, 1000});
+        hits = index.withPopularity(popularity).search(Tokenizer.queryTerms("牛肉面"), 10, d -> true);
+        assertEquals(1, hits.get(0).getId());
+    }
+
+    @Test
+    void filterAndLimit() {
+        List<SearchDocument> docs = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            docs.add(doc(i, "牛肉炒饭", "", "", i, 0));
+        }
+        InvertedIndex index = InvertedIndex.build(docs);
+        List<SearchHit> hits = index.search(Tokenizer.queryTerms("炒饭"), 5, d -> d.getId() % 2 == 0);
+        assertEquals(Arrays.asList(20, 18, 16, 14, 12), hits.stream().map(SearchHit::getId).collect(Collectors.toList()));
+        assertTrue(index.search(Collections.emptyList(), 5, d -> true).isEmpty());
+        assertTrue(index.search(Tokenizer.queryTerms("披萨"), 5, d -> true).isEmpty());
+    }
+
+    @Test
+    void incrementalUpdatesMatchAFreshBuild() {
+        Random random = new Random(5);
+        Map<Integer, SearchDocument> current = new HashMap<>();
+        for (int i = 0; i < 300; i++) {
+            current.put(i, random(random, i));
+        }
+        InvertedIndex index = InvertedIndex.build(current.values());
+        for (int round = 0; round < 50; round++) {
+            List<SearchDocument> upserts = new ArrayList<>();
+            List<Integer> removed = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                int id = random.nextInt(400);
+                if (random.nextInt(3) == 0) {
+                    removed.add(id);
+                    current.remove(id);
+                } else {
+                    SearchDocument doc = random(random, id);
+                    upserts.add(doc);
+                    current.put(id, doc);
+                }
+            }
+            // 同一个ID在同一次更新中既被修改又被删除时，以修改为准
+            for (SearchDocument doc : upserts) {
+                current.put(doc.getId(), doc);
+            }
+            InvertedIndex previous = index;
+            List<String> before = search(previous, QUERIES[0]);
+            index = index.update(upserts, removed);
+            // 旧索引不受影响
+            assertEquals(before, search(previous, QUERIES[0]));
+
+            InvertedIndex fresh = InvertedIndex.build(current.values());
+            assertEquals(fresh.documentCount(), index.documentCount());
+            assertEquals(fresh.termCount(), index.termCount());
+            for (String query : QUERIES) {
+                assertEquals(search(fresh, query), search(index, query), "查询 " + query);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.ymsz.search;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class PinyinInitialsTest {
+
+    @Test
+    void commonCharacters() {
+        assertEquals("gbjd", PinyinInitials.of("宫保鸡丁"));
+        assertEquals("mpdf", PinyinInitials.of("麻婆豆腐"));
+        assertEquals("zqxm", PinyinInitials.of("重庆小面"));
+        assertEquals('a', PinyinInitials.of('啊'));
+        assertEquals('z', PinyinInitials.of('座'));
+    }
+
+    @Test
+    void lettersAndDigitsAreKeptInLowerCase() {
+        assertEquals("kfctc", PinyinInitials.of("KFC 套餐"));
+        assertEquals("2rtc", PinyinInitials.of("2人套餐"));
+    }
+
+    @Test
+    void textWithoutRecognizedCharacters() {
+        assertNull(PinyinInitials.of(null));
+        assertNull(PinyinInitials.of("coke"));
+        assertNull(PinyinInitials.of("，。"));
+        // GB2312 二级汉字没有首字母
+        assertEquals(0, PinyinInitials.of('鑫'));
+        assertEquals(0, PinyinInitials.of('a'));
+    }
+}
@@ -0,0 +1,72 @@
+package com.ymsz.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PostingListTest {
+
+    private static void assertRoundTrip(int[] ids, byte[] fields) {
+        PostingList list = PostingList.of(ids, fields, ids.length);
+        assertEquals(ids.length, list.size());
+        int[] decodedIds = new int[ids.length];
+        byte[] decodedFields = new byte[ids.length];
+        list.decode(decodedIds, decodedFields);
+        assertArrayEquals(ids, decodedIds);
+        assertArrayEquals(fields, decodedFields);
+    }
+
+    @Test
+    void emptyListIsShared() {
+        assertSame(PostingList.EMPTY, PostingList.of(new int[0], new byte[0], 0));
+        assertEquals(0, PostingList.EMPTY.bytes());
+    }
+
+    @Test
+    void smallGapsTakeTwoBytes() {
+        int[] ids = {1, 2, 3, 100, 227};
+        byte[] fields = {1, 2, 4, 3, 7};
+        assertRoundTrip(ids, fields);
+        assertEquals(ids.length * 2, PostingList.of(ids, fields, ids.length).bytes());
+    }
+
+    @Test
+    void largeGapsAndVarintBoundaries() {
+        assertRoundTrip(new int[]{0, 127, 128, 16383, 16384, 2097151, 2097152, Integer.MAX_VALUE},
+                new byte[]{1, 2, 4, 1, 2, 4, 1, 2});
+    }
+
+    @Test
+    void onlyTheFirstNEntriesAreEncoded() {
+        int[] ids = {5, 9, 42, 0};
+        byte[] fields = {1, 1, 2, 0};
+        PostingList list = PostingList.of(ids, fields, 3);
+        assertEquals(3, list.size());
+        int[] decodedIds = new int[3];
+        byte[] decodedFields = new byte[3];
+        list.decode(decodedIds, decodedFields);
+        assertArrayEquals(new int[]{5, 9, 42}, decodedIds);
+        assertArrayEquals(new byte[]{1, 1, 2}, decodedFields);
+    }
+
+    @Test
+    void randomRoundTrips() {
+        Random random = new Random(3);
+        for (int round = 0; round < 100; round++) {
+            int n = 1 + random.nextInt(1000);
+            int[] ids = new int[n];
+            byte[] fields = new byte[n];
+            int id = random.nextInt(10);
+            for (int i = 0; i < n; i++) {
+                ids[i] = id;
+                fields[i] = (byte) (1 + random.nextInt(7));
+                id += 1 + (random.nextInt(10) == 0 ? random.nextInt(1 << 20) : random.nextInt(50));
+            }
+            assertRoundTrip(ids, fields);
+        }
+    }
+}
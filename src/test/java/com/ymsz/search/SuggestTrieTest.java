@@ -0,0 +1,86 @@
+package com.ymsz.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SuggestTrieTest {
+
+    private static List<String> texts(List<Suggestion> suggestions) {
+        return suggestions.stream().map(Suggestion::getText).collect(Collectors.toList());
+    }
+
+    private static SuggestTrie.Builder add(SuggestTrie.Builder builder, String text, String type, double weight) {
+        return builder.add(new Suggestion(text, type, 0, weight), text, PinyinInitials.of(text));
+    }
+
+    @Test
+    void prefixReturnsHeaviestFirst() {
+        SuggestTrie.Builder builder = new SuggestTrie.Builder(10);
+        add(builder, "宫保鸡丁", Suggestion.DISH, 5);
+        add(builder, "宫保虾球", Suggestion.DISH, 9);
+        add(builder, "鱼香肉丝", Suggestion.DISH, 100);
+        SuggestTrie trie = builder.build();
+        assertEquals(Arrays.asList("宫保虾球", "宫保鸡丁"), texts(trie.suggest("宫保", 10, s -> true)));
+        assertEquals(Arrays.asList("宫保鸡丁"), texts(trie.suggest("宫保鸡", 10, s -> true)));
+        assertTrue(trie.suggest("麻婆", 10, s -> true).isEmpty());
+        assertTrue(trie.suggest(" ", 10, s -> true).isEmpty());
+    }
+
+    @Test
+    void pinyinInitialsCaseAndWhitespace() {
+        SuggestTrie.Builder builder = new SuggestTrie.Builder(10);
+        add(builder, "宫保鸡丁", Suggestion.DISH, 5);
+        add(builder, "KFC 全家桶", Suggestion.STORE, 1);
+        SuggestTrie trie = builder.build();
+        assertEquals(Arrays.asList("宫保鸡丁"), texts(trie.suggest("GB", 10, s -> true)));
+        assertEquals(Arrays.asList("KFC 全家桶"), texts(trie.suggest("kfc全", 10, s -> true)));
+        assertEquals(Arrays.asList("KFC 全家桶"), texts(trie.suggest("K F", 10, s -> true)));
+    }
+
+    @Test
+    void sameSuggestionReachedByTwoKeysAppearsOnce() {
+        SuggestTrie.Builder builder = new SuggestTrie.Builder(10);
+        // 名字与拼音首字母都以 a 开头
+        builder.add(new Suggestion("a啊", Suggestion.DISH, 1, 1), "a啊", "aa");
+        SuggestTrie trie = builder.build();
+        assertEquals(1, trie.suggest("a", 10, s -> true).size());
+    }
+
+    @Test
+    void limitAndFilter() {
+        SuggestTrie.Builder builder = new SuggestTrie.Builder(5);
+        for (int i = 0; i < 20; i++) {
+            builder.add(new Suggestion("牛肉" + i, Suggestion.DISH, i, i), "牛肉" + i);
+        }
+        SuggestTrie trie = builder.build();
+        assertEquals(Arrays.asList("牛肉19", "牛肉18", "牛肉17"), texts(trie.suggest("牛", 3, s -> true)));
+        assertEquals(Arrays.asList("牛肉19", "牛肉17", "牛肉15"), texts(trie.suggest("牛", 5, s -> s.getId() % 2 == 1)));
+    }
+
+    @Test
+    void eachTypeKeepsItsOwnTopK() {
+        SuggestTrie.Builder builder = new SuggestTrie.Builder(2);
+        for (int i = 0; i < 10; i++) {
+            add(builder, "川菜" + i, Suggestion.DISH, 1000 + i);
+        }
+        add(builder, "川菜馆", Suggestion.STORE, 3);
+        add(builder, "川菜", Suggestion.TAG, 50);
+        SuggestTrie trie = builder.build();
+        // 菜品权重都更高，但只占 k 个名额，店铺与标签仍然可以被提示
+        assertEquals(Arrays.asList("川菜9", "川菜8", "川菜", "川菜馆"), texts(trie.suggest("川", 10, s -> true)));
+        // 菜品全部被过滤时，其他类型的提示不受影响
+        assertEquals(Arrays.asList("川菜", "川菜馆"),
+                texts(trie.suggest("川", 10, s -> !Suggestion.DISH.equals(s.getType()))));
+    }
+
+    @Test
+    void emptyTrie() {
+        assertTrue(SuggestTrie.EMPTY.suggest("a", 10, s -> true).isEmpty());
+    }
+}
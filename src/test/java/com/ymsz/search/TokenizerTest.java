@@ -0,0 +1,52 @@
+package com.ymsz.search;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenizerTest {
+
+    @Test
+    void indexTermsContainUnigramsAndBigrams() {
+        assertEquals(Arrays.asList("宫", "宫保", "保", "保鸡", "鸡", "鸡丁", "丁"),
+                new ArrayList<>(Tokenizer.indexTerms("宫保鸡丁")));
+    }
+
+    @Test
+    void queryTermsUseBigramsOnly() {
+        assertEquals(Arrays.asList("宫保", "保鸡", "鸡丁"), Tokenizer.queryTerms("宫保鸡丁"));
+        // 单独一个汉字时只能用单字
+        assertEquals(Collections.singletonList("鸡"), Tokenizer.queryTerms("鸡"));
+    }
+
+    @Test
+    void latinRunsAreLowercasedWholeWords() {
+        assertEquals(Arrays.asList("kfc", "套餐"), Tokenizer.queryTerms("KFC套餐"));
+        assertEquals(Arrays.asList("coca", "cola", "330ml"), Tokenizer.queryTerms("Coca-Cola 330ml"));
+    }
+
+    @Test
+    void separatorsSplitRuns() {
+        // 标点与空白是分隔符，不会产生跨越分隔符的 bigram
+        assertEquals(Arrays.asList("鸡", "丁", "米", "饭"), Tokenizer.queryTerms("鸡，丁 米/饭"));
+        assertTrue(!Tokenizer.indexTerms("鸡 丁").contains("鸡丁"));
+    }
+
+    @Test
+    void duplicatesAreRemoved() {
+        assertEquals(Collections.singletonList("鸡鸡"), Tokenizer.queryTerms("鸡鸡鸡"));
+        assertEquals(Arrays.asList("鸡", "鸡鸡"), new ArrayList<>(Tokenizer.indexTerms("鸡鸡鸡")));
+    }
+
+    @Test
+    void nullAndEmpty() {
+        assertTrue(Tokenizer.indexTerms(null).isEmpty());
+        assertTrue(Tokenizer.queryTerms("").isEmpty());
+        assertTrue(Tokenizer.queryTerms("，。！ ").isEmpty());
+    }
+}
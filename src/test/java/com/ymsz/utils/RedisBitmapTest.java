@@ -0,0 +1,86 @@
+package com.ymsz.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RedisBitmapTest {
+
+    @Test
+    void offsetZeroIsTheHighestBitOfTheFirstByte() {
+        // 与 SETBIT key 0 1 的结果一致
+        assertArrayEquals(new byte[]{(byte) 0x80}, RedisBitmap.encode(Collections.singletonList(0)));
+        assertArrayEquals(new byte[]{0x01}, RedisBitmap.encode(Collections.singletonList(7)));
+        assertArrayEquals(new byte[]{0x00, 0x40}, RedisBitmap.encode(Collections.singletonList(9)));
+    }
+
+    @Test
+    void emptyAndNegativeIds() {
+        assertEquals(0, RedisBitmap.encode(Collections.emptyList()).length);
+        assertEquals(0, RedisBitmap.encode(Arrays.asList(-1, -5)).length);
+        assertArrayEquals(new int[]{3}, RedisBitmap.decode(RedisBitmap.encode(Arrays.asList(-1, 3, null))));
+    }
+
+    @Test
+    void decodeNullOrEmpty() {
+        assertArrayEquals(new int[0], RedisBitmap.decode(null));
+        assertArrayEquals(new int[0], RedisBitmap.decode(new byte[0]));
+        assertArrayEquals(new int[0], RedisBitmap.decode(new byte[13]));
+    }
+
+    @Test
+    void decodeIsSortedAndDeduplicated() {
+        int[] ids = RedisBitmap.decode(RedisBitmap.encode(Arrays.asList(70, 3, 64, 3, 0, 63)));
+        assertArrayEquals(new int[]{0, 3, 63, 64, 70}, ids);
+    }
+
+    @Test
+    void roundTripRandomSets() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            TreeSet<Integer> expected = new TreeSet<>();
+            int n = random.nextInt(100);
+            int bound = 1 + random.nextInt(5000);
+            for (int i = 0; i < n; i++) {
+                expected.add(random.nextInt(bound));
+            }
+            List<Integer> ids = new ArrayList<>(expected);
+            Collections.shuffle(ids, random);
+            int[] decoded = RedisBitmap.decode(RedisBitmap.encode(ids));
+            assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), decoded);
+        }
+    }
+
+    @Test
+    void decodeHandlesLengthsThatAreNotMultiplesOfEight() {
+        // 最后一组不足 8 个字节
+        byte[] bytes = new byte[11];
+        bytes[10] = 0x01;
+        bytes[8] = (byte) 0x80;
+        assertArrayEquals(new int[]{64, 87}, RedisBitmap.decode(bytes));
+    }
+
+    @Test
+    void getMatchesGetbit() {
+        byte[] bytes = RedisBitmap.encode(Arrays.asList(1, 8, 15));
+        assertTrue(RedisBitmap.get(bytes, 1));
+        assertTrue(RedisBitmap.get(bytes, 8));
+        assertTrue(RedisBitmap.get(bytes, 15));
+        assertFalse(RedisBitmap.get(bytes, 0));
+        assertFalse(RedisBitmap.get(bytes, 9));
+        // 超出长度或 bitmap 不存在时为 0
+        assertFalse(RedisBitmap.get(bytes, 16));
+        assertFalse(RedisBitmap.get(bytes, -1));
+        assertFalse(RedisBitmap.get(null, 1));
+    }
+}
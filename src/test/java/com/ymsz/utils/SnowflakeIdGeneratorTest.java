@@ -0,0 +1,97 @@
+package com.ymsz.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnowflakeIdGeneratorTest {
+
+    @Test
+    void idsAreStrictlyIncreasing() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(1, 5);
+        long last = generator.nextId();
+        // 超过一毫秒内的序列号上限，覆盖等待下一毫秒的分支
+        for (int i = 0; i < 100000; i++) {
+            long id = generator.nextId();
+            assertTrue(id > last, "ID 必须递增：" + last + " -> " + id);
+            last = id;
+        }
+    }
+
+    @Test
+    void nodeIdIsEncodedInEveryId() {
+        int nodeId = SnowflakeIdGenerator.MAX_NODE_ID;
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(nodeId, 5);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(nodeId, (generator.nextId() >> 12) & SnowflakeIdGenerator.MAX_NODE_ID);
+        }
+    }
+
+    @Test
+    void differentNodesNeverCollide() throws InterruptedException {
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int node = 0; node < 4; node++) {
+            SnowflakeIdGenerator generator = new SnowflakeIdGenerator(node, 5);
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    ids.add(generator.nextId());
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4 * 20000, ids.size());
+    }
+
+    @Test
+    void concurrentCallsOnOneGeneratorAreUnique() throws InterruptedException {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(7, 5);
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    ids.add(generator.nextId());
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(8 * 10000, ids.size());
+    }
+
+    @Test
+    void stringFormIsDecimal() {
+        SnowflakeIdGenerator generator = new SnowflakeIdGenerator(0, 5);
+        Set<String> ids = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            String id = generator.nextIdString();
+            assertTrue(Long.parseLong(id) > 0);
+            ids.add(id);
+        }
+        assertEquals(100, ids.size());
+    }
+
+    @Test
+    void rejectsNodeIdOutOfRange() {
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(-1, 5));
+        assertThrows(IllegalArgumentException.class, () -> new SnowflakeIdGenerator(SnowflakeIdGenerator.MAX_NODE_ID + 1, 5));
+    }
+}